@@ -20,6 +20,7 @@ package org.dalvdb.backend;
 import com.google.protobuf.ByteString;
 import dalv.common.Common;
 import io.grpc.stub.StreamObserver;
+import org.dalvdb.backend.exception.UserBusyException;
 import org.dalvdb.common.util.ByteUtil;
 import org.dalvdb.common.watch.WatchEvent;
 import org.dalvdb.common.watch.Watcher;
@@ -29,8 +30,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.Consumer;
 
 public class DalvClient implements Closeable {
   private static final Logger logger = LoggerFactory.getLogger(DalvClient.class);
@@ -59,15 +62,64 @@ public class DalvClient implements Closeable {
   }
 
   public void watch(String key, Watcher watcher) {
-    currentConnector.watch(key, new StreamObserver<BackendProto.WatchResponse>() {
+    watch(key, 0, watcher);
+  }
+
+  /**
+   * watch a key of all the users and let the server merge the events of a burst, the watcher would just see the
+   * newest PUT or DEL of a user key among the events received in the delay
+   *
+   * @param conflateDelay maximum milliseconds the server could hold an event, zero means no conflation
+   */
+  public void watch(String key, int conflateDelay, Watcher watcher) {
+    watch(key, conflateDelay, 0, watcher);
+  }
+
+  /**
+   * watch a key of all the users from a position, the changes after it are received before the live ones
+   *
+   * @param conflateDelay maximum milliseconds the server could hold an event, zero means no conflation
+   * @param resumeToken   {@link WatchEvent#getResumeToken()} of the last processed event, zero means from now
+   */
+  public void watch(String key, int conflateDelay, long resumeToken, Watcher watcher) {
+    watch(key, "", conflateDelay, resumeToken, watcher);
+  }
+
+  /**
+   * watch a key as a member of a consumer group, the members of a group split the users and the events of a user are
+   * always received in order by a single member, as long as the members do not change
+   *
+   * @param group         name of the consumer group
+   * @param conflateDelay maximum milliseconds the server could hold an event, zero means no conflation
+   * @param resumeToken   {@link WatchEvent#getResumeToken()} of the last processed event, zero means from now
+   */
+  public void watch(String key, String group, int conflateDelay, long resumeToken, Watcher watcher) {
+    watch(key, group, BackendProto.WatchFilter.getDefaultInstance(), conflateDelay, resumeToken, watcher);
+  }
+
+  /**
+   * watch a key and let the server filter the events, the watcher just sees the operations which pass the filter
+   *
+   * @param group         name of the consumer group, empty means no group
+   * @param filter        conditions of the operations to receive
+   * @param conflateDelay maximum milliseconds the server could hold an event, zero means no conflation
+   * @param resumeToken   {@link WatchEvent#getResumeToken()} of the last processed event, zero means from now
+   */
+  public void watch(String key, String group, BackendProto.WatchFilter filter, int conflateDelay, long resumeToken,
+                    Watcher watcher) {
+    currentConnector.watch(key, group, filter, conflateDelay, resumeToken, new StreamObserver<BackendProto.WatchResponse>() {
       @Override
       public void onNext(BackendProto.WatchResponse value) {
-        WatchEvent event = new WatchEvent()
-            .setUserId(value.getUserId())
-            .setNewValue(value.getOperation().getVal().toByteArray())
-            .setOperationType(value.getOperation().getType())
-            .setKey(key);
-        watcher.process(event);
+        for (Common.Operation operation : value.getOperationsList()) {
+          WatchEvent event = new WatchEvent()
+              .setUserId(value.getUserId())
+              .setNewValue(operation.getVal().toByteArray())
+              .setOperationType(operation.getType())
+              .setKey(operation.getKey())
+              .setSequence(value.getSequence())
+              .setResumeToken(value.getResumeToken());
+          watcher.process(event);
+        }
       }
 
       @Override
@@ -82,6 +134,53 @@ public class DalvClient implements Closeable {
     });
   }
 
+  /**
+   * consume the change log of the node, every committed change of every user in order of its sequence, the offset of
+   * a change is its sequence
+   *
+   * @param consumer name of the consumer, with a zero offset the consumer continues from its committed offset
+   * @param after    sequence of the last processed change, zero means from the committed offset or the oldest change
+   */
+  public void changes(String consumer, long after, Consumer<Common.Change> handler) {
+    currentConnector.changes(after, consumer, new StreamObserver<BackendProto.ChangesResponse>() {
+      @Override
+      public void onNext(BackendProto.ChangesResponse value) {
+        for (Common.Change change : value.getChangesList())
+          handler.accept(change);
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        logger.error("error occurred while consuming the changes for {}", consumer, t);
+      }
+
+      @Override
+      public void onCompleted() {
+        logger.info("change stream closed for {}", consumer);
+      }
+    });
+  }
+
+  /**
+   * store the offset of a consumer on the server, a later {@link #changes(String, long, Consumer)} with a zero offset
+   * continues after it
+   */
+  public boolean commitOffset(String consumer, long offset) {
+    return currentConnector.commitOffset(consumer, offset).getRepType() == Common.RepType.OK;
+  }
+
+  /**
+   * write all the users of the connected node into a file on that node, blocks until the file is complete. the node
+   * should have a scan directory configured
+   *
+   * @param mode whether write the compacted state or the whole log of every user
+   * @return path of the file on the node, null if another scan is running
+   */
+  public String scan(BackendProto.ScanRequest.Mode mode) {
+    BackendProto.ScanResponse res = currentConnector.scan(mode);
+    return res.getRepType() == Common.RepType.OK ? res.getFile() : null;
+  }
+
   public boolean put(String userId, String key, byte[] value) {
     return currentConnector.put(userId, key, ByteString.copyFrom(value)).getRepType() == Common.RepType.OK;
   }
@@ -103,6 +202,52 @@ public class DalvClient implements Closeable {
     return single.get(0);
   }
 
+  /**
+   * get the value of a key with its version, the version could be passed to {@link #putIfVersion} later
+   *
+   * @return the value and its version, the value is null if the key does not exist and the version is 0 if the key
+   * was never written
+   */
+  public VersionedValue getVersioned(String userId, String key) {
+    BackendProto.GetResponse res = currentConnector.get(userId, key);
+    byte[] value = null;
+    if (res.getRepType() == Common.RepType.OK) {
+      List<byte[]> single = ByteUtil.decodeList(res.getValue().toByteArray());
+      if (single.size() == 1)
+        value = single.get(0);
+    }
+    return new VersionedValue(value, res.getVersion());
+  }
+
+  /**
+   * put the value only if the key is still at the expected version
+   *
+   * @return false if the key has been changed since the expected version, it should be read again
+   * @throws UserBusyException if the user was not available, the same update could be retried later
+   */
+  public boolean putIfVersion(String userId, String key, byte[] value, long expectedVersion) {
+    Common.Operation op = Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey(key)
+        .setVal(ByteString.copyFrom(value))
+        .build();
+    return conditionalUpdate(userId, key, expectedVersion, Collections.singletonList(op));
+  }
+
+  /**
+   * apply the operations of a user only if the key is still at the expected version, the operations could touch any
+   * other key of the user as well
+   *
+   * @return false if the key has been changed since the expected version, it should be read again
+   * @throws UserBusyException if the user was not available, the same update could be retried later
+   */
+  public boolean conditionalUpdate(String userId, String key, long expectedVersion, List<Common.Operation> ops) {
+    Common.RepType repType = currentConnector.conditionalUpdate(userId, key, expectedVersion, ops).getRepType();
+    if (repType == Common.RepType.BUSY)
+      throw new UserBusyException(userId);
+    return repType == Common.RepType.OK;
+  }
+
   public boolean addToList(String userId, String listKey, byte[] value) {
     return currentConnector.addToList(userId, listKey, ByteString.copyFrom(value)).getRepType() == Common.RepType.OK;
   }
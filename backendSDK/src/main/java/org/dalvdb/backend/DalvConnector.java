@@ -86,12 +86,49 @@ class DalvConnector implements Closeable {
     return client.removeFromList(request);
   }
 
-  public void watch(String key, StreamObserver<BackendProto.WatchResponse> responseObserver) {
+  public BackendProto.ConditionalUpdateResponse conditionalUpdate(String userId, String key, long expectedVersion,
+                                                                  Iterable<Common.Operation> ops) {
+    BackendProto.ConditionalUpdateRequest request = BackendProto.ConditionalUpdateRequest.newBuilder()
+        .setUserId(userId)
+        .setKey(key)
+        .setExpectedVersion(expectedVersion)
+        .addAllOps(ops)
+        .build();
+    return client.conditionalUpdate(request);
+  }
+
+  public void watch(String key, String group, BackendProto.WatchFilter filter, int conflateDelay, long resumeToken,
+                    StreamObserver<BackendProto.WatchResponse> responseObserver) {
     BackendProto.WatchRequest request = BackendProto.WatchRequest.newBuilder()
-        .setKey(key).build();
+        .setKey(key)
+        .setGroup(group)
+        .setFilter(filter)
+        .setConflateDelay(conflateDelay)
+        .setResumeToken(resumeToken)
+        .build();
     clientFuture.watch(request, responseObserver);
   }
 
+  public void changes(long after, String consumer, StreamObserver<BackendProto.ChangesResponse> responseObserver) {
+    BackendProto.ChangesRequest request = BackendProto.ChangesRequest.newBuilder()
+        .setAfter(after)
+        .setConsumer(consumer)
+        .build();
+    clientFuture.changes(request, responseObserver);
+  }
+
+  public BackendProto.CommitOffsetResponse commitOffset(String consumer, long offset) {
+    BackendProto.CommitOffsetRequest request = BackendProto.CommitOffsetRequest.newBuilder()
+        .setConsumer(consumer)
+        .setOffset(offset)
+        .build();
+    return client.commitOffset(request);
+  }
+
+  public BackendProto.ScanResponse scan(BackendProto.ScanRequest.Mode mode) {
+    return client.scan(BackendProto.ScanRequest.newBuilder().setMode(mode).build());
+  }
+
   public BackendProto.WatchCancelResponse cancelAllWatch() {
     return client.watchCancelAll(Common.Empty.newBuilder().build());
   }
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.backend.exception;
+
+/**
+ * Thrown when a conditional update could not take the user before the server timeout, unlike a version mismatch the
+ * same update could be retried later
+ */
+public class UserBusyException extends RuntimeException {
+  private final String userId;
+
+  public UserBusyException(String userId) {
+    super("user " + userId + " is busy, retry later");
+    this.userId = userId;
+  }
+
+  public String getUserId() {
+    return userId;
+  }
+}
@@ -22,6 +22,7 @@ import dalv.common.Common;
 import io.grpc.stub.StreamObserver;
 import org.dalvdb.client.conflict.Conflict;
 import org.dalvdb.client.conflict.ConflictResolver;
+import org.dalvdb.client.exception.ServerBusyException;
 import org.dalvdb.common.util.ByteUtil;
 import org.dalvdb.common.util.OpUtil;
 import org.dalvdb.common.watch.WatchEvent;
@@ -31,16 +32,29 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DalvClient implements Closeable {
   private static final Logger logger = LoggerFactory.getLogger(DalvClient.class);
   private final List<DalvConnector> connectors;
   private final Storage storage;
+  private static final int MAX_BUSY_RETRIES = 5;
+  private static final long BASE_BACKOFF = 50;
+  private static final long MAX_BACKOFF = 2000;
   private final Object syncLock = new Object();
+  private final Random random = new Random();
+  private final Object watchLock = new Object();
+  //keys watched by their own call, the conflating ones
+  private final Set<String> dedicatedWatches = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private WatchSession watchSession;
+  private volatile SyncSession syncSession;
 
   private DalvConnector currentConnector;
   private int currentConnectorIndex;
@@ -73,8 +87,15 @@ public class DalvClient implements Closeable {
     synchronized (syncLock) {
       int lastSnapshotId = storage.getLastSnapshotId();
       List<Common.Operation> unsynced = storage.getUnsyncOps();
-      ClientProto.SyncResponse res = currentConnector.sync(unsynced, lastSnapshotId);
+      ClientProto.SyncResponse res = push(unsynced, lastSnapshotId);
+      for (int attempt = 1; res.getSyncResponse() == Common.RepType.BUSY; attempt++) {
+        if (attempt > MAX_BUSY_RETRIES)
+          throw new ServerBusyException(res.getRetryAfter());
+        backoff(res.getRetryAfter(), attempt);
+        res = push(unsynced, lastSnapshotId);
+      }
       if (res.getSyncResponse() == Common.RepType.OK) {
+        //the unsynced operations are acknowledged, not echoed back, only the changes of the others are applied
         storage.apply(res.getOpsList(), res.getSnapshotId());
         return new SyncResponse(res.getSnapshotId());
       } else {
@@ -83,6 +104,81 @@ public class DalvClient implements Closeable {
     }
   }
 
+  /**
+   * send the operations by the sync session if it is open or by a single sync call
+   */
+  private ClientProto.SyncResponse push(List<Common.Operation> ops, int lastSnapshotId) {
+    SyncSession session = syncSession;
+    if (session == null || !session.isOpen())
+      return currentConnector.sync(ops, lastSnapshotId);
+    ClientProto.SyncSessionResponse res = session.push(ops, lastSnapshotId);
+    return ClientProto.SyncResponse.newBuilder()
+        .setSyncResponse(res.getSyncResponse())
+        .setSnapshotId(res.getSnapshotId())
+        .addAllOps(res.getOpsList())
+        .setRetryAfter(res.getRetryAfter())
+        .setAcknowledgedOps(res.getAcknowledgedOps())
+        .build();
+  }
+
+  /**
+   * open a sync session and sync through it. The later syncs are pushed on the same call and the server pushes the
+   * commits of the user as soon as they happen, so there is no need to poll. A pushed delta is applied if there is no
+   * unsynced operation, otherwise it is synced and the conflicts are resolved by the resolver
+   */
+  public void startSyncSession(final ConflictResolver resolver) {
+    synchronized (syncLock) {
+      if (syncSession == null || !syncSession.isOpen()) {
+        syncSession = new SyncSession(currentConnector, new SyncSession.DeltaHandler() {
+          @Override
+          public void onDelta(ClientProto.SyncSessionResponse delta) {
+            applyDelta(delta, resolver);
+          }
+        });
+      }
+      sync(resolver);
+    }
+  }
+
+  public void stopSyncSession() {
+    synchronized (syncLock) {
+      if (syncSession != null) {
+        syncSession.close();
+        syncSession = null;
+      }
+    }
+  }
+
+  private void applyDelta(ClientProto.SyncSessionResponse delta, ConflictResolver resolver) {
+    synchronized (syncLock) {
+      int lastSnapshotId = storage.getLastSnapshotId();
+      //a later sync already covered the delta
+      if (delta.getSnapshotId() <= lastSnapshotId) return;
+      if (delta.getLastSnapshotId() == lastSnapshotId && storage.getUnsyncOps().isEmpty()) {
+        storage.apply(delta.getOpsList(), delta.getSnapshotId());
+        return;
+      }
+      //the client has its own operations or missed a delta
+      sync(resolver);
+    }
+  }
+
+  /**
+   * wait before retrying a sync which the server rejected as busy, by the server's hint if there is any or an
+   * exponential backoff otherwise. A random jitter is added to spread the retries of several clients
+   */
+  private void backoff(int retryAfter, int attempt) {
+    long wait = retryAfter > 0 ? retryAfter : BASE_BACKOFF << (attempt - 1);
+    wait = Math.min(wait, MAX_BACKOFF);
+    wait += (long) (random.nextDouble() * wait / 2);
+    try {
+      Thread.sleep(wait);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ServerBusyException(retryAfter);
+    }
+  }
+
   public void resolve(int resolveSnapshotId, List<Common.Operation> resolveOps) {
     storage.resolveConflict(resolveSnapshotId, resolveOps);
   }
@@ -109,23 +205,70 @@ public class DalvClient implements Closeable {
   }
 
   public boolean cancelWatch(String key) {
+    synchronized (watchLock) {
+      if (watchSession != null)
+        watchSession.unsubscribe(key);
+    }
+    if (!dedicatedWatches.remove(key))
+      return true;
     return currentConnector.cancelWatch(key).getResponse() == Common.RepType.OK;
   }
 
   public boolean cancelAllWatch() {
+    synchronized (watchLock) {
+      if (watchSession != null) {
+        watchSession.close();
+        watchSession = null;
+      }
+    }
+    dedicatedWatches.clear();
     return currentConnector.cancelAllWatch().getResponse() == Common.RepType.OK;
   }
 
-  public void watch(final String key, final Watcher watcher) {
+  public void watch(String key, Watcher watcher) {
+    watch(key, 0, watcher);
+  }
+
+  /**
+   * watch a key and let the server merge the events of a burst, the watcher would just see the newest PUT or DEL of
+   * the key among the events received in the delay
+   *
+   * @param conflateDelay maximum milliseconds the server could hold an event, zero means no conflation
+   */
+  public void watch(final String key, int conflateDelay, final Watcher watcher) {
+    watch(key, conflateDelay, 0, watcher);
+  }
+
+  /**
+   * watch a key from a snapshot, the changes of the key after the snapshot are received before the live ones. The
+   * keys without conflation are all watched on a single call, a conflating watch has its own call
+   *
+   * @param conflateDelay  maximum milliseconds the server could hold an event, zero means no conflation
+   * @param lastSnapshotId snapshot id the client is synced to, zero means from now
+   */
+  public void watch(final String key, int conflateDelay, int lastSnapshotId, final Watcher watcher) {
+    if (conflateDelay == 0) {
+      synchronized (watchLock) {
+        if (watchSession == null || !watchSession.isOpen())
+          watchSession = new WatchSession(currentConnector, storage);
+        watchSession.subscribe(key, lastSnapshotId, watcher);
+      }
+      return;
+    }
+    dedicatedWatches.add(key);
     StreamObserver<ClientProto.WatchResponse> so = new StreamObserver<ClientProto.WatchResponse>() {
 
       @Override
       public void onNext(ClientProto.WatchResponse value) {
-        WatchEvent event = new WatchEvent()
-            .setNewValue(value.getOperation().getVal().toByteArray())
-            .setOperationType(value.getOperation().getType())
-            .setKey(key);
-        watcher.process(event);
+        for (Common.Operation operation : value.getOperationsList()) {
+          WatchEvent event = new WatchEvent()
+              .setNewValue(operation.getVal().toByteArray())
+              .setOperationType(operation.getType())
+              .setKey(operation.getKey())
+              .setSequence(value.getSequence())
+              .setResumeToken(value.getResumeToken());
+          watcher.process(event);
+        }
       }
 
       @Override
@@ -138,7 +281,7 @@ public class DalvClient implements Closeable {
         logger.info("watch stream closed for key {}", key);
       }
     };
-    currentConnector.watch(key, so);
+    currentConnector.watch(key, conflateDelay, lastSnapshotId, so);
   }
 
   public List<byte[]> getAsList(String key) {
@@ -201,6 +344,7 @@ public class DalvClient implements Closeable {
 
   @Override
   public void close() {
+    stopSyncSession();
     cancelAllWatch();
     this.storage.close();
     for (DalvConnector c : this.connectors) {
@@ -53,14 +53,63 @@ class DalvConnector implements Closeable {
     return client.sync(request);
   }
 
-  public void watch(String key, StreamObserver<ClientProto.WatchResponse> observer) {
+  /**
+   * open a sync session, the jwt is added to its first message
+   *
+   * @return the observer to push the batches by
+   */
+  public StreamObserver<ClientProto.SyncSessionRequest> syncSession(
+      StreamObserver<ClientProto.SyncSessionResponse> observer) {
+    final StreamObserver<ClientProto.SyncSessionRequest> requests = clientNonBlocking.syncSession(observer);
+    return new StreamObserver<ClientProto.SyncSessionRequest>() {
+      private boolean authorized;
+
+      @Override
+      public void onNext(ClientProto.SyncSessionRequest value) {
+        if (!authorized) {
+          authorized = true;
+          value = value.toBuilder().setJwt(jwt).build();
+        }
+        requests.onNext(value);
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        requests.onError(t);
+      }
+
+      @Override
+      public void onCompleted() {
+        requests.onCompleted();
+      }
+    };
+  }
+
+  public void watch(String key, int conflateDelay, int lastSnapshotId,
+                    StreamObserver<ClientProto.WatchResponse> observer) {
     ClientProto.WatchRequest request = ClientProto.WatchRequest.newBuilder()
         .setJwt(jwt)
         .setKey(key)
+        .setConflateDelay(conflateDelay)
+        .setLastSnapshotId(lastSnapshotId)
         .build();
     clientNonBlocking.watch(request, observer);
   }
 
+  /**
+   * open a multiplexed watch call, it is authorized by its first message
+   *
+   * @return the observer to send the subscriptions by
+   */
+  public StreamObserver<ClientProto.WatchStreamRequest> watchStream(
+      StreamObserver<ClientProto.WatchResponse> observer) {
+    StreamObserver<ClientProto.WatchStreamRequest> requests = clientNonBlocking.watchStream(observer);
+    requests.onNext(ClientProto.WatchStreamRequest.newBuilder()
+        .setJwt(jwt)
+        .build());
+    return requests;
+  }
+
   public ClientProto.WatchCancelResponse cancelWatch(String key) {
     ClientProto.WatchCancelRequest request = ClientProto.WatchCancelRequest.newBuilder()
         .setJwt(jwt)
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.client;
+
+import dalv.common.Common;
+import io.grpc.stub.StreamObserver;
+import org.dalvdb.client.exception.SyncSessionException;
+import org.dalvdb.proto.ClientProto;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The client side of a sync session. The pushed batches are matched with their responses by the batch id, and the
+ * deltas the server pushes on its own are passed to the handler on a single thread of the session, so the call never
+ * waits for the client storage.
+ */
+class SyncSession {
+  private static final Logger logger = LoggerFactory.getLogger(SyncSession.class);
+  private final StreamObserver<ClientProto.SyncSessionRequest> requests;
+  private final Map<Long, Response> pending = new ConcurrentHashMap<>();
+  private final ExecutorService deltaExecutor = Executors.newSingleThreadExecutor();
+  private final AtomicLong batchIds = new AtomicLong();
+  private volatile Throwable failure;
+
+  interface DeltaHandler {
+    void onDelta(ClientProto.SyncSessionResponse delta);
+  }
+
+  SyncSession(DalvConnector connector, final DeltaHandler handler) {
+    this.requests = connector.syncSession(new StreamObserver<ClientProto.SyncSessionResponse>() {
+      @Override
+      public void onNext(final ClientProto.SyncSessionResponse value) {
+        if (value.getBatchId() == 0) {
+          deltaExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                handler.onDelta(value);
+              } catch (RuntimeException e) {
+                logger.error("could not apply the delta of the sync session", e);
+              }
+            }
+          });
+          return;
+        }
+        Response response = pending.remove(value.getBatchId());
+        if (response != null)
+          response.complete(value, null);
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        logger.error("sync session is closed by an error", t);
+        closed(t);
+      }
+
+      @Override
+      public void onCompleted() {
+        logger.info("sync session closed");
+        closed(new IllegalStateException("sync session is closed by the server"));
+      }
+    });
+  }
+
+  /**
+   * push a batch and wait for its response, a batch without operations just reads the delta
+   *
+   * @param lastSnapshotId snapshot id the client is synced to
+   */
+  ClientProto.SyncSessionResponse push(List<Common.Operation> ops, int lastSnapshotId) {
+    long batchId = batchIds.incrementAndGet();
+    Response response = new Response();
+    pending.put(batchId, response);
+    synchronized (this) {
+      if (failure != null) {
+        pending.remove(batchId);
+        throw new SyncSessionException("sync session is closed", failure);
+      }
+      requests.onNext(ClientProto.SyncSessionRequest.newBuilder()
+          .addAllOps(ops)
+          .setLastSnapshotId(lastSnapshotId)
+          .setBatchId(batchId)
+          .build());
+    }
+    return response.get();
+  }
+
+  boolean isOpen() {
+    return failure == null;
+  }
+
+  void close() {
+    synchronized (this) {
+      if (failure != null) return;
+      requests.onCompleted();
+    }
+    closed(new IllegalStateException("sync session is closed"));
+  }
+
+  private void closed(Throwable cause) {
+    synchronized (this) {
+      if (failure == null)
+        failure = cause;
+    }
+    for (Long batchId : pending.keySet()) {
+      Response response = pending.remove(batchId);
+      if (response != null)
+        response.complete(null, cause);
+    }
+    deltaExecutor.shutdown();
+  }
+
+  private static final class Response {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private ClientProto.SyncSessionResponse value;
+    private Throwable failure;
+
+    void complete(ClientProto.SyncSessionResponse value, Throwable failure) {
+      this.value = value;
+      this.failure = failure;
+      done.countDown();
+    }
+
+    ClientProto.SyncSessionResponse get() {
+      try {
+        done.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SyncSessionException("interrupted while waiting for the sync session", e);
+      }
+      if (failure != null)
+        throw new SyncSessionException("sync session is closed", failure);
+      return value;
+    }
+  }
+}
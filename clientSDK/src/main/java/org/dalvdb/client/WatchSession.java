@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.client;
+
+import dalv.common.Common;
+import io.grpc.stub.StreamObserver;
+import org.dalvdb.common.watch.WatchEvent;
+import org.dalvdb.common.watch.Watcher;
+import org.dalvdb.proto.ClientProto;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single watch call for all the keys of the client. The keys are subscribed and unsubscribed by messages on the
+ * call and every received operation is passed to the watchers of its key and of the patterns which match it.
+ * <p>
+ * If the call fails or the server ends it, a new call is opened after a backoff and all the keys and patterns are
+ * subscribed again from the snapshot the client is synced to, so the watchers get the changes they missed, maybe
+ * some of them twice.
+ */
+class WatchSession {
+  private static final Logger logger = LoggerFactory.getLogger(WatchSession.class);
+  private static final long MIN_RECONNECT_DELAY = 100;
+  private static final long MAX_RECONNECT_DELAY = 10_000;
+  private static final char ESCAPE = '\\';
+  private static final int ANY = -1;
+  private static final int ONE = -2;
+  private final Map<String, List<Watcher>> keys = new ConcurrentHashMap<>();
+  private final Map<String, List<Watcher>> patterns = new ConcurrentHashMap<>();
+  private final DalvConnector connector;
+  private final Storage storage;
+  private final ScheduledExecutorService reconnectTimer = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "dalv-watch-reconnect");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+  //guarded by this
+  private StreamObserver<ClientProto.WatchStreamRequest> requests;
+  //guarded by this, the current call failed and a new one is not opened yet
+  private boolean broken;
+  private long reconnectDelay = MIN_RECONNECT_DELAY;
+  private volatile boolean closed;
+
+  /**
+   * @param storage the client storage, the keys are subscribed again from its last snapshot after a reconnect
+   */
+  WatchSession(DalvConnector connector, Storage storage) {
+    this.connector = connector;
+    this.storage = storage;
+    this.requests = open();
+  }
+
+  private StreamObserver<ClientProto.WatchStreamRequest> open() {
+    return connector.watchStream(new StreamObserver<ClientProto.WatchResponse>() {
+      @Override
+      public void onNext(ClientProto.WatchResponse value) {
+        synchronized (WatchSession.this) {
+          reconnectDelay = MIN_RECONNECT_DELAY;
+        }
+        for (Common.Operation operation : value.getOperationsList()) {
+          WatchEvent event = new WatchEvent()
+              .setNewValue(operation.getVal().toByteArray())
+              .setOperationType(operation.getType())
+              .setKey(operation.getKey())
+              .setSequence(value.getSequence())
+              .setResumeToken(value.getResumeToken());
+          for (Watcher watcher : watchers(operation.getKey()))
+            watcher.process(event);
+        }
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        if (closed) return;
+        logger.error("watch stream failed, it is reopened", t);
+        broken();
+      }
+
+      @Override
+      public void onCompleted() {
+        if (closed) return;
+        logger.info("watch stream closed by the server, it is reopened");
+        broken();
+      }
+    });
+  }
+
+  /**
+   * schedule a new call, the keys are kept and subscribed on it
+   */
+  private synchronized void broken() {
+    if (closed || broken) return;
+    broken = true;
+    long delay = reconnectDelay;
+    reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY);
+    reconnectTimer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        reconnect();
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void reconnect() {
+    if (closed) return;
+    broken = false;
+    requests = open();
+    if (keys.isEmpty() && patterns.isEmpty()) return;
+    ClientProto.WatchStreamRequest.Builder request = ClientProto.WatchStreamRequest.newBuilder()
+        .setLastSnapshotId(storage.getLastSnapshotId());
+    request.addAllSubscribe(keys.keySet());
+    request.addAllSubscribe(patterns.keySet());
+    requests.onNext(request.build());
+  }
+
+  /**
+   * @param lastSnapshotId snapshot id the client is synced to, zero means from now. it is only used if the key is not
+   *                       already subscribed
+   */
+  synchronized void subscribe(String watchKey, int lastSnapshotId, Watcher watcher) {
+    String key = normalize(watchKey);
+    Map<String, List<Watcher>> map = isPattern(key) ? patterns : keys;
+    List<Watcher> watchers = map.get(key);
+    if (watchers == null) {
+      watchers = new CopyOnWriteArrayList<>();
+      map.put(key, watchers);
+      //a broken call subscribes all the keys once it is reopened
+      if (!broken)
+        requests.onNext(ClientProto.WatchStreamRequest.newBuilder()
+            .addSubscribe(key)
+            .setLastSnapshotId(lastSnapshotId)
+            .build());
+    }
+    watchers.add(watcher);
+  }
+
+  synchronized void unsubscribe(String watchKey) {
+    String key = normalize(watchKey);
+    List<Watcher> removed = (isPattern(key) ? patterns : keys).remove(key);
+    if (removed != null && !closed && !broken)
+      requests.onNext(ClientProto.WatchStreamRequest.newBuilder()
+          .addUnsubscribe(key)
+          .build());
+  }
+
+  synchronized void close() {
+    keys.clear();
+    patterns.clear();
+    reconnectTimer.shutdownNow();
+    if (!closed) {
+      closed = true;
+      if (!broken)
+        requests.onCompleted();
+    }
+  }
+
+  /**
+   * @return false if the session is closed and a new one is needed, a failed call is reopened by the session itself
+   */
+  boolean isOpen() {
+    return !closed;
+  }
+
+  private Set<Watcher> watchers(String key) {
+    //a watcher of the key and of a matching pattern gets the event once
+    Set<Watcher> watchers = new LinkedHashSet<>();
+    List<Watcher> exact = keys.get(escape(key));
+    if (exact != null)
+      watchers.addAll(exact);
+    for (Map.Entry<String, List<Watcher>> entry : patterns.entrySet())
+      if (matches(entry.getKey(), key))
+        watchers.addAll(entry.getValue());
+    return watchers;
+  }
+
+  /**
+   * @return true if the key has a '*' or '?' which is not escaped
+   */
+  static boolean isPattern(String key) {
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      if (c == ESCAPE && escapes(key, i))
+        i++;
+      else if (c == '*' || c == '?')
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * the same canonical form as the server, a backslash which escapes nothing is escaped itself
+   */
+  static String normalize(String key) {
+    if (key.indexOf(ESCAPE) < 0) return key;
+    StringBuilder normalized = new StringBuilder(key.length() + 1);
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      normalized.append(c);
+      if (c == ESCAPE)
+        normalized.append(escapes(key, i) ? key.charAt(++i) : ESCAPE);
+    }
+    return normalized.toString();
+  }
+
+  /**
+   * @return the canonical watch key which matches the key alone
+   */
+  static String escape(String key) {
+    StringBuilder escaped = null;
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      if (isSpecial(c)) {
+        if (escaped == null)
+          escaped = new StringBuilder(key.length() + 4).append(key, 0, i);
+        escaped.append(ESCAPE);
+      }
+      if (escaped != null)
+        escaped.append(c);
+    }
+    return escaped == null ? key : escaped.toString();
+  }
+
+  private static boolean isSpecial(char c) {
+    return c == '*' || c == '?' || c == ESCAPE;
+  }
+
+  private static boolean escapes(String key, int i) {
+    return i + 1 < key.length() && isSpecial(key.charAt(i + 1));
+  }
+
+  /**
+   * the same matching as the server: '*' matches any sequence of characters, '?' exactly one character and a
+   * backslash escapes the next '*', '?' or backslash
+   */
+  static boolean matches(String watchKey, String key) {
+    //the escaped characters are literals, the wildcards are negative
+    int[] pattern = new int[watchKey.length()];
+    int length = 0;
+    for (int i = 0; i < watchKey.length(); i++) {
+      char c = watchKey.charAt(i);
+      if (c == ESCAPE && escapes(watchKey, i))
+        pattern[length++] = watchKey.charAt(++i);
+      else
+        pattern[length++] = c == '*' ? ANY : c == '?' ? ONE : c;
+    }
+    int p = 0;
+    int k = 0;
+    int star = -1;
+    int mark = 0;
+    while (k < key.length()) {
+      if (p < length && (pattern[p] == ONE || pattern[p] == key.charAt(k))) {
+        p++;
+        k++;
+      } else if (p < length && pattern[p] == ANY) {
+        star = p++;
+        mark = k;
+      } else if (star >= 0) {
+        //let the last '*' take one more character
+        p = star + 1;
+        k = ++mark;
+      } else {
+        return false;
+      }
+    }
+    while (p < length && pattern[p] == ANY)
+      p++;
+    return p == length;
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.client.exception;
+
+/**
+ * Thrown when the server kept rejecting a sync as busy after all the retries
+ */
+public class ServerBusyException extends RuntimeException {
+  private final int retryAfter;
+
+  public ServerBusyException(int retryAfter) {
+    super("server is busy, retry after " + retryAfter + "ms");
+    this.retryAfter = retryAfter;
+  }
+
+  /**
+   * @return the last retry hint of the server in milliseconds
+   */
+  public int getRetryAfter() {
+    return retryAfter;
+  }
+}
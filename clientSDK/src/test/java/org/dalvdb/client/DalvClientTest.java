@@ -19,12 +19,18 @@ package org.dalvdb.client;
 
 import com.google.protobuf.ByteString;
 import dalv.common.Common;
+import io.grpc.stub.StreamObserver;
 import org.dalvdb.client.conflict.resolver.AcceptServerResolver;
+import org.dalvdb.common.watch.WatchEvent;
+import org.dalvdb.common.watch.Watcher;
 import org.dalvdb.proto.ClientProto;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatchers;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.util.Collections;
 import java.util.LinkedList;
@@ -267,4 +273,108 @@ public class DalvClientTest {
     client.get("name");
     Mockito.verify(mockStorage).get("name");
   }
-}
\ No newline at end of file
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void watchesShareOneCall() {
+    StreamObserver<ClientProto.WatchStreamRequest> requests = Mockito.mock(StreamObserver.class);
+    when(mockConnector.watchStream(ArgumentMatchers.<StreamObserver<ClientProto.WatchResponse>>any()))
+        .thenReturn(requests);
+    Watcher watcher = new Watcher() {
+      @Override
+      public void process(WatchEvent event) {
+      }
+    };
+    client.watch("name", watcher);
+    client.watch("cart.*", watcher);
+    client.cancelWatch("name");
+    verify(mockConnector, times(1)).watchStream(ArgumentMatchers.<StreamObserver<ClientProto.WatchResponse>>any());
+    verify(requests).onNext(ClientProto.WatchStreamRequest.newBuilder().addSubscribe("name").build());
+    verify(requests).onNext(ClientProto.WatchStreamRequest.newBuilder().addSubscribe("cart.*").build());
+    verify(requests).onNext(ClientProto.WatchStreamRequest.newBuilder().addUnsubscribe("name").build());
+    verify(mockConnector, never()).cancelWatch("name");
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void watchSessionReopensAfterFailure() {
+    StreamObserver<ClientProto.WatchStreamRequest> requests = Mockito.mock(StreamObserver.class);
+    StreamObserver<ClientProto.WatchStreamRequest> reopened = Mockito.mock(StreamObserver.class);
+    ArgumentCaptor<StreamObserver<ClientProto.WatchResponse>> responses =
+        ArgumentCaptor.forClass((Class) StreamObserver.class);
+    when(mockConnector.watchStream(responses.capture())).thenReturn(requests, reopened);
+    when(mockStorage.getLastSnapshotId()).thenReturn(4);
+    Watcher watcher = new Watcher() {
+      @Override
+      public void process(WatchEvent event) {
+      }
+    };
+    client.watch("name", watcher);
+    client.watch("cart.*", watcher);
+
+    responses.getValue().onError(new RuntimeException("connection reset"));
+    //the keys are subscribed again on a new call from the client's snapshot
+    verify(mockConnector, Mockito.timeout(1000).times(2))
+        .watchStream(ArgumentMatchers.<StreamObserver<ClientProto.WatchResponse>>any());
+    verify(reopened, Mockito.timeout(1000)).onNext(ClientProto.WatchStreamRequest.newBuilder()
+        .addSubscribe("name")
+        .addSubscribe("cart.*")
+        .setLastSnapshotId(4)
+        .build());
+  }
+
+  @Test
+  public void watchPatternMatching() {
+    assertThat(WatchSession.matches("cart.*", "cart.total")).isTrue();
+    assertThat(WatchSession.matches("cart.*", "cart.")).isTrue();
+    assertThat(WatchSession.matches("cart.*", "carts")).isFalse();
+    assertThat(WatchSession.matches("*.total", "cart.sub.total")).isTrue();
+    assertThat(WatchSession.matches("item?", "item1")).isTrue();
+    assertThat(WatchSession.matches("item?", "item12")).isFalse();
+    assertThat(WatchSession.matches("rate\\*", "rate*")).isTrue();
+    assertThat(WatchSession.matches("rate\\*", "rates")).isFalse();
+    assertThat(WatchSession.matches("dir\\\\*", "dir\\a")).isTrue();
+    assertThat(WatchSession.isPattern("rate\\*")).isFalse();
+    assertThat(WatchSession.escape("rate*")).isEqualTo("rate\\*");
+    assertThat(WatchSession.normalize("dir\\a")).isEqualTo("dir\\\\a");
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void syncSessionAppliesPushedDelta() {
+    final ArgumentCaptor<StreamObserver<ClientProto.SyncSessionResponse>> responses =
+        ArgumentCaptor.forClass((Class) StreamObserver.class);
+    StreamObserver<ClientProto.SyncSessionRequest> requests = Mockito.mock(StreamObserver.class);
+    when(mockConnector.syncSession(responses.capture())).thenReturn(requests);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        ClientProto.SyncSessionRequest request = invocation.getArgument(0);
+        responses.getValue().onNext(ClientProto.SyncSessionResponse.newBuilder()
+            .setSyncResponse(Common.RepType.OK)
+            .setSnapshotId(1)
+            .setBatchId(request.getBatchId())
+            .build());
+        return null;
+      }
+    }).when(requests).onNext(any(ClientProto.SyncSessionRequest.class));
+    client.startSyncSession(new AcceptServerResolver());
+    verify(mockStorage).apply(Collections.<Common.Operation>emptyList(), 1);
+    verify(mockConnector, never()).sync(ArgumentMatchers.<Common.Operation>anyList(), anyInt());
+
+    when(mockStorage.getLastSnapshotId()).thenReturn(1);
+    Common.Operation op = Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("name")
+        .setVal(ByteString.copyFrom("ali".getBytes()))
+        .build();
+    responses.getValue().onNext(ClientProto.SyncSessionResponse.newBuilder()
+        .setSyncResponse(Common.RepType.OK)
+        .setLastSnapshotId(1)
+        .setSnapshotId(2)
+        .addOps(op)
+        .build());
+    verify(mockStorage, timeout(1000)).apply(Collections.singletonList(op), 2);
+    client.stopSyncSession();
+  }
+}
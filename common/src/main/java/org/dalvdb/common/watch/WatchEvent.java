@@ -26,6 +26,8 @@ public class WatchEvent {
   private Common.OpType operationType;
   private byte[] newValue;
   private String key;
+  private long sequence;
+  private long resumeToken;
 
   public String getUserId() {
     return userId;
@@ -63,6 +65,30 @@ public class WatchEvent {
     return this;
   }
 
+  /**
+   * @return change sequence of the commit on the server node, zero if the event is not from the change log
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  public WatchEvent setSequence(long sequence) {
+    this.sequence = sequence;
+    return this;
+  }
+
+  /**
+   * @return position to resume the watch from after a reconnect
+   */
+  public long getResumeToken() {
+    return resumeToken;
+  }
+
+  public WatchEvent setResumeToken(long resumeToken) {
+    this.resumeToken = resumeToken;
+    return this;
+  }
+
   @Override
   public String toString() {
     return "WatchEvent{" +
@@ -70,6 +96,8 @@ public class WatchEvent {
         ", operationType=" + operationType +
         ", newValue=" + Arrays.toString(newValue) +
         ", key='" + key + '\'' +
+        ", sequence=" + sequence +
+        ", resumeToken=" + resumeToken +
         '}';
   }
 }
@@ -41,11 +41,33 @@ public final class DalvConfig {
   public static final String CLIENT_PORT = "client.port";
   public static final String JWT_SIGN = "jwt.signature";
   public static final String LOCK_TIMEOUT = "lock.timeout";
-  public static final String LOCK_SIZE_THRESHOLD = "lock.size.threshold";
+  public static final String LOCK_STRIPES = "lock.stripes";
+  public static final String LOCK_MAX_WAIT = "lock.max.wait";
   public static final String BACKEND_PORT = "backend.port";
   public static final String WATCHER_THREAD_NUM = "watcher.thread.num";
+  public static final String WATCH_QUEUE_SIZE = "watch.queue.size";
+  public static final String WATCH_OVERFLOW_POLICY = "watch.overflow.policy";
+  public static final String WATCH_CONFLATE_MAX_DELAY = "watch.conflate.max.delay";
   public static final String COMPACTION_DELAY = "compaction.delay";
   public static final String COMPACTION_INTERVAL = "compaction.interval";
+  public static final String SCAN_PARALLELISM = "scan.parallelism";
+  public static final String SCAN_RATE_LIMIT = "scan.rate.limit";
+  public static final String SCAN_DIR = "scan.dir";
+  public static final String LOG_FORMAT_VERSION = "log.format.version";
+  public static final String LOG_CHECKSUM = "log.checksum";
+  public static final String SNAPSHOT_RETENTION_COUNT = "snapshot.retention.count";
+  public static final String SNAPSHOT_RETENTION_AGE = "snapshot.retention.age";
+  public static final String EXECUTION_MODE = "execution.mode";
+  public static final String MAILBOX_THREAD_NUM = "mailbox.thread.num";
+  public static final String MAILBOX_BATCH_SIZE = "mailbox.batch.size";
+  public static final String MAILBOX_RETRY_DELAY = "mailbox.retry.delay";
+  public static final String CHANGES_RETENTION = "changes.retention";
+  public static final String CHANGES_RETENTION_AGE = "changes.retention.age";
+  public static final String CHANGES_RETENTION_BYTES = "changes.retention.bytes";
+  public static final String CHANGES_TRIM_INTERVAL = "changes.trim.interval";
+  public static final String CHANGES_THREAD_NUM = "changes.thread.num";
+  public static final String SYNC_SESSION_THREAD_NUM = "sync.session.thread.num";
+  public static final String SYNC_SESSION_RETRY_DELAY = "sync.session.retry.delay";
 
   //Environment Variable
   private static final String DALV_CONFIG = "DALV_CONFIG";
@@ -62,11 +84,34 @@ public final class DalvConfig {
     config.put(CLIENT_PORT, 7472);
     config.put(JWT_SIGN, "havijfarangichekhoobehavijfarangichekhoobehavijfarangichekhoobe");
     config.put(LOCK_TIMEOUT, 20);
-    config.put(LOCK_SIZE_THRESHOLD, 200);
+    config.put(LOCK_STRIPES, 1024);
+    config.put(LOCK_MAX_WAIT, 500);
     config.put(BACKEND_PORT, 7470);
     config.put(WATCHER_THREAD_NUM, 8);
+    config.put(WATCH_QUEUE_SIZE, 1024);
+    config.put(WATCH_OVERFLOW_POLICY, "disconnect");
+    config.put(WATCH_CONFLATE_MAX_DELAY, 1000);
     config.put(COMPACTION_DELAY, 10L);
     config.put(COMPACTION_INTERVAL, 10L);
+    config.put(SCAN_PARALLELISM, 4);
+    config.put(SCAN_RATE_LIMIT, 1000);
+    //empty means the scan command is disabled
+    config.put(SCAN_DIR, "");
+    config.put(LOG_FORMAT_VERSION, 2);
+    config.put(LOG_CHECKSUM, false);
+    config.put(SNAPSHOT_RETENTION_COUNT, 0);
+    config.put(SNAPSHOT_RETENTION_AGE, 0L);
+    config.put(EXECUTION_MODE, "lock");
+    config.put(MAILBOX_THREAD_NUM, 8);
+    config.put(MAILBOX_BATCH_SIZE, 128);
+    config.put(MAILBOX_RETRY_DELAY, 10);
+    config.put(CHANGES_RETENTION, 1_000_000L);
+    config.put(CHANGES_RETENTION_AGE, 0L);
+    config.put(CHANGES_RETENTION_BYTES, 0L);
+    config.put(CHANGES_TRIM_INTERVAL, 60L);
+    config.put(CHANGES_THREAD_NUM, 2);
+    config.put(SYNC_SESSION_THREAD_NUM, 2);
+    config.put(SYNC_SESSION_RETRY_DELAY, 10);
   }
 
   private DalvConfig() {
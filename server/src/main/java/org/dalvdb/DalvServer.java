@@ -18,10 +18,13 @@
 package org.dalvdb;
 
 
+import org.dalvdb.lock.UserLockManager;
+import org.dalvdb.mailbox.MailboxExecutor;
 import org.dalvdb.service.backend.BackendService;
+import org.dalvdb.watch.ChangeFeed;
 import org.dalvdb.watch.InMemoryWatchManager;
-import org.dalvdb.watch.WatchManager;
 import org.dalvdb.service.client.ClientService;
+import org.dalvdb.storage.ParallelScanner;
 import org.dalvdb.storage.RocksStorageService;
 import org.dalvdb.storage.StorageService;
 import org.slf4j.Logger;
@@ -43,17 +46,29 @@ public class DalvServer implements Closeable {
   private final DalvCluster cluster;
   private final ClientService clientService;
   private final BackendService backendService;
+  private final MailboxExecutor mailboxExecutor;
 
   private DalvServer() {
-    this.storageService = new RocksStorageService();
+    RocksStorageService rocksStorageService = new RocksStorageService();
+    this.storageService = rocksStorageService;
+    UserLockManager.getInstance().metrics().register();
     if (!DalvConfig.getBoolean(DalvConfig.SINGLETON_MODE))
       this.cluster = new DalvCluster();
     else
       this.cluster = null;
     //TODO should be changed to handle clients watches also
-    WatchManager watchManager = new InMemoryWatchManager();
-    this.clientService = new ClientService(this.storageService, watchManager);
-    this.backendService = new BackendService(this.storageService, watchManager);
+    InMemoryWatchManager watchManager = new InMemoryWatchManager(storageService);
+    watchManager.metrics().register();
+    storageService.addChangeListener(watchManager);
+    ChangeFeed changeFeed = new ChangeFeed(storageService);
+    storageService.addChangeListener(changeFeed);
+    if ("mailbox".equals(DalvConfig.getStr(DalvConfig.EXECUTION_MODE)))
+      this.mailboxExecutor = new MailboxExecutor(this.storageService);
+    else
+      this.mailboxExecutor = null;
+    this.clientService = new ClientService(this.storageService, watchManager, mailboxExecutor);
+    this.backendService = new BackendService(this.storageService, watchManager, changeFeed, mailboxExecutor,
+        new ParallelScanner(rocksStorageService));
     logger.info("Dalv server started up");
   }
 
@@ -105,6 +120,8 @@ public class DalvServer implements Closeable {
   public void close() throws IOException {
     this.clientService.close();
     this.backendService.close();
+    if (mailboxExecutor != null)
+      this.mailboxExecutor.close();
     if (cluster != null)
       this.cluster.close();
     this.storageService.close();
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.dalvdb.lock;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations with power of two buckets, bucket i counts the durations in [2^i, 2^(i+1))
+ * microseconds and the first bucket also counts the ones below a microsecond.
+ */
+class LatencyHistogram {
+  private static final int BUCKETS = 32;
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  void record(long nanos) {
+    long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+    int bucket = micros <= 1 ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+    counts.incrementAndGet(bucket);
+  }
+
+  long[] counts() {
+    long[] result = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++)
+      result[i] = counts.get(i);
+    return result;
+  }
+
+  /**
+   * @param quantile between 0 and 1
+   * @return upper bound of the bucket which contains the quantile in microseconds, zero if nothing recorded
+   */
+  long percentile(double quantile) {
+    long[] snapshot = counts();
+    long total = 0;
+    for (long count : snapshot)
+      total += count;
+    if (total == 0) return 0;
+    long rank = (long) Math.ceil(quantile * total);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank)
+        return 1L << (i + 1);
+    }
+    return 1L << BUCKETS;
+  }
+}
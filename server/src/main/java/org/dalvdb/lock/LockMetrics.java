@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.dalvdb.lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contention metrics of the {@link UserLockManager}. Recording an uncontended acquisition just updates a histogram
+ * bucket, the top-K of contended users is only touched by requests which already waited for a lock.
+ */
+public class LockMetrics implements LockMetricsMXBean {
+  private static final Logger logger = LoggerFactory.getLogger(LockMetrics.class);
+  private static final int TOP_USERS = 20;
+  //waits shorter than this are not counted as contention
+  private static final long CONTENDED_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  private final LatencyHistogram waitTime = new LatencyHistogram();
+  private final LatencyHistogram writeHoldTime = new LatencyHistogram();
+  private final LongAdder readTimeouts = new LongAdder();
+  private final LongAdder writeTimeouts = new LongAdder();
+  private final LongAdder busyRejections = new LongAdder();
+  private final TopUsers topContendedUsers = new TopUsers(TOP_USERS);
+
+  /**
+   * register the metrics in the platform MBean server
+   */
+  public void register() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("org.dalvdb:type=UserLocks"));
+    } catch (JMException e) {
+      logger.warn("could not register lock metrics", e);
+    }
+  }
+
+  void recordAcquire(String userId, long waitNanos, boolean acquired, boolean write) {
+    waitTime.record(waitNanos);
+    if (!acquired) {
+      if (write)
+        writeTimeouts.increment();
+      else
+        readTimeouts.increment();
+    }
+    if (!acquired || waitNanos >= CONTENDED_WAIT_NANOS)
+      topContendedUsers.record(userId);
+  }
+
+  void recordWriteHold(long holdNanos) {
+    writeHoldTime.record(holdNanos);
+  }
+
+  /**
+   * record a request which is rejected without waiting for the user lock
+   */
+  public void recordBusy(String userId) {
+    busyRejections.increment();
+    topContendedUsers.record(userId);
+  }
+
+  @Override
+  public long[] getWaitTimeHistogram() {
+    return waitTime.counts();
+  }
+
+  @Override
+  public long[] getWriteHoldTimeHistogram() {
+    return writeHoldTime.counts();
+  }
+
+  @Override
+  public long getWaitTimeP50() {
+    return waitTime.percentile(0.5);
+  }
+
+  @Override
+  public long getWaitTimeP99() {
+    return waitTime.percentile(0.99);
+  }
+
+  @Override
+  public long getWriteHoldTimeP99() {
+    return writeHoldTime.percentile(0.99);
+  }
+
+  @Override
+  public long getReadTimeouts() {
+    return readTimeouts.sum();
+  }
+
+  @Override
+  public long getWriteTimeouts() {
+    return writeTimeouts.sum();
+  }
+
+  @Override
+  public long getBusyRejections() {
+    return busyRejections.sum();
+  }
+
+  @Override
+  public Map<String, Long> getTopContendedUsers() {
+    return topContendedUsers.top();
+  }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.dalvdb.lock;
+
+import java.util.Map;
+
+/**
+ * JMX view of the user lock metrics, registered as org.dalvdb:type=UserLocks. Durations are in microseconds, the
+ * histograms have power of two buckets, element i counts the durations in [2^i, 2^(i+1)) microseconds.
+ */
+public interface LockMetricsMXBean {
+  long[] getWaitTimeHistogram();
+
+  long[] getWriteHoldTimeHistogram();
+
+  long getWaitTimeP50();
+
+  long getWaitTimeP99();
+
+  long getWriteHoldTimeP99();
+
+  long getReadTimeouts();
+
+  long getWriteTimeouts();
+
+  /**
+   * @return number of requests rejected without waiting because the estimated wait was too long
+   */
+  long getBusyRejections();
+
+  /**
+   * @return the users which waited, timed out or were rejected the most, with their approximate counts
+   */
+  Map<String, Long> getTopContendedUsers();
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.dalvdb.lock;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Approximate top-K of the most frequent users by the space-saving algorithm. It keeps a fixed number of counters,
+ * when a new user comes and all counters are taken, the user replaces the one with the smallest count and inherits
+ * its count. Counts are overestimated at most by the smallest count.
+ */
+class TopUsers {
+  private final int capacity;
+  private final Map<String, Long> counters;
+
+  TopUsers(int capacity) {
+    this.capacity = capacity;
+    this.counters = new HashMap<>(capacity * 2);
+  }
+
+  synchronized void record(String userId) {
+    Long count = counters.get(userId);
+    if (count != null) {
+      counters.put(userId, count + 1);
+      return;
+    }
+    if (counters.size() < capacity) {
+      counters.put(userId, 1L);
+      return;
+    }
+    String minUser = null;
+    long min = Long.MAX_VALUE;
+    for (Map.Entry<String, Long> entry : counters.entrySet()) {
+      if (entry.getValue() < min) {
+        min = entry.getValue();
+        minUser = entry.getKey();
+      }
+    }
+    counters.remove(minUser);
+    counters.put(userId, min + 1);
+  }
+
+  /**
+   * @return users and their counts ordered from the most frequent
+   */
+  synchronized Map<String, Long> top() {
+    Map<String, Long> result = new LinkedHashMap<>();
+    counters.entrySet().stream()
+        .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+        .forEach(e -> result.put(e.getKey(), e.getValue()));
+    return result;
+  }
+}
@@ -20,32 +20,35 @@ package org.dalvdb.lock;
 import com.google.common.annotations.VisibleForTesting;
 import org.dalvdb.DalvConfig;
 
-import java.util.Comparator;
-import java.util.Map;
-import java.util.Objects;
-import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
- * Singleton class that its single instance keep a list of {@link ReadWriteLock} for users. each user has a single lock
- * It acts as a LRU cache, and delete locks once the number of locks reach the threshold, however, it does not delete
- * any currently held lock.
+ * Singleton class that its single instance keep a fixed array of {@link ReadWriteLock} stripes for users. Each user
+ * is mapped to a stripe by the hash of its id, so acquiring a lock never needs a global lock or any allocation and the
+ * number of users never makes a request fail. Users which share a stripe also share the lock, the number of stripes
+ * should be large enough to make it rare between concurrently active users.
+ * <p>
+ * The locks are fair, waiters acquire them in the arrival order. Each stripe keeps a moving average of its write lock
+ * hold time, so callers could estimate how long they would wait in the queue before they start waiting.
  */
 public class UserLockManager {
   private static UserLockManager instance;
-  private final Map<String, LockEntry> locks = new ConcurrentHashMap<>();
-  private final ReadWriteLock pruningLock = new ReentrantReadWriteLock();
-  private final int threshold;
+  private final Stripe[] stripes;
+  private final int mask;
+  private final LockMetrics metrics = new LockMetrics();
 
+  /**
+   * @param stripes number of lock stripes, rounded up to the next power of two
+   */
   @VisibleForTesting
-  UserLockManager(int threshold) {
-    this.threshold = threshold;
+  UserLockManager(int stripes) {
+    int size = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+    this.stripes = new Stripe[size];
+    for (int i = 0; i < size; i++)
+      this.stripes[i] = new Stripe();
+    this.mask = size - 1;
   }
 
   /**
@@ -55,16 +58,13 @@ public class UserLockManager {
    */
   public static synchronized UserLockManager getInstance() {
     if (instance == null) {
-      instance = new UserLockManager(DalvConfig.getInt(DalvConfig.LOCK_SIZE_THRESHOLD));
+      instance = new UserLockManager(DalvConfig.getInt(DalvConfig.LOCK_STRIPES));
     }
     return instance;
   }
 
   /**
    * Try to acquire the user read lock within the timeout provided.
-   * <p>
-   * Note that in the case of lockManager has reached the threshold and prune was not possible the method return false
-   * immediately
    *
    * @param userId  the user identification
    * @param timeout the time to wait until lock will be available
@@ -72,22 +72,14 @@ public class UserLockManager {
    * @throws InterruptedException in the case of interruption while waiting to acquire lock
    */
   public boolean tryReadLock(String userId, long timeout) throws InterruptedException {
-    LockEntry lockEntry = getLock(userId);
-    if (lockEntry != null && lockEntry.lock.readLock().tryLock(timeout, TimeUnit.MILLISECONDS)) {
-      pruningLock.readLock().lock();
-      lockEntry.numberOfHold.incrementAndGet();
-      lockEntry.lastUsedTimestamp = System.currentTimeMillis();
-      pruningLock.readLock().unlock();
-      return true;
-    }
-    return false;
+    long start = System.nanoTime();
+    boolean acquired = getStripe(userId).lock.readLock().tryLock(timeout, TimeUnit.MILLISECONDS);
+    metrics.recordAcquire(userId, System.nanoTime() - start, acquired, false);
+    return acquired;
   }
 
   /**
    * Try to acquire the user write lock within the timeout provided.
-   * <p>
-   * Note that in the case of lockManager has reached the threshold and prune was not possible the method return false
-   * immediately
    *
    * @param userId  the user identification
    * @param timeout the time to wait until lock will be available
@@ -95,15 +87,14 @@ public class UserLockManager {
    * @throws InterruptedException in the case of interruption while waiting to acquire lock
    */
   public boolean tryWriteLock(String userId, long timeout) throws InterruptedException {
-    LockEntry lockEntry = getLock(userId);
-    if (lockEntry != null && lockEntry.lock.writeLock().tryLock(timeout, TimeUnit.MILLISECONDS)) {
-      pruningLock.readLock().lock();
-      lockEntry.numberOfHold.incrementAndGet();
-      lockEntry.lastUsedTimestamp = System.currentTimeMillis();
-      pruningLock.readLock().unlock();
-      return true;
-    }
-    return false;
+    Stripe stripe = getStripe(userId);
+    long start = System.nanoTime();
+    boolean acquired = stripe.lock.writeLock().tryLock(timeout, TimeUnit.MILLISECONDS);
+    long now = System.nanoTime();
+    metrics.recordAcquire(userId, now - start, acquired, true);
+    if (acquired && stripe.lock.getWriteHoldCount() == 1)
+      stripe.writeAcquiredAt = now;
+    return acquired;
   }
 
   /**
@@ -112,9 +103,7 @@ public class UserLockManager {
    * @param userId the user identification
    */
   public void releaseReadLock(String userId) {
-    LockEntry lockEntry = getLock(userId);
-    Objects.requireNonNull(lockEntry).lock.readLock().unlock();
-    lockEntry.numberOfHold.decrementAndGet();
+    getStripe(userId).lock.readLock().unlock();
   }
 
   /**
@@ -123,43 +112,51 @@ public class UserLockManager {
    * @param userId the user identification
    */
   public void releaseWriteLock(String userId) {
-    LockEntry lockEntry = getLock(userId);
-    Objects.requireNonNull(lockEntry).lock.writeLock().unlock();
-    lockEntry.numberOfHold.decrementAndGet();
+    Stripe stripe = getStripe(userId);
+    if (stripe.lock.getWriteHoldCount() == 1) {
+      long hold = System.nanoTime() - stripe.writeAcquiredAt;
+      stripe.avgWriteHoldNanos += (hold - stripe.avgWriteHoldNanos) / 8;
+      metrics.recordWriteHold(hold);
+    }
+    stripe.lock.writeLock().unlock();
+  }
+
+  /**
+   * estimate how long a write lock request of the user would wait, by the number of threads already waiting for the
+   * user's lock and the average time the lock is held
+   *
+   * @param userId the user identification
+   * @return the estimated wait in milliseconds, zero if the lock is free
+   */
+  public long estimatedWriteWait(String userId) {
+    Stripe stripe = getStripe(userId);
+    int ahead = stripe.lock.getQueueLength() + (stripe.lock.isWriteLocked() ? 1 : 0);
+    if (ahead == 0 && stripe.lock.getReadLockCount() == 0)
+      return 0;
+    return TimeUnit.NANOSECONDS.toMillis(Math.max(1, ahead) * stripe.avgWriteHoldNanos);
   }
 
-  private LockEntry getLock(String userId) {
-    return locks.computeIfAbsent(userId, (k) -> {
-      if (locks.size() == threshold && !prune())
-        return null;
-      return new LockEntry();
-    });
+  /**
+   * @return contention metrics of the user locks
+   */
+  public LockMetrics metrics() {
+    return metrics;
   }
 
-  private boolean prune() {
-    Lock lock = pruningLock.writeLock();
-    lock.lock();
-    AtomicBoolean success = new AtomicBoolean(false);
-    Optional<Map.Entry<String, LockEntry>> removeCandidate = locks.entrySet().stream()
-        .filter(e -> e.getValue().numberOfHold.intValue() == 0)
-        .min(Comparator.comparing(e -> e.getValue().lastUsedTimestamp));
-    removeCandidate.map(Map.Entry::getKey).ifPresent(key -> {
-      locks.remove(key);
-      success.set(true);
-    });
-    lock.unlock();
-    return success.get();
+  @VisibleForTesting
+  int stripeOf(String userId) {
+    int h = userId.hashCode();
+    return (h ^ (h >>> 16)) & mask;
   }
 
-  private static class LockEntry {
-    private final ReadWriteLock lock;
-    private Long lastUsedTimestamp;
-    private final AtomicInteger numberOfHold;
+  private Stripe getStripe(String userId) {
+    return stripes[stripeOf(userId)];
+  }
 
-    public LockEntry() {
-      this.lastUsedTimestamp = System.currentTimeMillis();
-      numberOfHold = new AtomicInteger(0);
-      this.lock = new ReentrantReadWriteLock();
-    }
+  private static class Stripe {
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    //only touched by the write lock holder
+    private long writeAcquiredAt;
+    private volatile long avgWriteHoldNanos;
   }
 }
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.mailbox;
+
+import dalv.common.Common;
+import org.dalvdb.DalvConfig;
+import org.dalvdb.lock.UserLockManager;
+import org.dalvdb.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Execute the tasks of each user sequentially on a shared pool of workers, as an alternative to make each request
+ * thread wait for the user lock.
+ * <p>
+ * Each user with pending tasks has a mailbox which is drained by at most one worker at a time. Consecutive writes of a
+ * user are persisted by a single {@link StorageService#addOperations} call, so contention on a user turns into larger
+ * batches instead of lock timeouts. The worker holds the user write lock while it drains a mailbox, to stay exclusive
+ * against the compaction. If the lock is held by someone else the mailbox is retried after a delay, so a held user
+ * never occupies a worker. Mailboxes are created on the first task of a user and retired once they are empty. The
+ * tasks which are pending on close, or submitted after it, fail by a {@link RejectedExecutionException}.
+ */
+public class MailboxExecutor implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(MailboxExecutor.class);
+  private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+  private final StorageService storage;
+  private final ExecutorService workers;
+  private final ScheduledExecutorService retryTimer = Executors.newSingleThreadScheduledExecutor();
+  private final int batchSize;
+  private final long retryDelay = DalvConfig.getInt(DalvConfig.MAILBOX_RETRY_DELAY);
+  private volatile boolean closed;
+  private final UserLockManager userLockManager = UserLockManager.getInstance();
+
+  public MailboxExecutor(StorageService storage) {
+    this(storage, DalvConfig.getInt(DalvConfig.MAILBOX_THREAD_NUM), DalvConfig.getInt(DalvConfig.MAILBOX_BATCH_SIZE));
+  }
+
+  /**
+   * @param storage    the storage to persist writes in
+   * @param threads    number of workers
+   * @param batchSize  maximum number of tasks a worker runs from a mailbox before it lets other mailboxes run
+   */
+  public MailboxExecutor(StorageService storage, int threads, int batchSize) {
+    this.storage = storage;
+    this.workers = Executors.newFixedThreadPool(threads);
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * persist an operation for the user after all the previously submitted tasks of the user
+   *
+   * @param userId    the user identification
+   * @param operation the operation to persist
+   * @return a future which completes once the operation is persisted
+   */
+  public CompletableFuture<Void> write(String userId, Common.Operation operation) {
+    Task<Void> task = new Task<>(operation, null);
+    enqueue(userId, task);
+    return task.future;
+  }
+
+  /**
+   * run an arbitrary task after all the previously submitted tasks of the user, no other task of the user runs
+   * concurrently with it
+   *
+   * @param userId the user identification
+   * @param action the task to run
+   * @return a future which completes by the result of the task
+   */
+  public <T> CompletableFuture<T> submit(String userId, Supplier<T> action) {
+    Task<T> task = new Task<>(null, action);
+    enqueue(userId, task);
+    return task.future;
+  }
+
+  private void enqueue(String userId, Task<?> task) {
+    if (closed) {
+      task.reject();
+      return;
+    }
+    boolean[] schedule = new boolean[1];
+    Mailbox mailbox = mailboxes.compute(userId, (k, m) -> {
+      if (m == null) m = new Mailbox(userId);
+      m.tasks.add(task);
+      if (!m.running) {
+        m.running = true;
+        schedule[0] = true;
+      }
+      return m;
+    });
+    if (schedule[0])
+      mailbox.schedule();
+    //the executor is closed meanwhile, its pending tasks may never run
+    if (closed)
+      mailbox.rejectAll();
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    retryTimer.shutdownNow();
+    workers.shutdown();
+    try {
+      workers.awaitTermination(30, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      logger.error(e.getMessage(), e);
+    }
+    for (Mailbox mailbox : mailboxes.values())
+      mailbox.rejectAll();
+  }
+
+  private class Mailbox {
+    private final String userId;
+    private final Queue<Task<?>> tasks = new ConcurrentLinkedQueue<>();
+    //guarded by the mailboxes map entry, it is only changed inside compute
+    private boolean running;
+
+    Mailbox(String userId) {
+      this.userId = userId;
+    }
+
+    void schedule() {
+      try {
+        workers.execute(this::drain);
+      } catch (RejectedExecutionException e) {
+        rejectAll();
+      }
+    }
+
+    void rejectAll() {
+      for (Task<?> task = tasks.poll(); task != null; task = tasks.poll())
+        task.reject();
+    }
+
+    void drain() {
+      try {
+        if (!userLockManager.tryWriteLock(userId, 0)) {
+          //someone else like the compaction holds the user, try again later without blocking the worker
+          retryTimer.schedule(this::schedule, retryDelay, TimeUnit.MILLISECONDS);
+          return;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        rejectAll();
+        return;
+      } catch (RejectedExecutionException e) {
+        rejectAll();
+        return;
+      }
+      try {
+        runBatch();
+      } finally {
+        userLockManager.releaseWriteLock(userId);
+      }
+      boolean[] reschedule = new boolean[1];
+      mailboxes.compute(userId, (k, m) -> {
+        if (tasks.isEmpty()) {
+          running = false;
+          return null;
+        }
+        reschedule[0] = true;
+        return m;
+      });
+      if (reschedule[0])
+        schedule();
+    }
+
+    private void runBatch() {
+      List<Task<?>> writes = new ArrayList<>();
+      for (int i = 0; i < batchSize; i++) {
+        Task<?> task = tasks.poll();
+        if (task == null) break;
+        if (task.operation != null) {
+          writes.add(task);
+          continue;
+        }
+        flush(writes);
+        task.run();
+      }
+      flush(writes);
+    }
+
+    private void flush(List<Task<?>> writes) {
+      if (writes.isEmpty()) return;
+      List<Common.Operation> operations = new ArrayList<>(writes.size());
+      for (Task<?> write : writes)
+        operations.add(write.operation);
+      try {
+        storage.addOperations(userId, operations);
+        writes.forEach(write -> write.future.complete(null));
+      } catch (RuntimeException e) {
+        writes.forEach(write -> write.future.completeExceptionally(e));
+      }
+      writes.clear();
+    }
+  }
+
+  private static class Task<T> {
+    private final Common.Operation operation;
+    private final Supplier<T> action;
+    private final CompletableFuture<T> future = new CompletableFuture<>();
+
+    Task(Common.Operation operation, Supplier<T> action) {
+      this.operation = operation;
+      this.action = action;
+    }
+
+    void run() {
+      try {
+        future.complete(action.get());
+      } catch (RuntimeException e) {
+        future.completeExceptionally(e);
+      }
+    }
+
+    void reject() {
+      future.completeExceptionally(new RejectedExecutionException("the mailbox executor is closed"));
+    }
+  }
+}
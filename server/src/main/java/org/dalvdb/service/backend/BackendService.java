@@ -20,7 +20,12 @@ package org.dalvdb.service.backend;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import org.dalvdb.DalvConfig;
+import org.dalvdb.mailbox.MailboxExecutor;
+import org.dalvdb.proto.BackendServerGrpc;
+import org.dalvdb.storage.ParallelScanner;
 import org.dalvdb.storage.StorageService;
+import org.dalvdb.watch.ChangeFeed;
+import org.dalvdb.watch.SharedMessages;
 import org.dalvdb.watch.WatchManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,12 +38,21 @@ public class BackendService implements Closeable {
   private static final Logger logger = LoggerFactory.getLogger(BackendService.class);
   private final Server server;
   private final WatchManager watchManager;
+  private final ChangeFeed changeFeed;
 
-  public BackendService(StorageService storageService, WatchManager watchManager) {
+  /**
+   * @param mailboxExecutor executor of the mailbox mode, null means the handlers use user locks
+   * @param scanner         scanner of the storage for the scan command, null means the node could not be scanned
+   */
+  public BackendService(StorageService storageService, WatchManager watchManager, ChangeFeed changeFeed,
+                        MailboxExecutor mailboxExecutor, ParallelScanner scanner) {
     this.watchManager = watchManager;
+    this.changeFeed = changeFeed;
     final int port = DalvConfig.getInt(DalvConfig.BACKEND_PORT);
+    BackendServiceImpl service = new BackendServiceImpl(storageService, watchManager, changeFeed, mailboxExecutor,
+        scanner);
     server = ServerBuilder.forPort(port)
-        .addService(new BackendServiceImpl(storageService, watchManager)).build();
+        .addService(SharedMessages.bind(service.bindService(), BackendServerGrpc.getWatchMethod())).build();
     try {
       server.start();
     } catch (IOException e) {
@@ -59,6 +73,7 @@ public class BackendService implements Closeable {
   @Override
   public void close() {
     watchManager.close();
+    changeFeed.close();
     if (server != null) {
       try {
         server.shutdown().awaitTermination(30, TimeUnit.SECONDS);
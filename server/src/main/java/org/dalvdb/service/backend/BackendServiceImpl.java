@@ -19,173 +19,236 @@ package org.dalvdb.service.backend;
 
 import com.google.protobuf.ByteString;
 import dalv.common.Common;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import org.dalvdb.DalvConfig;
 import org.dalvdb.exception.InternalServerException;
 import org.dalvdb.lock.UserLockManager;
+import org.dalvdb.mailbox.MailboxExecutor;
 import org.dalvdb.proto.BackendProto;
 import org.dalvdb.proto.BackendServerGrpc;
+import org.dalvdb.storage.FramedFileScanSink;
+import org.dalvdb.storage.ParallelScanner;
 import org.dalvdb.storage.StorageService;
+import org.dalvdb.watch.ChangeFeed;
+import org.dalvdb.watch.OperationFilter;
 import org.dalvdb.watch.WatchManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
 public class BackendServiceImpl extends BackendServerGrpc.BackendServerImplBase {
   private static final Logger logger = LoggerFactory.getLogger(BackendServiceImpl.class);
   private final StorageService storageService;
   private final UserLockManager userLockManager;
   private final WatchManager watchManager;
+  private final ChangeFeed changeFeed;
+  private final MailboxExecutor mailboxExecutor;
+  private final ParallelScanner scanner;
+  private final AtomicBoolean scanning = new AtomicBoolean();
+
+  /**
+   * @param mailboxExecutor executor of the mailbox mode, null means the handlers use user locks
+   */
+  public BackendServiceImpl(StorageService storageService, WatchManager watchManager, ChangeFeed changeFeed,
+                            MailboxExecutor mailboxExecutor) {
+    this(storageService, watchManager, changeFeed, mailboxExecutor, null);
+  }
 
-  public BackendServiceImpl(StorageService storageService, WatchManager watchManager) {
+  /**
+   * @param mailboxExecutor executor of the mailbox mode, null means the handlers use user locks
+   * @param scanner         scanner of the storage for the scan command, null means the node could not be scanned
+   */
+  public BackendServiceImpl(StorageService storageService, WatchManager watchManager, ChangeFeed changeFeed,
+                            MailboxExecutor mailboxExecutor, ParallelScanner scanner) {
     this.storageService = storageService;
     this.watchManager = watchManager;
+    this.changeFeed = changeFeed;
     this.userLockManager = UserLockManager.getInstance();
+    this.mailboxExecutor = mailboxExecutor;
+    this.scanner = scanner;
   }
 
   @Override
   public void get(BackendProto.GetRequest request, StreamObserver<BackendProto.GetResponse> responseObserver) {
     logger.debug("GET command received: userId:{} key:{}", request.getUserId(), request.getKey());
-    BackendProto.GetResponse response;
     try {
-      if (userLockManager.tryReadLock(request.getUserId(), DalvConfig.getInt(DalvConfig.LOCK_TIMEOUT))) {
-        try {
-          ByteString value = storageService.getValue(request.getUserId(), request.getKey());
-          response = BackendProto.GetResponse.newBuilder()
-              .setRepType(value == null ? Common.RepType.NOK : Common.RepType.OK)
-              .setValue(value)
-              .build();
-        } finally {
-          userLockManager.releaseReadLock(request.getUserId());
-        }
-      } else
-        response = BackendProto.GetResponse.newBuilder().setRepType(Common.RepType.NOK).build();
-      responseObserver.onNext(response);
+      //the storage reads from a point-in-time view, so there is no need for the user lock. the version is read first
+      //so it is never newer than the value
+      long version = storageService.getVersion(request.getUserId(), request.getKey());
+      ByteString value = storageService.getValue(request.getUserId(), request.getKey());
+      responseObserver.onNext(getResponse(value, version));
       responseObserver.onCompleted();
-    } catch (InternalServerException | InterruptedException e) {
+    } catch (InternalServerException e) {
       logger.error(e.getMessage(), e);
       responseObserver.onError(e);
     }
   }
 
+  private static BackendProto.GetResponse getResponse(ByteString value, long version) {
+    return BackendProto.GetResponse.newBuilder()
+        .setRepType(value == null ? Common.RepType.NOK : Common.RepType.OK)
+        .setValue(value)
+        .setVersion(version)
+        .build();
+  }
+
   @Override
   public void put(BackendProto.PutRequest request, StreamObserver<BackendProto.PutResponse> responseObserver) {
-    try {
-      logger.debug("PUT command received: userId:{} key:{}", request.getUserId(), request.getKey());
-      BackendProto.PutResponse response;
-      Common.Operation op = null;
-      if (userLockManager.tryWriteLock(request.getUserId(), DalvConfig.getInt(DalvConfig.LOCK_TIMEOUT))) {
-        try {
-          op = Common.Operation.newBuilder()
-              .setKey(request.getKey())
-              .setType(Common.OpType.PUT)
-              .setVal(request.getValue())
-              .build();
-          storageService.addOperation(request.getUserId(), op);
-          response = BackendProto.PutResponse.newBuilder().setRepType(Common.RepType.OK).build();
-        } finally {
-          userLockManager.releaseWriteLock(request.getUserId());
-        }
-      } else {
-        response = BackendProto.PutResponse.newBuilder().setRepType(Common.RepType.NOK).build();
-      }
-      responseObserver.onNext(response);
-      responseObserver.onCompleted();
-      logger.debug("PUT command processed: userId:{} key:{}", request.getUserId(), request.getKey());
-      if (response.getRepType() == Common.RepType.OK)
-        watchManager.notifyChange(request.getUserId(), op);
-    } catch (InternalServerException | InterruptedException e) {
-      logger.error(e.getMessage(), e);
-      responseObserver.onError(e);
-    }
+    logger.debug("PUT command received: userId:{} key:{}", request.getUserId(), request.getKey());
+    Common.Operation op = Common.Operation.newBuilder()
+        .setKey(request.getKey())
+        .setType(Common.OpType.PUT)
+        .setVal(request.getValue())
+        .build();
+    write(request.getUserId(), op, responseObserver,
+        BackendProto.PutResponse.newBuilder().setRepType(Common.RepType.OK).build(),
+        BackendProto.PutResponse.newBuilder().setRepType(Common.RepType.NOK).build());
   }
 
   @Override
   public void del(BackendProto.DelRequest request, StreamObserver<BackendProto.DelResponse> responseObserver) {
+    logger.debug("DEL command received: userId:{} key:{}", request.getUserId(), request.getKey());
+    Common.Operation op = Common.Operation.newBuilder()
+        .setKey(request.getKey())
+        .setType(Common.OpType.DEL)
+        .build();
+    write(request.getUserId(), op, responseObserver,
+        BackendProto.DelResponse.newBuilder().setRepType(Common.RepType.OK).build(),
+        BackendProto.DelResponse.newBuilder().setRepType(Common.RepType.NOK).build());
+  }
+
+  @Override
+  public void addToList(BackendProto.AddToListRequest request, StreamObserver<BackendProto.AddToListResponse> responseObserver) {
+    logger.debug("ADD_TO_LIST command received: userId:{} listKey:{}", request.getUserId(), request.getListKey());
+    Common.Operation op = Common.Operation.newBuilder()
+        .setKey(request.getListKey())
+        .setType(Common.OpType.ADD_TO_LIST)
+        .setVal(request.getValue())
+        .build();
+    write(request.getUserId(), op, responseObserver,
+        BackendProto.AddToListResponse.newBuilder().setRepType(Common.RepType.OK).build(),
+        BackendProto.AddToListResponse.newBuilder().setRepType(Common.RepType.NOK).build());
+  }
+
+  @Override
+  public void removeFromList(BackendProto.RemoveFromListRequest request, StreamObserver<BackendProto.RemoveFromListResponse> responseObserver) {
+    logger.debug("REMOVE_FROM_LIST command received: userId:{} listKey:{}", request.getUserId(), request.getListKey());
+    Common.Operation op = Common.Operation.newBuilder()
+        .setKey(request.getListKey())
+        .setType(Common.OpType.REMOVE_FROM_LIST)
+        .setVal(request.getValue())
+        .build();
+    write(request.getUserId(), op, responseObserver,
+        BackendProto.RemoveFromListResponse.newBuilder().setRepType(Common.RepType.OK).build(),
+        BackendProto.RemoveFromListResponse.newBuilder().setRepType(Common.RepType.NOK).build());
+  }
+
+  @Override
+  public void conditionalUpdate(BackendProto.ConditionalUpdateRequest request,
+                                StreamObserver<BackendProto.ConditionalUpdateResponse> responseObserver) {
+    logger.debug("CONDITIONAL_UPDATE command received: userId:{} key:{} version:{}", request.getUserId(),
+        request.getKey(), request.getExpectedVersion());
+    if (!validOperations(request)) {
+      responseObserver.onError(Status.INVALID_ARGUMENT
+          .withDescription("ops should be a non-empty list of PUT, DEL, ADD_TO_LIST and REMOVE_FROM_LIST")
+          .asRuntimeException());
+      return;
+    }
+    String userId = request.getUserId();
+    //the version check and the write are a single step for the storage, the user is exclusive just for that step
+    Supplier<BackendProto.ConditionalUpdateResponse> commit = () -> {
+      boolean persisted = storageService.addOperationsIfVersion(userId, request.getKey(),
+          request.getExpectedVersion(), request.getOpsList());
+      return BackendProto.ConditionalUpdateResponse.newBuilder()
+          .setRepType(persisted ? Common.RepType.OK : Common.RepType.NOK)
+          .setVersion(storageService.getVersion(userId, request.getKey()))
+          .build();
+    };
+    if (mailboxExecutor != null) {
+      mailboxExecutor.submit(userId, commit).whenComplete((response, e) -> {
+        if (e != null) {
+          logger.error(e.getMessage(), e);
+          responseObserver.onError(e);
+          return;
+        }
+        responseObserver.onNext(response);
+        responseObserver.onCompleted();
+      });
+      return;
+    }
     try {
-      logger.debug("DEL command received: userId:{} key:{}", request.getUserId(), request.getKey());
-      BackendProto.DelResponse response;
-      Common.Operation op = null;
-      if (userLockManager.tryWriteLock(request.getUserId(), DalvConfig.getInt(DalvConfig.LOCK_TIMEOUT))) {
+      BackendProto.ConditionalUpdateResponse response =
+          BackendProto.ConditionalUpdateResponse.newBuilder().setRepType(Common.RepType.BUSY).build();
+      if (userLockManager.tryWriteLock(userId, DalvConfig.getInt(DalvConfig.LOCK_TIMEOUT))) {
         try {
-          op = Common.Operation.newBuilder()
-              .setKey(request.getKey())
-              .setType(Common.OpType.DEL)
-              .build();
-          storageService.addOperation(request.getUserId(), op);
-          response = BackendProto.DelResponse.newBuilder().setRepType(Common.RepType.OK).build();
+          response = commit.get();
         } finally {
-          userLockManager.releaseWriteLock(request.getUserId());
+          userLockManager.releaseWriteLock(userId);
         }
-      } else {
-        response = BackendProto.DelResponse.newBuilder().setRepType(Common.RepType.NOK).build();
       }
       responseObserver.onNext(response);
       responseObserver.onCompleted();
-      if (response.getRepType() == Common.RepType.OK)
-        watchManager.notifyChange(request.getUserId(), op);
     } catch (InternalServerException | InterruptedException e) {
       logger.error(e.getMessage(), e);
       responseObserver.onError(e);
     }
   }
 
-  @Override
-  public void addToList(BackendProto.AddToListRequest request, StreamObserver<BackendProto.AddToListResponse> responseObserver) {
-    logger.debug("ADD_TO_LIST command received: userId:{} listKey:{}", request.getUserId(), request.getListKey());
-    BackendProto.AddToListResponse response;
-    Common.Operation op = null;
-    try {
-      if (userLockManager.tryWriteLock(request.getUserId(), DalvConfig.getInt(DalvConfig.LOCK_TIMEOUT))) {
-        try {
-          op = Common.Operation.newBuilder()
-              .setKey(request.getListKey())
-              .setType(Common.OpType.ADD_TO_LIST)
-              .setVal(request.getValue())
-              .build();
-          storageService.addOperation(request.getUserId(), op);
-          response = BackendProto.AddToListResponse.newBuilder().setRepType(Common.RepType.OK).build();
-        } finally {
-          userLockManager.releaseWriteLock(request.getUserId());
-        }
-      } else {
-        response = BackendProto.AddToListResponse.newBuilder().setRepType(Common.RepType.NOK).build();
+  /**
+   * the snapshots are written by the server alone, a backend could only send the operations it has a typed request for
+   */
+  private static boolean validOperations(BackendProto.ConditionalUpdateRequest request) {
+    if (request.getOpsCount() == 0) return false;
+    for (Common.Operation op : request.getOpsList()) {
+      switch (op.getType()) {
+        case PUT:
+        case DEL:
+        case ADD_TO_LIST:
+        case REMOVE_FROM_LIST:
+          break;
+        default:
+          return false;
       }
-    responseObserver.onNext(response);
-    responseObserver.onCompleted();
-    if (response.getRepType() == Common.RepType.OK)
-      watchManager.notifyChange(request.getUserId(), op);
-    } catch (InternalServerException | InterruptedException e) {
-      logger.error(e.getMessage(), e);
-      responseObserver.onError(e);
     }
+    return true;
   }
 
-  @Override
-  public void removeFromList(BackendProto.RemoveFromListRequest request, StreamObserver<BackendProto.RemoveFromListResponse> responseObserver) {
+  /**
+   * persist a single operation of a user, the storage notifies the watchers. In the mailbox mode the operation is queued in the
+   * user's mailbox and the response is sent once it is persisted, otherwise it is persisted under the user write lock.
+   */
+  private <T> void write(String userId, Common.Operation op, StreamObserver<T> responseObserver, T ok, T nok) {
+    if (mailboxExecutor != null) {
+      mailboxExecutor.write(userId, op).whenComplete((ignored, e) -> {
+        if (e != null) {
+          logger.error(e.getMessage(), e);
+          responseObserver.onError(e);
+          return;
+        }
+        responseObserver.onNext(ok);
+        responseObserver.onCompleted();
+      });
+      return;
+    }
     try {
-      logger.debug("REMOVE_FROM_LIST command received: userId:{} listKey:{}", request.getUserId(), request.getListKey());
-      BackendProto.RemoveFromListResponse response;
-      Common.Operation op = null;
-      if (userLockManager.tryWriteLock(request.getUserId(), DalvConfig.getInt(DalvConfig.LOCK_TIMEOUT))) {
+      boolean persisted = false;
+      if (userLockManager.tryWriteLock(userId, DalvConfig.getInt(DalvConfig.LOCK_TIMEOUT))) {
         try {
-
-          op = Common.Operation.newBuilder()
-              .setKey(request.getListKey())
-              .setType(Common.OpType.REMOVE_FROM_LIST)
-              .setVal(request.getValue())
-              .build();
-          storageService.addOperation(request.getUserId(), op);
-          response = BackendProto.RemoveFromListResponse.newBuilder().setRepType(Common.RepType.OK).build();
+          storageService.addOperation(userId, op);
+          persisted = true;
         } finally {
-          userLockManager.releaseWriteLock(request.getUserId());
+          userLockManager.releaseWriteLock(userId);
         }
-      } else {
-        response = BackendProto.RemoveFromListResponse.newBuilder().setRepType(Common.RepType.NOK).build();
       }
-      responseObserver.onNext(response);
+      responseObserver.onNext(persisted ? ok : nok);
       responseObserver.onCompleted();
-      if (response.getRepType() == Common.RepType.OK)
-        watchManager.notifyChange(request.getUserId(), op);
     } catch (InternalServerException | InterruptedException e) {
       logger.error(e.getMessage(), e);
       responseObserver.onError(e);
@@ -195,7 +258,16 @@ public class BackendServiceImpl extends BackendServerGrpc.BackendServerImplBase
   @Override
   public void watch(BackendProto.WatchRequest request, StreamObserver<BackendProto.WatchResponse> responseObserver) {
     logger.debug("BACKEND WATCH command received on key:{}", request.getKey());
-    watchManager.addBackendWatch(request.getKey(), responseObserver);
+    OperationFilter filter;
+    try {
+      filter = OperationFilter.of(request.getFilter());
+    } catch (IllegalArgumentException e) {
+      responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+      return;
+    }
+    //an uint32 of the proto, the large values should not turn negative
+    watchManager.addBackendWatch(request.getKey(), request.getGroup(), filter,
+        Integer.toUnsignedLong(request.getConflateDelay()), request.getResumeToken(), responseObserver);
     logger.debug("BACKEND WATCH command processed on key:{}", request.getKey());
   }
 
@@ -218,4 +290,81 @@ public class BackendServiceImpl extends BackendServerGrpc.BackendServerImplBase
     responseObserver.onCompleted();
     logger.debug("BACKEND WATCH CANCEL ALL command processed");
   }
+
+  @Override
+  public void changes(BackendProto.ChangesRequest request,
+                      StreamObserver<BackendProto.ChangesResponse> responseObserver) {
+    logger.debug("BACKEND CHANGES command received after:{}, consumer:{}", request.getAfter(), request.getConsumer());
+    long after = request.getAfter();
+    try {
+      if (after == 0 && !request.getConsumer().isEmpty())
+        after = storageService.committedOffset(request.getConsumer());
+    } catch (InternalServerException e) {
+      logger.error(e.getMessage(), e);
+      responseObserver.onError(e);
+      return;
+    }
+    changeFeed.subscribe(after, responseObserver);
+  }
+
+  @Override
+  public void commitOffset(BackendProto.CommitOffsetRequest request,
+                           StreamObserver<BackendProto.CommitOffsetResponse> responseObserver) {
+    logger.debug("BACKEND COMMIT OFFSET command received consumer:{}, offset:{}", request.getConsumer(),
+        request.getOffset());
+    if (request.getConsumer().isEmpty()) {
+      responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("consumer is empty").asRuntimeException());
+      return;
+    }
+    try {
+      storageService.commitOffset(request.getConsumer(), request.getOffset());
+      responseObserver.onNext(BackendProto.CommitOffsetResponse.newBuilder().setRepType(Common.RepType.OK).build());
+      responseObserver.onCompleted();
+    } catch (InternalServerException e) {
+      logger.error(e.getMessage(), e);
+      responseObserver.onError(e);
+    }
+  }
+
+  @Override
+  public void scan(BackendProto.ScanRequest request, StreamObserver<BackendProto.ScanResponse> responseObserver) {
+    logger.debug("BACKEND SCAN command received mode:{}", request.getMode());
+    String dir = DalvConfig.getStr(DalvConfig.SCAN_DIR);
+    if (scanner == null || dir.isEmpty()) {
+      responseObserver.onError(Status.FAILED_PRECONDITION.withDescription("scan directory is not configured")
+          .asRuntimeException());
+      return;
+    }
+    ParallelScanner.Mode mode;
+    try {
+      mode = ParallelScanner.Mode.valueOf(request.getMode().name());
+    } catch (IllegalArgumentException e) {
+      responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("unknown scan mode").asRuntimeException());
+      return;
+    }
+    //a scan reads the whole node, so a single one runs at a time
+    if (!scanning.compareAndSet(false, true)) {
+      responseObserver.onNext(BackendProto.ScanResponse.newBuilder().setRepType(Common.RepType.BUSY).build());
+      responseObserver.onCompleted();
+      return;
+    }
+    try {
+      Path file = Files.createDirectories(Paths.get(dir))
+          .resolve("scan-" + mode.name().toLowerCase() + "-" + System.currentTimeMillis());
+      try (FramedFileScanSink sink = new FramedFileScanSink(file.toString())) {
+        scanner.scan(mode, sink);
+      }
+      logger.info("BACKEND SCAN written to {}", file);
+      responseObserver.onNext(BackendProto.ScanResponse.newBuilder()
+          .setRepType(Common.RepType.OK)
+          .setFile(file.toString())
+          .build());
+      responseObserver.onCompleted();
+    } catch (IOException | InternalServerException e) {
+      logger.error(e.getMessage(), e);
+      responseObserver.onError(Status.INTERNAL.withDescription("could not write the scan").asRuntimeException());
+    } finally {
+      scanning.set(false);
+    }
+  }
 }
@@ -18,34 +18,67 @@
 package org.dalvdb.service.client;
 
 import dalv.common.Common;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import io.jsonwebtoken.*;
 import io.jsonwebtoken.security.SecurityException;
 import org.dalvdb.DalvConfig;
 import org.dalvdb.exception.InternalServerException;
 import org.dalvdb.lock.UserLockManager;
+import org.dalvdb.mailbox.MailboxExecutor;
 import org.dalvdb.proto.ClientProto;
 import org.dalvdb.proto.ClientServerGrpc;
+import org.dalvdb.storage.ChangeListener;
 import org.dalvdb.storage.StorageService;
 import org.dalvdb.watch.WatchManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
 
 public class ClientServerImpl extends ClientServerGrpc.ClientServerImplBase {
   private static final Logger logger = LoggerFactory.getLogger(ClientServerImpl.class);
   private final StorageService storage;
   private final UserLockManager userLockManager;
   private final WatchManager watchManager;
+  private final MailboxExecutor mailboxExecutor;
   private final JwtParser parser = Jwts.parserBuilder()
       .setSigningKey(DalvConfig.getStr(DalvConfig.JWT_SIGN)).build();
+  private final Map<String, Set<SyncSession>> syncSessions = new ConcurrentHashMap<>();
+  //pushes the commits of the users to their sync sessions
+  private final ChangeListener sessionListener = (userId, operations, sequence, stableSequence) -> {
+    Set<SyncSession> sessions = syncSessions.get(userId);
+    if (sessions != null)
+      sessions.forEach(SyncSession::refresh);
+  };
+  //reads the deltas of the sync sessions in the lock mode, null in the mailbox mode
+  private final ScheduledExecutorService sessionExecutor;
 
-  public ClientServerImpl(StorageService storage, WatchManager watchManager) {
+  /**
+   * @param mailboxExecutor executor of the mailbox mode, null means the handlers use user locks
+   */
+  public ClientServerImpl(StorageService storage, WatchManager watchManager, MailboxExecutor mailboxExecutor) {
     this.storage = storage;
     this.userLockManager = UserLockManager.getInstance();
     this.watchManager = watchManager;
+    this.mailboxExecutor = mailboxExecutor;
+    this.sessionExecutor = mailboxExecutor == null ?
+        Executors.newScheduledThreadPool(DalvConfig.getInt(DalvConfig.SYNC_SESSION_THREAD_NUM)) : null;
+    storage.addChangeListener(sessionListener);
   }
 
   @Override
@@ -53,10 +86,117 @@ public class ClientServerImpl extends ClientServerGrpc.ClientServerImplBase {
     logger.debug("CLIENT WATCH command received on key:{}", request.getKey());
     String jwt = request.getJwt();
     String userId = validate(jwt);
-    watchManager.addClientWatch(userId, request.getKey(), responseObserver);
+    //an uint32 of the proto, the large values should not turn negative
+    long conflateDelay = Integer.toUnsignedLong(request.getConflateDelay());
+    if (request.getLastSnapshotId() == 0) {
+      watchManager.addClientWatch(userId, request.getKey(), conflateDelay, Collections.emptyList(), responseObserver);
+    } else {
+      //the handlers of the call are set on this thread, the key could be registered later in the user's mailbox
+      watchManager.openClientWatch(responseObserver, conflateDelay);
+      resumeWatch(userId, Collections.singletonList(request.getKey()), conflateDelay,
+          request.getLastSnapshotId(), responseObserver,
+          e -> watchManager.closeClientWatch(responseObserver, Status.fromThrowable(e)));
+    }
     logger.debug("CLIENT WATCH command processed on key:{}", request.getKey());
   }
 
+  /**
+   * a single watch call for all the keys of the client. The call is authorized by the jwt of its first message and
+   * every key is registered on the same stream, so the client holds one call however many keys it watches
+   */
+  @Override
+  public StreamObserver<ClientProto.WatchStreamRequest> watchStream(
+      StreamObserver<ClientProto.WatchResponse> responseObserver) {
+    watchManager.openClientWatch(responseObserver);
+    return new StreamObserver<ClientProto.WatchStreamRequest>() {
+      //gRPC serializes the calls of a request observer
+      private String userId;
+      private boolean closed;
+
+      @Override
+      public void onNext(ClientProto.WatchStreamRequest request) {
+        if (closed) return;
+        if (userId == null) {
+          userId = validate(request.getJwt());
+          if (userId == null) {
+            closed = true;
+            watchManager.closeClientWatch(responseObserver,
+                Status.UNAUTHENTICATED.withDescription("invalid jwt"));
+            return;
+          }
+        }
+        logger.debug("CLIENT WATCH STREAM command received: subscribe:{}, unsubscribe:{}",
+            request.getSubscribeList(), request.getUnsubscribeList());
+        for (String key : request.getUnsubscribeList())
+          watchManager.cancelClientWatch(userId, key, responseObserver);
+        if (request.getSubscribeCount() == 0) return;
+        if (request.getLastSnapshotId() == 0) {
+          for (String key : request.getSubscribeList())
+            watchManager.addClientWatch(userId, key, 0, Collections.emptyList(), responseObserver);
+        } else {
+          resumeWatch(userId, request.getSubscribeList(), 0, request.getLastSnapshotId(), responseObserver,
+              e -> watchManager.closeClientWatch(responseObserver, Status.fromThrowable(e)));
+        }
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        //the call is cancelled, the stream is already closed by its cancel handler
+        closed = true;
+        watchManager.closeClientWatch(responseObserver, null);
+      }
+
+      @Override
+      public void onCompleted() {
+        closed = true;
+        watchManager.closeClientWatch(responseObserver, null);
+      }
+    };
+  }
+
+  /**
+   * register the watches with the operations after the client's last snapshot. The user is held exclusively meanwhile,
+   * so no commit is missed between reading the operations and registering the watches. The stream of the call should
+   * be already opened, the registration could run on a mailbox worker after the handler returns
+   *
+   * @param onFailure closes the watch call if the watches could not be registered
+   */
+  private void resumeWatch(String userId, List<String> keys, long conflateDelay, int lastSnapshotId,
+                           StreamObserver<ClientProto.WatchResponse> responseObserver,
+                           Consumer<Throwable> onFailure) {
+    Runnable register = () -> {
+      List<Common.Operation> replay = storage.get(userId, lastSnapshotId);
+      for (String key : keys)
+        watchManager.addClientWatch(userId, key, conflateDelay, replay, responseObserver);
+    };
+    if (mailboxExecutor != null) {
+      mailboxExecutor.submit(userId, () -> {
+        register.run();
+        return null;
+      }).whenComplete((ignored, e) -> {
+        if (e != null) {
+          logger.error(e.getMessage(), e);
+          onFailure.accept(e);
+        }
+      });
+      return;
+    }
+    try {
+      if (!userLockManager.tryWriteLock(userId, DalvConfig.getInt(DalvConfig.LOCK_TIMEOUT))) {
+        onFailure.accept(Status.UNAVAILABLE.withDescription("user is busy").asRuntimeException());
+        return;
+      }
+      try {
+        register.run();
+      } finally {
+        userLockManager.releaseWriteLock(userId);
+      }
+    } catch (InterruptedException e) {
+      logger.error(e.getMessage(), e);
+      onFailure.accept(e);
+    }
+  }
+
   @Override
   public void watchCancel(ClientProto.WatchCancelRequest request,
                           StreamObserver<ClientProto.WatchCancelResponse> responseObserver) {
@@ -81,6 +221,24 @@ public class ClientServerImpl extends ClientServerGrpc.ClientServerImplBase {
     logger.debug("CLIENT WATCH CANCEL ALL command processed");
   }
 
+  @Override
+  public StreamObserver<ClientProto.SyncSessionRequest> syncSession(
+      StreamObserver<ClientProto.SyncSessionResponse> responseObserver) {
+    return new SyncSession(responseObserver);
+  }
+
+  /**
+   * stop pushing to the sync sessions and close them
+   */
+  public void close() {
+    storage.removeChangeListener(sessionListener);
+    for (Set<SyncSession> sessions : syncSessions.values())
+      for (SyncSession session : sessions)
+        session.fail(Status.UNAVAILABLE.withDescription("server is shutting down"));
+    if (sessionExecutor != null)
+      sessionExecutor.shutdownNow();
+  }
+
   @Override
   public void sync(ClientProto.SyncRequest request, StreamObserver<ClientProto.SyncResponse> responseObserver) {
     String jwt = request.getJwt();
@@ -95,74 +253,339 @@ public class ClientServerImpl extends ClientServerGrpc.ClientServerImplBase {
       responseObserver.onCompleted();
       return;
     }
+    if (request.getOpsCount() == 0) {
+      res = readWithoutLock(userId, request.getLastSnapshotId());
+      if (res != null) {
+        responseObserver.onNext(res);
+        responseObserver.onCompleted();
+        return;
+      }
+    }
+    if (mailboxExecutor != null) {
+      mailboxExecutor.submit(userId, () -> process(userId, request)).whenComplete((response, e) -> {
+        if (e != null) {
+          logger.error(e.getMessage(), e);
+          responseObserver.onError(e);
+          return;
+        }
+        responseObserver.onNext(response);
+        responseObserver.onCompleted();
+      });
+      return;
+    }
     try {
-      res = handleSync(userId, request);
+      res = handleSync(userId, () -> process(userId, request), ClientServerImpl::busy);
     } catch (InternalServerException e) {
       logger.error(e.getMessage(), e);
       responseObserver.onError(e);
+      return;
     }
     responseObserver.onNext(res);
     responseObserver.onCompleted();
-    watchManager.notifyChange(userId, request.getOpsList());
   }
 
-  private ClientProto.SyncResponse handleSync(String userId, ClientProto.SyncRequest request)
+  /**
+   * answer a read-only sync from a point-in-time view of the storage without the user lock. It is possible as long
+   * as the changes already end with a snapshot, so no new snapshot is needed. A client which is already current is
+   * answered from memory without reading the log
+   *
+   * @return the response or null if a new snapshot should be created under the user lock
+   */
+  private ClientProto.SyncResponse readWithoutLock(String userId, int lastSnapshotId) {
+    if (storage.isLatestSnapshot(userId, lastSnapshotId))
+      return ClientProto.SyncResponse.newBuilder()
+          .setSyncResponse(Common.RepType.OK)
+          .setSnapshotId(lastSnapshotId)
+          .build();
+    List<Common.Operation> ops = storage.get(userId, lastSnapshotId);
+    if (!ops.isEmpty() && ops.get(ops.size() - 1).getType() != Common.OpType.SNAPSHOT)
+      return null;
+    return ClientProto.SyncResponse.newBuilder()
+        .setSyncResponse(Common.RepType.OK)
+        .addAllOps(ops)
+        .setSnapshotId(ops.isEmpty() ? lastSnapshotId : ops.get(ops.size() - 1).getSnapshotId())
+        .build();
+  }
+
+  /**
+   * handle the sync under the user write lock. The sync waits in the fair queue of the user lock as long as its wait
+   * budget allows, if the estimated wait is longer it fails fast by a BUSY response which tells the client when to
+   * retry
+   *
+   * @param busy builds the BUSY response from the milliseconds the client should wait
+   */
+  private <T> T handleSync(String userId, Supplier<T> action, LongFunction<T> busy)
       throws InternalServerException {
+    long budget = waitBudget();
+    long estimatedWait = userLockManager.estimatedWriteWait(userId);
+    if (estimatedWait > budget) {
+      userLockManager.metrics().recordBusy(userId);
+      return busy.apply(estimatedWait);
+    }
     try {
-      if (request.getOpsList() != null && request.getOpsList().size() > 0) {
-        return handleSyncWithUpdate(userId, request);
-      } else {
-        return handleSyncWithoutUpdate(userId, request);
+      if (userLockManager.tryWriteLock(userId, budget)) {
+        try {
+          return action.get();
+        } finally {
+          userLockManager.releaseWriteLock(userId);
+        }
       }
     } catch (InterruptedException e) {
       throw new InternalServerException(e);
     }
+    return busy.apply(Math.max(userLockManager.estimatedWriteWait(userId), budget));
   }
 
-  private ClientProto.SyncResponse handleSyncWithoutUpdate(String userId, ClientProto.SyncRequest request) throws InterruptedException {
-    ClientProto.SyncResponse.Builder resBuilder = ClientProto.SyncResponse.newBuilder();
-    //TODO: maybe it's better to retry for a limited time if it cannot acquire the lock
-    if (userLockManager.tryReadLock(userId, DalvConfig.getInt(DalvConfig.LOCK_TIMEOUT))) {
-      try {
-        read(userId, request.getLastSnapshotId(), resBuilder);
-        resBuilder.setSyncResponse(Common.RepType.OK);
-        return resBuilder.build();
-      } finally {
-        userLockManager.releaseReadLock(userId);
-      }
-    }
-    resBuilder.setSyncResponse(Common.RepType.NOK);
-    return resBuilder.build();
+  /**
+   * @return the time a sync could wait for the user lock, bounded by the lock.max.wait config and half of the
+   * remaining time to the deadline of the call, so there is still time to handle the sync after the wait
+   */
+  private static long waitBudget() {
+    long budget = DalvConfig.getInt(DalvConfig.LOCK_MAX_WAIT);
+    Deadline deadline = Context.current().getDeadline();
+    if (deadline != null)
+      budget = Math.min(budget, deadline.timeRemaining(TimeUnit.MILLISECONDS) / 2);
+    return Math.max(0, budget);
+  }
+
+  private static ClientProto.SyncResponse busy(long retryAfter) {
+    return ClientProto.SyncResponse.newBuilder()
+        .setSyncResponse(Common.RepType.BUSY)
+        .setRetryAfter(retryAfter(retryAfter))
+        .build();
+  }
+
+  private static int retryAfter(long wait) {
+    return (int) Math.min(Integer.MAX_VALUE, Math.max(1, wait));
   }
 
-  private ClientProto.SyncResponse handleSyncWithUpdate(String userId, ClientProto.SyncRequest request) throws InterruptedException {
+  private ClientProto.SyncResponse process(String userId, ClientProto.SyncRequest request) {
+    return process(userId, request.getOpsList(), request.getLastSnapshotId());
+  }
+
+  /**
+   * persist the operations of the sync request if any and read the changes since the client's last snapshot. The
+   * caller should have exclusive access to the user, by the user lock or by the user's mailbox.
+   * <p>
+   * Committed operations are followed by a snapshot in the same write and acknowledged by their count, the response
+   * only carries the changes of the other parties. A read-only sync creates a snapshot only if there are changes
+   * after the client's one
+   */
+  private ClientProto.SyncResponse process(String userId, List<Common.Operation> ops, int lastSnapshotId) {
     ClientProto.SyncResponse.Builder resBuilder = ClientProto.SyncResponse.newBuilder();
-    //TODO: maybe it's better to retry for a limited time if it cannot acquire the lock
-    if (userLockManager.tryWriteLock(userId, DalvConfig.getInt(DalvConfig.LOCK_TIMEOUT))) {
-      try {
-        boolean updatesHandledSuccessfully = storage.handleOperations(userId, request.getOpsList(), request.getLastSnapshotId());
-        resBuilder.setSyncResponse(updatesHandledSuccessfully ? Common.RepType.OK : Common.RepType.NOK);
-        read(userId, request.getLastSnapshotId(), resBuilder);
-        return resBuilder.build();
-      } finally {
-        userLockManager.releaseWriteLock(userId);
-      }
+    if (ops.isEmpty()) {
+      resBuilder.setSyncResponse(Common.RepType.OK);
+      read(userId, lastSnapshotId, resBuilder);
+      return resBuilder.build();
     }
-    resBuilder.setSyncResponse(Common.RepType.NOK);
-    return resBuilder.build();
+    List<Common.Operation> unseen = storage.handleOperationsAndSnapshot(userId, ops, lastSnapshotId);
+    if (unseen == null) {
+      resBuilder.setSyncResponse(Common.RepType.NOK);
+      read(userId, lastSnapshotId, resBuilder);
+      return resBuilder.build();
+    }
+    return resBuilder.setSyncResponse(Common.RepType.OK)
+        .addAllOps(unseen)
+        .setSnapshotId(unseen.get(unseen.size() - 1).getSnapshotId())
+        .setAcknowledgedOps(ops.size())
+        .build();
   }
 
   private void read(String userId, int lastSnapshotId,
                     ClientProto.SyncResponse.Builder responseBuilder) {
     List<Common.Operation> ops = storage.get(userId, lastSnapshotId);
     responseBuilder.addAllOps(ops);
-    if (ops.isEmpty() || ops.get(ops.size() - 1).getType() == Common.OpType.SNAPSHOT) {
+    if (ops.isEmpty()) {
       responseBuilder.setSnapshotId(lastSnapshotId);
+    } else if (ops.get(ops.size() - 1).getType() == Common.OpType.SNAPSHOT) {
+      responseBuilder.setSnapshotId(ops.get(ops.size() - 1).getSnapshotId());
     } else {
       responseBuilder.setSnapshotId(storage.snapshot(userId));
     }
   }
 
+  /**
+   * The server side of a sync session. The session is authorized by its first message, which also sets the position
+   * of the client, the snapshot id it is synced to. A pushed batch is committed against the position like a sync, and
+   * every commit of the user is pushed to the client as a delta after the position. Each response moves the position
+   * to its snapshot id.
+   * <p>
+   * The position is only read and changed with exclusive access to the user, by the user's mailbox or the user lock,
+   * so a delta never races a batch. A burst of commits is pushed by a single delta.
+   */
+  private final class SyncSession implements StreamObserver<ClientProto.SyncSessionRequest> {
+    private final StreamObserver<ClientProto.SyncSessionResponse> responseObserver;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    //set by the first message
+    private volatile String userId;
+    private volatile boolean closed;
+    //guarded by the exclusive access to the user
+    private int position;
+
+    SyncSession(StreamObserver<ClientProto.SyncSessionResponse> responseObserver) {
+      this.responseObserver = responseObserver;
+    }
+
+    @Override
+    public void onNext(ClientProto.SyncSessionRequest request) {
+      if (closed) return;
+      if (userId == null) {
+        String user = validate(request.getJwt());
+        if (user == null) {
+          fail(Status.UNAUTHENTICATED.withDescription("invalid jwt"));
+          return;
+        }
+        userId = user;
+        //registered in the same compute as the removal of close, so a closed session is never registered
+        syncSessions.compute(user, (u, sessions) -> {
+          if (closed) return sessions;
+          if (sessions == null)
+            sessions = ConcurrentHashMap.newKeySet();
+          sessions.add(this);
+          return sessions;
+        });
+      }
+      logger.debug("SYNC SESSION batch received: userId:{}, batchId:{}, operations:{}",
+          userId, request.getBatchId(), request.getOpsList());
+      Supplier<ClientProto.SyncSessionResponse> batch = () -> {
+        if (request.getLastSnapshotId() != 0)
+          position = request.getLastSnapshotId();
+        return advance(request.getOpsList(), request.getBatchId());
+      };
+      if (mailboxExecutor != null) {
+        mailboxExecutor.submit(userId, batch).whenComplete(this::sent);
+        return;
+      }
+      try {
+        sent(handleSync(userId, batch, retry -> ClientProto.SyncSessionResponse.newBuilder()
+            .setSyncResponse(Common.RepType.BUSY)
+            .setRetryAfter(retryAfter(retry))
+            .setBatchId(request.getBatchId())
+            .build()), null);
+      } catch (RuntimeException e) {
+        sent(null, e);
+      }
+    }
+
+    /**
+     * push the commits of the user after the position, a delta which is already scheduled covers the new commit
+     */
+    void refresh() {
+      if (closed || !refreshing.compareAndSet(false, true)) return;
+      if (mailboxExecutor != null) {
+        mailboxExecutor.submit(userId, this::delta).whenComplete(this::sent);
+        return;
+      }
+      try {
+        sessionExecutor.execute(() -> tryRefresh(0));
+      } catch (RuntimeException e) {
+        sent(null, e);
+      }
+    }
+
+    /**
+     * read the delta if the user is free, otherwise try again after a backoff. No thread waits for the user lock, so a
+     * held user does not stall the deltas of the other users
+     */
+    private void tryRefresh(int attempt) {
+      try {
+        if (!userLockManager.tryWriteLock(userId, 0)) {
+          long delay = Math.min((long) DalvConfig.getInt(DalvConfig.SYNC_SESSION_RETRY_DELAY) << Math.min(attempt, 16),
+              DalvConfig.getInt(DalvConfig.LOCK_MAX_WAIT));
+          sessionExecutor.schedule(() -> tryRefresh(attempt + 1), delay, TimeUnit.MILLISECONDS);
+          return;
+        }
+        ClientProto.SyncSessionResponse response;
+        try {
+          response = delta();
+        } finally {
+          userLockManager.releaseWriteLock(userId);
+        }
+        sent(response, null);
+      } catch (InterruptedException | RuntimeException e) {
+        sent(null, e);
+      }
+    }
+
+    /**
+     * the commits after the position, the caller should have exclusive access to the user
+     */
+    private ClientProto.SyncSessionResponse delta() {
+      //a commit from now on schedules another delta
+      refreshing.set(false);
+      return closed ? null : advance(Collections.emptyList(), 0);
+    }
+
+    /**
+     * commit the operations against the position and read the delta after it, then move the position to the
+     * snapshot of the response. The caller should have exclusive access to the user
+     *
+     * @return the response or null if it is a delta without any operation
+     */
+    private ClientProto.SyncSessionResponse advance(List<Common.Operation> ops, long batchId) {
+      int from = position;
+      ClientProto.SyncResponse response = process(userId, ops, from);
+      position = response.getSnapshotId();
+      if (batchId == 0 && response.getOpsCount() == 0)
+        return null;
+      return ClientProto.SyncSessionResponse.newBuilder()
+          .setSyncResponse(response.getSyncResponse())
+          .setSnapshotId(response.getSnapshotId())
+          .addAllOps(response.getOpsList())
+          .setBatchId(batchId)
+          .setLastSnapshotId(from)
+          .setAcknowledgedOps(response.getAcknowledgedOps())
+          .build();
+    }
+
+    private void sent(ClientProto.SyncSessionResponse response, Throwable e) {
+      if (e != null) {
+        logger.error(e.getMessage(), e);
+        fail(Status.INTERNAL.withDescription("could not sync"));
+      } else if (response != null) {
+        send(response);
+      }
+    }
+
+    private synchronized void send(ClientProto.SyncSessionResponse response) {
+      if (closed) return;
+      try {
+        responseObserver.onNext(response);
+      } catch (RuntimeException e) {
+        //the call is already cancelled by the client
+        logger.debug("could not deliver to the sync session", e);
+        close();
+      }
+    }
+
+    synchronized void fail(Status status) {
+      if (closed) return;
+      close();
+      responseObserver.onError(status.asRuntimeException());
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      close();
+    }
+
+    @Override
+    public synchronized void onCompleted() {
+      if (closed) return;
+      close();
+      responseObserver.onCompleted();
+    }
+
+    private void close() {
+      closed = true;
+      if (userId == null) return;
+      syncSessions.computeIfPresent(userId, (u, sessions) -> {
+        sessions.remove(this);
+        return sessions.isEmpty() ? null : sessions;
+      });
+    }
+  }
+
   private String validate(String jwt) {
     String userId;
     try {
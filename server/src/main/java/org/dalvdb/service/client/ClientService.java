@@ -20,6 +20,9 @@ package org.dalvdb.service.client;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import org.dalvdb.DalvConfig;
+import org.dalvdb.mailbox.MailboxExecutor;
+import org.dalvdb.proto.ClientServerGrpc;
+import org.dalvdb.watch.SharedMessages;
 import org.dalvdb.watch.WatchManager;
 import org.dalvdb.storage.StorageService;
 import org.slf4j.Logger;
@@ -32,10 +35,18 @@ import java.util.concurrent.TimeUnit;
 public class ClientService implements Closeable {
   private static final Logger logger = LoggerFactory.getLogger(ClientService.class);
   private final Server server;
+  private final ClientServerImpl clientServer;
 
-  public ClientService(StorageService storageService, WatchManager watchManager) {
+  /**
+   * @param mailboxExecutor executor of the mailbox mode, null means the handlers use user locks
+   */
+  public ClientService(StorageService storageService, WatchManager watchManager, MailboxExecutor mailboxExecutor) {
     final int port = DalvConfig.getInt(DalvConfig.CLIENT_PORT);
-    server = ServerBuilder.forPort(port).addService(new ClientServerImpl(storageService, watchManager)).build();
+    clientServer = new ClientServerImpl(storageService, watchManager, mailboxExecutor);
+    server = ServerBuilder.forPort(port)
+        .addService(SharedMessages.bind(clientServer.bindService(), ClientServerGrpc.getWatchMethod(),
+            ClientServerGrpc.getWatchStreamMethod()))
+        .build();
     try {
       server.start();
     } catch (IOException e) {
@@ -57,6 +68,8 @@ public class ClientService implements Closeable {
   public void close() {
     if (server != null) {
       try {
+        //the sync sessions never end by themselves
+        clientServer.close();
         server.shutdown().awaitTermination(30, TimeUnit.SECONDS);
         logger.info("Server closed gracefully");
       } catch (InterruptedException e) {
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.dalvdb.storage;
+
+import dalv.common.Common;
+
+import java.util.List;
+
+/**
+ * Receive the committed operations of users from a {@link StorageService}
+ */
+public interface ChangeListener {
+  /**
+   * called on the writing thread right after a commit is persisted, so it should not block
+   *
+   * @param userId         the user identification
+   * @param operations     the operations of the commit
+   * @param sequence       the change sequence of the commit
+   * @param stableSequence the stable sequence of the storage before this commit is counted, all the commits up to it
+   *                       have been already passed to the listener
+   */
+  void onChange(String userId, List<Common.Operation> operations, long sequence, long stableSequence);
+
+  /**
+   * called on the writing thread after a commit is finished and the stable sequence may have moved, so it should not
+   * block. every change up to the stable sequence is readable from the storage
+   */
+  default void onStable(long stableSequence) {
+  }
+}
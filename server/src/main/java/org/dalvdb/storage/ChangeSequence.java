@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.dalvdb.storage;
+
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Node-wide sequence of commits. Commits of different users run in parallel and may finish out of their sequence
+ * order, so besides the last allocated sequence it keeps the in-flight ones to know the stable sequence: the greatest
+ * one which it and all the smaller ones are finished.
+ */
+final class ChangeSequence {
+  private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>();
+  private long last;
+
+  ChangeSequence(long last) {
+    this.last = last;
+  }
+
+  /**
+   * allocate the sequence of a new commit, the commit is in-flight until {@link #end} is called
+   */
+  synchronized long begin() {
+    long sequence = ++last;
+    inFlight.add(sequence);
+    return sequence;
+  }
+
+  void end(long sequence) {
+    inFlight.remove(sequence);
+  }
+
+  synchronized long stable() {
+    Long first = inFlight.ceiling(Long.MIN_VALUE);
+    return first == null ? last : first - 1;
+  }
+}
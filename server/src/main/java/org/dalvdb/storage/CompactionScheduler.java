@@ -19,6 +19,8 @@ package org.dalvdb.storage;
 
 import org.dalvdb.DalvConfig;
 import org.rocksdb.RocksIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.util.Iterator;
@@ -28,6 +30,7 @@ import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 class CompactionScheduler implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(CompactionScheduler.class);
   private final LinkedHashSet<String> queue = new LinkedHashSet<>();
   private final ScheduledExecutorService compactionEs = new ScheduledThreadPoolExecutor(1);
   private final ScheduledExecutorService addToQueueEs = new ScheduledThreadPoolExecutor(1);
@@ -42,6 +45,8 @@ class CompactionScheduler implements Closeable {
     preFillTheUpdates();
     compactionEs.scheduleWithFixedDelay(this::compaction, DalvConfig.getLong(DalvConfig.COMPACTION_INTERVAL),
         DalvConfig.getLong(DalvConfig.COMPACTION_INTERVAL), TimeUnit.SECONDS);
+    compactionEs.scheduleWithFixedDelay(this::trimChanges, DalvConfig.getLong(DalvConfig.CHANGES_TRIM_INTERVAL),
+        DalvConfig.getLong(DalvConfig.CHANGES_TRIM_INTERVAL), TimeUnit.SECONDS);
   }
 
   void updateReceived(String userId) {
@@ -68,6 +73,15 @@ class CompactionScheduler implements Closeable {
     }
   }
 
+  private void trimChanges() {
+    try {
+      storage.trimChanges();
+    } catch (RuntimeException e) {
+      //a failed run should not cancel the next ones
+      logger.error("could not trim the changes", e);
+    }
+  }
+
   @Override
   public void close() {
     compactionEs.shutdown();
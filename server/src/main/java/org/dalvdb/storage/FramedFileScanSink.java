@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import com.google.protobuf.CodedOutputStream;
+import dalv.common.Common;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * A {@link ScanSink} which writes every user into a single local file as a framed record:
+ * <pre>
+ *   [varint userId length][userId][varint number of operations]([varint operation length][operation])*
+ * </pre>
+ * Operations are serialized by protobuf, so the file could be read back by {@code CodedInputStream}.
+ */
+public class FramedFileScanSink implements ScanSink {
+  private final OutputStream out;
+  private final CodedOutputStream cos;
+
+  public FramedFileScanSink(String file) throws IOException {
+    this.out = new BufferedOutputStream(new FileOutputStream(file));
+    this.cos = CodedOutputStream.newInstance(out);
+  }
+
+  @Override
+  public synchronized void accept(String userId, List<Common.Operation> operations) throws IOException {
+    cos.writeStringNoTag(userId);
+    cos.writeUInt32NoTag(operations.size());
+    for (Common.Operation op : operations)
+      cos.writeMessageNoTag(op);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    cos.flush();
+    out.close();
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-user dictionary of keys used by the v2 log format. Each distinct key of a user gets a small integer id, so the
+ * log records just carry the id instead of the whole key string.
+ * <p>
+ * The dictionary is append-only between two compactions, ids are never reused or changed until the compaction
+ * rewrites the whole log with a fresh dictionary.
+ * <p>
+ * Serialized form: [varint number of keys]([varint key length][key utf-8 bytes])*
+ */
+final class KeyDictionary {
+  private final List<String> keys;
+  private final Map<String, Integer> ids;
+  private boolean modified;
+
+  /**
+   * create an empty dictionary, a new dictionary is considered modified so it would be persisted even if it is empty
+   */
+  KeyDictionary() {
+    this.keys = new ArrayList<>();
+    this.ids = new HashMap<>();
+    this.modified = true;
+  }
+
+  private KeyDictionary(List<String> keys) {
+    this.keys = keys;
+    this.ids = new HashMap<>(keys.size() * 2);
+    for (int i = 0; i < keys.size(); i++)
+      ids.put(keys.get(i), i);
+    this.modified = false;
+  }
+
+  /**
+   * @param bytes serialized dictionary
+   * @return the dictionary or null if bytes is null
+   */
+  static KeyDictionary decode(byte[] bytes) {
+    if (bytes == null) return null;
+    try {
+      CodedInputStream in = CodedInputStream.newInstance(bytes);
+      int size = in.readUInt32();
+      List<String> keys = new ArrayList<>(size);
+      for (int i = 0; i < size; i++)
+        keys.add(in.readString());
+      return new KeyDictionary(keys);
+    } catch (IOException e) {
+      throw new IllegalStateException("corrupted key dictionary", e);
+    }
+  }
+
+  byte[] encode() {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      CodedOutputStream cos = CodedOutputStream.newInstance(out);
+      cos.writeUInt32NoTag(keys.size());
+      for (String key : keys)
+        cos.writeStringNoTag(key);
+      cos.flush();
+      return out.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * get the id of the key, assign a new id if the key does not exist
+   */
+  int idOf(String key) {
+    Integer id = ids.get(key);
+    if (id != null) return id;
+    keys.add(key);
+    ids.put(key, keys.size() - 1);
+    modified = true;
+    return keys.size() - 1;
+  }
+
+  String keyOf(int id) {
+    if (id < 0 || id >= keys.size())
+      throw new IllegalStateException("unknown key id " + id);
+    return keys.get(id);
+  }
+
+  boolean contains(String key) {
+    return ids.containsKey(key);
+  }
+
+  int size() {
+    return keys.size();
+  }
+
+  /**
+   * @return true if the dictionary changed since it was read from the storage, so it should be persisted again
+   */
+  boolean isModified() {
+    return modified;
+  }
+}
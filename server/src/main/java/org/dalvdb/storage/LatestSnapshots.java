@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The snapshot id each user's log ends with, kept in memory so an empty sync of a client which is already current is
+ * answered without reading the log.
+ * <p>
+ * Users are keyed by a 64-bit fingerprint of the user id in open addressing tables of primitive arrays, split into
+ * stripes each guarded by its own {@link StampedLock}. Lookups are optimistic reads which take no lock unless they
+ * race a write of the same stripe. Two users could share a fingerprint, it is as unlikely as a collision of 64 random
+ * bits.
+ * <p>
+ * Every entry has an epoch which is bumped whenever the log of the user is written. A reader takes the version before
+ * reading the storage and records the snapshot only if the version is unchanged, so a snapshot id is never recorded
+ * after a newer write. The writes of the users without an entry bump the epoch of their stripe instead, so the map
+ * only holds the users which are read.
+ */
+final class LatestSnapshots {
+  private static final HashFunction FINGERPRINT = Hashing.murmur3_128();
+  private static final int STRIPE_BITS = 6;
+  private static final int INITIAL_CAPACITY = 16;
+  private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+  LatestSnapshots() {
+    for (int i = 0; i < stripes.length; i++)
+      stripes[i] = new Stripe();
+  }
+
+  /**
+   * @return true if the log of the user is known to end with the snapshot, false means it is unknown
+   */
+  boolean isLatest(String userId, int snapshotId) {
+    if (snapshotId <= 0) return false;
+    long key = fingerprint(userId);
+    return stripe(key).isLatest(key, snapshotId);
+  }
+
+  /**
+   * @return the version to pass to {@link #put(String, int, long)}, it should be taken before the log is read
+   */
+  long version(String userId) {
+    long key = fingerprint(userId);
+    return stripe(key).version(key);
+  }
+
+  /**
+   * record the snapshot the log ends with, unless the log is written after the version was taken
+   */
+  void put(String userId, int snapshotId, long version) {
+    long key = fingerprint(userId);
+    stripe(key).put(key, snapshotId, version);
+  }
+
+  /**
+   * record a write of the log which ends with the snapshot, instead of {@link #invalidate(String)}. The writes of a
+   * user should not run concurrently
+   */
+  void written(String userId, int snapshotId) {
+    long key = fingerprint(userId);
+    stripe(key).written(key, snapshotId);
+  }
+
+  /**
+   * forget the latest snapshot of the user, it should be called after every write of the log
+   */
+  void invalidate(String userId) {
+    long key = fingerprint(userId);
+    stripe(key).invalidate(key);
+  }
+
+  private Stripe stripe(long key) {
+    return stripes[(int) (key >>> (Long.SIZE - STRIPE_BITS))];
+  }
+
+  private static long fingerprint(String userId) {
+    long key = FINGERPRINT.hashString(userId, StandardCharsets.UTF_8).asLong();
+    //zero marks an empty slot
+    return key == 0 ? 1 : key;
+  }
+
+  private static final class Stripe {
+    private final StampedLock lock = new StampedLock();
+    private long[] keys = new long[INITIAL_CAPACITY];
+    //the epoch of the entry in the high half and the snapshot id in the low half, zero snapshot id means unknown
+    private long[] values = new long[INITIAL_CAPACITY];
+    private int size;
+    //bumped by the writes of the users without an entry
+    private long missEpoch;
+
+    boolean isLatest(long key, int snapshotId) {
+      long stamp = lock.tryOptimisticRead();
+      long value = value(key);
+      if (!lock.validate(stamp)) {
+        stamp = lock.readLock();
+        try {
+          value = value(key);
+        } finally {
+          lock.unlockRead(stamp);
+        }
+      }
+      return value >= 0 && (int) value == snapshotId;
+    }
+
+    long version(long key) {
+      long stamp = lock.tryOptimisticRead();
+      long version = versionOf(key);
+      if (!lock.validate(stamp)) {
+        stamp = lock.readLock();
+        try {
+          version = versionOf(key);
+        } finally {
+          lock.unlockRead(stamp);
+        }
+      }
+      return version;
+    }
+
+    void put(long key, int snapshotId, long version) {
+      long stamp = lock.writeLock();
+      try {
+        int slot = slot(keys, key);
+        if (keys[slot] == key) {
+          if (values[slot] >>> 32 == version)
+            values[slot] = version << 32 | (snapshotId & 0xffffffffL);
+        } else if (version == missVersion()) {
+          if (size + 1 > keys.length * 3 / 4) {
+            resize();
+            slot = slot(keys, key);
+          }
+          keys[slot] = key;
+          values[slot] = snapshotId & 0xffffffffL;
+          size++;
+        }
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+    }
+
+    void invalidate(long key) {
+      long stamp = lock.writeLock();
+      try {
+        int slot = slot(keys, key);
+        if (keys[slot] == key)
+          values[slot] = ((values[slot] >>> 32) + 1 & Integer.MAX_VALUE) << 32;
+        else
+          missEpoch++;
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+    }
+
+    void written(long key, int snapshotId) {
+      long stamp = lock.writeLock();
+      try {
+        int slot = slot(keys, key);
+        if (keys[slot] == key)
+          values[slot] = ((values[slot] >>> 32) + 1 & Integer.MAX_VALUE) << 32 | (snapshotId & 0xffffffffL);
+        else
+          missEpoch++;
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+    }
+
+    /**
+     * @return the versions of the users without an entry are negative, so they never match an entry's epoch
+     */
+    private long missVersion() {
+      return -1 - missEpoch;
+    }
+
+    private long versionOf(long key) {
+      long value = value(key);
+      return value >= 0 ? value >>> 32 : missVersion();
+    }
+
+    /**
+     * safe to call without the lock, the result is only used if the stamp is still valid
+     *
+     * @return the value of the key or -1 if it has no entry
+     */
+    private long value(long key) {
+      long[] keys = this.keys;
+      long[] values = this.values;
+      //a resize is in progress
+      if (keys.length != values.length) return -1;
+      int mask = keys.length - 1;
+      for (int i = (int) key & mask, n = 0; n <= mask; i = (i + 1) & mask, n++) {
+        if (keys[i] == key) return values[i];
+        if (keys[i] == 0) return -1;
+      }
+      return -1;
+    }
+
+    /**
+     * @return the slot of the key or the empty slot to insert it at
+     */
+    private static int slot(long[] keys, long key) {
+      int mask = keys.length - 1;
+      int i = (int) key & mask;
+      while (keys[i] != key && keys[i] != 0)
+        i = (i + 1) & mask;
+      return i;
+    }
+
+    private void resize() {
+      long[] newKeys = new long[keys.length * 2];
+      long[] newValues = new long[values.length * 2];
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] == 0) continue;
+        int slot = slot(newKeys, keys[i]);
+        newKeys[slot] = keys[i];
+        newValues[slot] = values[i];
+      }
+      keys = newKeys;
+      values = newValues;
+    }
+  }
+}
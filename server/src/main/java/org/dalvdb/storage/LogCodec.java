@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import dalv.common.Common;
+import org.dalvdb.common.util.ByteUtil;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.zip.CRC32C;
+
+/**
+ * Encode and decode the records of user logs.
+ * <p>
+ * There are two versions of the log format:
+ * <ul>
+ *   <li>v1 (legacy): [protobuf operation][4 bytes big-endian length], written by {@link ByteUtil#opToByte}</li>
+ *   <li>v2: [payload][reversed varint payload length], where payload is
+ *   [varint header][varint key id]?[varint snapshotId]?[varint timestamp]?[value]?[4 bytes CRC32C]?</li>
+ * </ul>
+ * The header of a v2 record keeps the operation type in its lowest 3 bits and flags for the optional parts above
+ * them. Keys are replaced by their id in the user's {@link KeyDictionary}. The length is written at the end of the
+ * record with its bytes reversed, so the log could be read backward as the storage does.
+ * <p>
+ * A user log is either entirely v1 or entirely v2, a user with a key dictionary has a v2 log. Records are separated
+ * by the merge operator separator in both versions.
+ */
+final class LogCodec {
+  static final int TYPE_MASK = 0x07;
+  static final int HAS_KEY = 1 << 3;
+  static final int HAS_VAL = 1 << 4;
+  static final int HAS_SNAPSHOT_ID = 1 << 5;
+  static final int HAS_CRC = 1 << 6;
+  static final int HAS_TIMESTAMP = 1 << 7;
+  private static final int CRC_SIZE = 4;
+
+  private LogCodec() {
+    throw new IllegalStateException();
+  }
+
+  /**
+   * encode an operation to a single log record
+   *
+   * @param op         the operation to encode
+   * @param dictionary the key dictionary of the user, null means the log is in the legacy format
+   * @param checksum   whether add a CRC32C to the record, ignored for the legacy format
+   * @return the encoded record
+   */
+  static byte[] encode(Common.Operation op, KeyDictionary dictionary, boolean checksum) {
+    if (dictionary == null)
+      return ByteUtil.opToByte(op);
+    int header = op.getTypeValue() & TYPE_MASK;
+    int keyId = 0;
+    int payloadLen = 0;
+    if (!op.getKey().isEmpty()) {
+      header |= HAS_KEY;
+      keyId = dictionary.idOf(op.getKey());
+      payloadLen += CodedOutputStream.computeUInt32SizeNoTag(keyId);
+    }
+    if (op.getSnapshotId() != 0) {
+      header |= HAS_SNAPSHOT_ID;
+      payloadLen += CodedOutputStream.computeUInt32SizeNoTag(op.getSnapshotId());
+    }
+    if (op.getTimestamp() != 0) {
+      header |= HAS_TIMESTAMP;
+      payloadLen += CodedOutputStream.computeUInt64SizeNoTag(op.getTimestamp());
+    }
+    if (!op.getVal().isEmpty()) {
+      header |= HAS_VAL;
+      payloadLen += op.getVal().size();
+    }
+    if (checksum) {
+      header |= HAS_CRC;
+      payloadLen += CRC_SIZE;
+    }
+    payloadLen += CodedOutputStream.computeUInt32SizeNoTag(header);
+
+    byte[] record = new byte[payloadLen + CodedOutputStream.computeUInt32SizeNoTag(payloadLen)];
+    try {
+      CodedOutputStream cos = CodedOutputStream.newInstance(record, 0, payloadLen);
+      cos.writeUInt32NoTag(header);
+      if ((header & HAS_KEY) != 0)
+        cos.writeUInt32NoTag(keyId);
+      if ((header & HAS_SNAPSHOT_ID) != 0)
+        cos.writeUInt32NoTag(op.getSnapshotId());
+      if ((header & HAS_TIMESTAMP) != 0)
+        cos.writeUInt64NoTag(op.getTimestamp());
+      if ((header & HAS_VAL) != 0)
+        cos.writeRawBytes(op.getVal());
+      if (checksum)
+        cos.writeFixed32NoTag(crc(record, 0, payloadLen - CRC_SIZE));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    writeReversedVarint(record, payloadLen);
+    return record;
+  }
+
+  /**
+   * @param log        the whole log of a user
+   * @param dictionary the key dictionary of the user, null means the log is in the legacy format
+   * @return an iterator which returns operations from the newest to the oldest
+   */
+  static Iterator<Common.Operation> reverseIterator(byte[] log, KeyDictionary dictionary) {
+    if (dictionary == null)
+      return ByteUtil.getReverseIterator(log);
+    return new ReverseIterator(log, dictionary);
+  }
+
+  private static void writeReversedVarint(byte[] buffer, int value) {
+    int i = buffer.length - 1;
+    while ((value & ~0x7F) != 0) {
+      buffer[i--] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[i] = (byte) value;
+  }
+
+  private static int crc(byte[] bytes, int offset, int len) {
+    CRC32C crc32c = new CRC32C();
+    crc32c.update(bytes, offset, len);
+    return (int) crc32c.getValue();
+  }
+
+  private static Common.Operation decode(byte[] log, int start, int end, KeyDictionary dictionary) throws IOException {
+    CodedInputStream in = CodedInputStream.newInstance(log, start, end - start);
+    int header = in.readUInt32();
+    int valueEnd = end;
+    if ((header & HAS_CRC) != 0) {
+      valueEnd -= CRC_SIZE;
+      int expected = CodedInputStream.newInstance(log, valueEnd, CRC_SIZE).readFixed32();
+      if (expected != crc(log, start, valueEnd - start))
+        throw new IllegalStateException("corrupted log record, checksum mismatch");
+    }
+    Common.Operation.Builder builder = Common.Operation.newBuilder().setTypeValue(header & TYPE_MASK);
+    if ((header & HAS_KEY) != 0)
+      builder.setKey(dictionary.keyOf(in.readUInt32()));
+    if ((header & HAS_SNAPSHOT_ID) != 0)
+      builder.setSnapshotId(in.readUInt32());
+    if ((header & HAS_TIMESTAMP) != 0)
+      builder.setTimestamp(in.readUInt64());
+    if ((header & HAS_VAL) != 0) {
+      int valueStart = start + in.getTotalBytesRead();
+      builder.setVal(ByteString.copyFrom(log, valueStart, valueEnd - valueStart));
+    }
+    return builder.build();
+  }
+
+  private static class ReverseIterator implements Iterator<Common.Operation> {
+    private final byte[] log;
+    private final KeyDictionary dictionary;
+    private int currentIndex;
+
+    ReverseIterator(byte[] log, KeyDictionary dictionary) {
+      this.log = log;
+      this.dictionary = dictionary;
+      this.currentIndex = log == null ? 0 : log.length;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return currentIndex > 0;
+    }
+
+    @Override
+    public Common.Operation next() {
+      int p = currentIndex;
+      int len = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = log[--p];
+        len |= (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      int start = p - len;
+      try {
+        Common.Operation op = decode(log, start, p, dictionary);
+        currentIndex = start - 1; //skip the merge separator
+        return op;
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public void remove() {
+      throw new IllegalStateException("Operation not supported");
+    }
+  }
+}
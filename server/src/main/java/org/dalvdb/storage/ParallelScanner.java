@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import com.google.common.util.concurrent.RateLimiter;
+import dalv.common.Common;
+import org.dalvdb.DalvConfig;
+import org.dalvdb.exception.InternalServerException;
+import org.rocksdb.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Walk all the users stored in a {@link RocksStorageService} and stream their data to a {@link ScanSink}.
+ * <p>
+ * The key space is split into several ranges which are scanned in parallel on a fork-join pool. All the ranges read
+ * from a single RocksDB snapshot, so the result is a consistent point-in-time view of the whole database. The number
+ * of users read per second is limited to make it possible to run a scan on a live node.
+ */
+public class ParallelScanner {
+  private static final int RANGES_PER_THREAD = 4;
+  private final RocksStorageService storage;
+  private final int parallelism;
+  private final RateLimiter rateLimiter;
+
+  /**
+   * What the scanner passes to the sink for each user
+   */
+  public enum Mode {
+    /**
+     * the whole log of the user as it is stored
+     */
+    LOG,
+    /**
+     * the compacted state of the user, which contains just the live keys and list items
+     */
+    STATE
+  }
+
+  public ParallelScanner(RocksStorageService storage) {
+    this(storage, DalvConfig.getInt(DalvConfig.SCAN_PARALLELISM), DalvConfig.getInt(DalvConfig.SCAN_RATE_LIMIT));
+  }
+
+  /**
+   * @param storage        the storage to scan
+   * @param parallelism    number of threads which scan the ranges
+   * @param usersPerSecond maximum number of users passed to the sink per second, zero means unlimited
+   */
+  public ParallelScanner(RocksStorageService storage, int parallelism, int usersPerSecond) {
+    this.storage = storage;
+    this.parallelism = parallelism;
+    this.rateLimiter = usersPerSecond > 0 ? RateLimiter.create(usersPerSecond) : null;
+  }
+
+  /**
+   * Scan all the users and pass them to the sink, blocks until the whole key space is scanned. The sink is not closed
+   * by this method.
+   *
+   * @param mode whether pass the raw log or the compacted state of users
+   * @param sink the destination of the users data
+   * @throws IOException if the sink fails to accept a user
+   */
+  public void scan(Mode mode, ScanSink sink) throws IOException {
+    Snapshot snapshot = storage.newSnapshot();
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      List<byte[]> boundaries = splitKeySpace(snapshot);
+      pool.invoke(new ScanTask(boundaries, 0, boundaries.size() - 1, snapshot, mode, sink));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      pool.shutdown();
+      storage.releaseSnapshot(snapshot);
+    }
+  }
+
+  /**
+   * split the key space between the first and the last existing keys into equal ranges by the first two bytes of
+   * keys. the first and the last boundaries are null which means unbounded
+   */
+  private List<byte[]> splitKeySpace(Snapshot snapshot) {
+    List<byte[]> boundaries = new ArrayList<>();
+    boundaries.add(null);
+    try (ReadOptions ro = new ReadOptions().setSnapshot(snapshot);
+         RocksIterator it = storage.keyIterator(ro)) {
+      it.seekToFirst();
+      if (it.isValid()) {
+        int first = prefix(it.key());
+        it.seekToLast();
+        int last = prefix(it.key());
+        int step = Math.max(1, (last - first) / (parallelism * RANGES_PER_THREAD));
+        for (int p = first + step; p <= last; p += step)
+          boundaries.add(new byte[]{(byte) (p >> 8), (byte) p});
+      }
+    }
+    boundaries.add(null);
+    return boundaries;
+  }
+
+  private static int prefix(byte[] key) {
+    int high = key.length > 0 ? key[0] & 0xFF : 0;
+    int low = key.length > 1 ? key[1] & 0xFF : 0;
+    return high << 8 | low;
+  }
+
+  private void scanRange(byte[] lower, byte[] upper, Snapshot snapshot, Mode mode, ScanSink sink) {
+    Slice upperBound = upper == null ? null : new Slice(upper);
+    try (ReadOptions ro = new ReadOptions().setSnapshot(snapshot).setFillCache(false)) {
+      if (upperBound != null)
+        ro.setIterateUpperBound(upperBound);
+      try (RocksIterator it = storage.keyIterator(ro)) {
+        if (lower == null)
+          it.seekToFirst();
+        else
+          it.seek(lower);
+        for (; it.isValid(); it.next()) {
+          if (rateLimiter != null)
+            rateLimiter.acquire();
+          String userId = new String(it.key(), Charset.defaultCharset());
+          Iterator<Common.Operation> reverseIterator = storage.reverseIterator(userId, it.value(), ro);
+          if (mode == Mode.STATE)
+            sink.accept(userId, RocksStorageService.compactOperations(reverseIterator));
+          else
+            sink.accept(userId, toList(reverseIterator));
+        }
+        it.status();
+      }
+    } catch (RocksDBException e) {
+      throw new InternalServerException(e);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      if (upperBound != null)
+        upperBound.close();
+    }
+  }
+
+  private static List<Common.Operation> toList(Iterator<Common.Operation> reverseIterator) {
+    LinkedList<Common.Operation> ops = new LinkedList<>();
+    while (reverseIterator.hasNext())
+      ops.addFirst(reverseIterator.next());
+    return ops;
+  }
+
+  /**
+   * scan the ranges between boundaries[from] and boundaries[to], split itself in half until just one range left
+   */
+  private class ScanTask extends RecursiveAction {
+    private final List<byte[]> boundaries;
+    private final int from;
+    private final int to;
+    private final Snapshot snapshot;
+    private final Mode mode;
+    private final ScanSink sink;
+
+    ScanTask(List<byte[]> boundaries, int from, int to, Snapshot snapshot, Mode mode, ScanSink sink) {
+      this.boundaries = boundaries;
+      this.from = from;
+      this.to = to;
+      this.snapshot = snapshot;
+      this.mode = mode;
+      this.sink = sink;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > 1) {
+        int mid = (from + to) >>> 1;
+        invokeAll(new ScanTask(boundaries, from, mid, snapshot, mode, sink),
+            new ScanTask(boundaries, mid, to, snapshot, mode, sink));
+      } else {
+        scanRange(boundaries.get(from), boundaries.get(to), snapshot, mode, sink);
+      }
+    }
+  }
+}
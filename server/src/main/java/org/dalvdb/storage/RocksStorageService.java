@@ -18,9 +18,9 @@
 package org.dalvdb.storage;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
 import dalv.common.Common;
 import org.dalvdb.DalvConfig;
-import org.dalvdb.common.util.ByteUtil;
 import org.dalvdb.common.util.OpUtil;
 import org.dalvdb.exception.InternalServerException;
 import org.dalvdb.lock.UserLockManager;
@@ -30,7 +30,10 @@ import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -39,43 +42,70 @@ import java.util.stream.Collectors;
  */
 public class RocksStorageService implements StorageService {
   private static final Logger logger = LoggerFactory.getLogger(RocksStorageService.class);
+  private static final String LAST_SNAPSHOT_ID = "lastSnapshotId";
+  private static final String KEY_DICTIONARY = "keyDict";
+  private static final String LEGACY_LOG = "legacyLog";
   private final RocksDB rocksDB;
   private final WriteOptions wo;
+  private final WriteOptions asyncWo;
   private final Map<String, Queue<Common.Operation>> mirroredUser = new HashMap<>();
   private final ColumnFamilyHandle metaData;
+  private final ColumnFamilyHandle versions;
+  private final ColumnFamilyHandle changes;
+  private final ColumnFamilyHandle offsets;
+  private final ChangeSequence changeSequence;
   private final CompactionScheduler compactionScheduler;
+  private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+  private final LatestSnapshots latestSnapshots = new LatestSnapshots();
 
   public RocksStorageService() {
     String dataDir = DalvConfig.getStr(DalvConfig.DATA_DIR);
     RocksDB db = null;
     WriteOptions writeOptions = null;
+    WriteOptions asyncWriteOptions = null;
     ColumnFamilyHandle metadataHandler = null;
+    ColumnFamilyHandle versionsHandler = null;
+    ColumnFamilyHandle changesHandler = null;
+    ColumnFamilyHandle offsetsHandler = null;
+    long lastChange = 0;
     try {
       Options options = new Options();
       options.setCreateIfMissing(true);
       options.setCreateMissingColumnFamilies(true);
       options.setMergeOperator(new StringAppendOperator((char) (0)));
-      List<byte[]> cfs = RocksDB.listColumnFamilies(options, dataDir);
-      if (cfs.size() == 2) { //meta and default column families exist
-        List<ColumnFamilyHandle> hs = new LinkedList<>();
-        List<ColumnFamilyDescriptor> cfdList = new LinkedList<>();
-        cfdList.add(new ColumnFamilyDescriptor("default".getBytes(), new ColumnFamilyOptions(options)));
-        cfdList.add(new ColumnFamilyDescriptor("meta".getBytes(), new ColumnFamilyOptions(options)));
-        db = RocksDB.open(dataDir, cfdList, hs);
-        metadataHandler = hs.get(0);
-      } else {
-        db = RocksDB.open(options, dataDir);
-        metadataHandler = db.createColumnFamily(new ColumnFamilyDescriptor("meta".getBytes()));
+      //missing column families are created, so an old data dir just gets the new ones
+      List<ColumnFamilyHandle> hs = new LinkedList<>();
+      List<ColumnFamilyDescriptor> cfdList = new LinkedList<>();
+      cfdList.add(new ColumnFamilyDescriptor("default".getBytes(), new ColumnFamilyOptions(options)));
+      cfdList.add(new ColumnFamilyDescriptor("meta".getBytes(), new ColumnFamilyOptions(options)));
+      cfdList.add(new ColumnFamilyDescriptor("changes".getBytes(), new ColumnFamilyOptions()));
+      cfdList.add(new ColumnFamilyDescriptor("offsets".getBytes(), new ColumnFamilyOptions()));
+      cfdList.add(new ColumnFamilyDescriptor("versions".getBytes(), new ColumnFamilyOptions()));
+      db = RocksDB.open(new DBOptions(options), dataDir, cfdList, hs);
+      metadataHandler = hs.get(1);
+      changesHandler = hs.get(2);
+      offsetsHandler = hs.get(3);
+      versionsHandler = hs.get(4);
+      try (RocksIterator it = db.newIterator(changesHandler)) {
+        it.seekToLast();
+        if (it.isValid())
+          lastChange = ByteBuffer.wrap(it.key()).getLong();
       }
       writeOptions = new WriteOptions();
       writeOptions.setSync(true);
+      asyncWriteOptions = new WriteOptions();
     } catch (RocksDBException e) {
       logger.error("could not open storage dir", e);
       System.exit(1);
     }
     this.rocksDB = db;
     this.wo = writeOptions;
+    this.asyncWo = asyncWriteOptions;
     this.metaData = metadataHandler;
+    this.versions = versionsHandler;
+    this.changes = changesHandler;
+    this.offsets = offsetsHandler;
+    this.changeSequence = new ChangeSequence(lastChange);
     this.compactionScheduler = new CompactionScheduler(this);
     this.compactionScheduler.startScheduler();
   }
@@ -85,20 +115,126 @@ public class RocksStorageService implements StorageService {
    */
   @Override
   public boolean handleOperations(String userId, List<Common.Operation> opsList, int lastSnapshotId) {
-    if (checkForConflict(get(userId, lastSnapshotId), opsList))
+    if (checkForConflict(delta(userId, lastSnapshotId), opsList))
       return false;
+    writeOperations(userId, opsList, wo, false);
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public List<Common.Operation> handleOperationsAndSnapshot(String userId, List<Common.Operation> opsList,
+                                                            int lastSnapshotId) {
+    LinkedList<Common.Operation> delta = delta(userId, lastSnapshotId);
+    if (checkForConflict(delta, opsList))
+      return null;
+    Common.Operation snapshot = writeOperations(userId, opsList, wo, true);
+    List<Common.Operation> unseen = forClient(delta, lastSnapshotId);
+    unseen.add(snapshot);
+    return unseen;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void addOperation(String userId, Common.Operation operation) {
+    addOperations(userId, Collections.singletonList(operation));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void addOperations(String userId, List<Common.Operation> operations) {
+    writeOperations(userId, operations, asyncWo, false);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean addOperationsIfVersion(String userId, String key, long expectedVersion,
+                                        List<Common.Operation> operations) {
+    if (getVersion(userId, key) != expectedVersion)
+      return false;
+    writeOperations(userId, operations, wo, false);
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getVersion(String userId, String key) {
     try {
-      Queue<Common.Operation> mirrorQueue = mirroredUser.get(userId);
-      byte[] key = userId.getBytes(Charset.defaultCharset());
-      WriteBatch wb = new WriteBatch();
-      for (Common.Operation operation : opsList) {
-        wb.merge(key, ByteUtil.opToByte(operation));
-        if (mirrorQueue != null) mirrorQueue.offer(operation);
-      }
+      byte[] version = rocksDB.get(versions, versionKey(userId, key));
+      return version == null ? 0 : ByteBuffer.wrap(version).getLong();
+    } catch (RocksDBException e) {
+      throw new InternalServerException(e);
+    }
+  }
 
-      rocksDB.write(wo, wb);
-      compactionScheduler.updateReceived(userId);
-      return true;
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void addChangeListener(ChangeListener listener) {
+    changeListeners.add(listener);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void removeChangeListener(ChangeListener listener) {
+    changeListeners.remove(listener);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long stableSequence() {
+    return changeSequence.stable();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public List<Common.Change> readChanges(long after, int limit) {
+    List<Common.Change> result = new ArrayList<>(Math.min(limit, 1024));
+    try (RocksIterator it = rocksDB.newIterator(changes)) {
+      for (it.seek(changeKey(after + 1)); it.isValid() && result.size() < limit; it.next())
+        result.add(Common.Change.parseFrom(it.value()));
+      it.status();
+    } catch (RocksDBException | InvalidProtocolBufferException e) {
+      throw new InternalServerException(e);
+    }
+    return result;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long oldestSequence() {
+    try (RocksIterator it = rocksDB.newIterator(changes)) {
+      it.seekToFirst();
+      return it.isValid() ? ByteBuffer.wrap(it.key()).getLong() : 0;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void commitOffset(String consumer, long offset) {
+    try {
+      rocksDB.put(offsets, wo, consumer.getBytes(StandardCharsets.UTF_8), changeKey(offset));
     } catch (RocksDBException e) {
       throw new InternalServerException(e);
     }
@@ -108,20 +244,162 @@ public class RocksStorageService implements StorageService {
    * {@inheritDoc}
    */
   @Override
-  public void addOperation(String userId, Common.Operation operation) {
+  public long committedOffset(String consumer) {
+    try {
+      byte[] offset = rocksDB.get(offsets, consumer.getBytes(StandardCharsets.UTF_8));
+      return offset == null ? 0 : ByteBuffer.wrap(offset).getLong();
+    } catch (RocksDBException e) {
+      throw new InternalServerException(e);
+    }
+  }
+
+  /**
+   * trim the oldest changes which are out of the retention by count, age or size. The newest change is always kept,
+   * the sequence continues from it after a restart
+   */
+  void trimChanges() {
+    long newest = changeSequence.stable();
+    long oldest = oldestSequence();
+    if (oldest == 0 || oldest >= newest) return;
+    long keepFrom = oldest;
+    long retention = DalvConfig.getLong(DalvConfig.CHANGES_RETENTION);
+    if (retention > 0)
+      keepFrom = Math.max(keepFrom, newest - retention + 1);
+    long retentionAge = DalvConfig.getLong(DalvConfig.CHANGES_RETENTION_AGE);
+    if (retentionAge > 0)
+      keepFrom = Math.max(keepFrom,
+          firstChangeAfter(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(retentionAge), newest));
+    long retentionBytes = DalvConfig.getLong(DalvConfig.CHANGES_RETENTION_BYTES);
+    try {
+      if (retentionBytes > 0) {
+        long size = rocksDB.getLongProperty(changes, "rocksdb.estimate-live-data-size");
+        //the changes are about the same size, so the share of the excess bytes is trimmed from the oldest ones
+        if (size > retentionBytes)
+          keepFrom = Math.max(keepFrom, oldest + (long) Math.ceil((newest - oldest + 1) *
+              ((double) (size - retentionBytes) / size)));
+      }
+      keepFrom = Math.min(keepFrom, newest);
+      if (keepFrom > oldest)
+        rocksDB.deleteRange(changes, changeKey(0), changeKey(keepFrom));
+    } catch (RocksDBException e) {
+      throw new InternalServerException(e);
+    }
+  }
+
+  /**
+   * @return the sequence of the first change committed at or after the time, or the limit if there is none before it
+   */
+  private long firstChangeAfter(long time, long limit) {
+    try (RocksIterator it = rocksDB.newIterator(changes)) {
+      for (it.seekToFirst(); it.isValid(); it.next()) {
+        Common.Change change = Common.Change.parseFrom(it.value());
+        if (change.getSequence() >= limit || change.getTimestamp() >= time)
+          return change.getSequence();
+      }
+      return limit;
+    } catch (InvalidProtocolBufferException e) {
+      throw new InternalServerException(e);
+    }
+  }
+
+  /**
+   * append the operations to the user's log with the key dictionary, the new versions of their keys and the change
+   * record in a single batch, then pass them to a running compaction and the change listener. The commit is counted
+   * as stable only after the listener returns
+   *
+   * @param snapshot end the operations with a new snapshot in the same batch, it is not part of the change record
+   * @return the new snapshot or null
+   */
+  private Common.Operation writeOperations(String userId, List<Common.Operation> operations,
+                                           WriteOptions writeOptions, boolean snapshot) {
+    long sequence = changeSequence.begin();
     try {
       byte[] key = userId.getBytes(Charset.defaultCharset());
-      rocksDB.merge(key, ByteUtil.opToByte(operation));
+      WriteBatch wb = new WriteBatch();
+      KeyDictionary dictionary = dictionaryForWrite(userId, key, wb);
+      for (Common.Operation operation : operations)
+        wb.merge(key, LogCodec.encode(operation, dictionary, checksum()));
+      Common.Operation snapshotOp = snapshot ? snapshot(userId, wb, dictionary) : null;
+      putDictionary(wb, userId, dictionary);
+      putVersions(wb, userId, operations);
+      putChange(wb, userId, operations, sequence);
+      rocksDB.write(writeOptions, wb);
+      if (snapshotOp != null)
+        latestSnapshots.written(userId, snapshotOp.getSnapshotId());
+      else
+        latestSnapshots.invalidate(userId);
 
       Queue<Common.Operation> mirrorQueue = mirroredUser.get(userId);
-      if (mirrorQueue != null) mirrorQueue.offer(operation);
+      if (mirrorQueue != null) {
+        mirrorQueue.addAll(operations);
+        if (snapshotOp != null) mirrorQueue.offer(snapshotOp);
+      }
 
       compactionScheduler.updateReceived(userId);
+      notifyListeners(userId, operations, sequence);
+      return snapshotOp;
     } catch (RocksDBException e) {
       throw new InternalServerException(e);
+    } finally {
+      changeSequence.end(sequence);
+      notifyStable();
+    }
+  }
+
+  /**
+   * record the commit in the changes column family, the oldest changes are trimmed by {@link #trimChanges()}
+   */
+  private void putChange(WriteBatch wb, String userId, List<Common.Operation> operations, long sequence)
+      throws RocksDBException {
+    wb.put(changes, changeKey(sequence), Common.Change.newBuilder()
+        .setSequence(sequence)
+        .setUserId(userId)
+        .addAllOps(operations)
+        .setTimestamp(System.currentTimeMillis())
+        .build().toByteArray());
+  }
+
+  private void notifyListeners(String userId, List<Common.Operation> operations, long sequence) {
+    if (changeListeners.isEmpty()) return;
+    long stable = changeSequence.stable();
+    for (ChangeListener listener : changeListeners) {
+      try {
+        listener.onChange(userId, operations, sequence, stable);
+      } catch (RuntimeException e) {
+        //the commit is already persisted, a failing listener should not fail it
+        logger.error("change listener failed on change {}", sequence, e);
+      }
+    }
+  }
+
+  private void notifyStable() {
+    if (changeListeners.isEmpty()) return;
+    long stable = changeSequence.stable();
+    for (ChangeListener listener : changeListeners) {
+      try {
+        listener.onStable(stable);
+      } catch (RuntimeException e) {
+        logger.error("change listener failed on stable sequence {}", stable, e);
+      }
     }
   }
 
+  private static byte[] changeKey(long sequence) {
+    return ByteBuffer.allocate(8).putLong(sequence).array();
+  }
+
+  /**
+   * the version of a key is a RocksDB sequence number newer than any batch committed before, it only increases since
+   * the writes of a user are serialized by the user lock
+   */
+  private void putVersions(WriteBatch wb, String userId, List<Common.Operation> operations) throws RocksDBException {
+    byte[] version = ByteBuffer.allocate(8).putLong(rocksDB.getLatestSequenceNumber() + 1).array();
+    Set<String> keys = new HashSet<>();
+    for (Common.Operation operation : operations)
+      if (!operation.getKey().isEmpty() && keys.add(operation.getKey()))
+        wb.put(versions, versionKey(userId, operation.getKey()), version);
+  }
+
   private boolean checkForConflict(List<Common.Operation> oldOps,
                                    List<Common.Operation> newOps) {
     if (oldOps.isEmpty()) return false;
@@ -136,25 +414,59 @@ public class RocksStorageService implements StorageService {
    */
   @Override
   public List<Common.Operation> get(String userId, int lastSnapshotId) {
-    try {
-      byte[] bytes = rocksDB.get(userId.getBytes(Charset.defaultCharset()));
-      Iterator<Common.Operation> operationIterator = ByteUtil.getReverseIterator(bytes);
-      LinkedList<Common.Operation> result = new LinkedList<>();
-      boolean foundSnapshot = false;
-      while (operationIterator.hasNext()) {
-        Common.Operation op = operationIterator.next();
-        if (op.getType() == Common.OpType.SNAPSHOT && op.getSnapshotId() == lastSnapshotId) {
-          foundSnapshot = true;
-          break;
-        }
-        result.addFirst(op);
+    long version = latestSnapshots.version(userId);
+    LinkedList<Common.Operation> delta = delta(userId, lastSnapshotId);
+    if (delta.isEmpty() && lastSnapshotId > 0)
+      latestSnapshots.put(userId, lastSnapshotId, version);
+    else if (!delta.isEmpty() && delta.getLast().getType() == Common.OpType.SNAPSHOT)
+      latestSnapshots.put(userId, delta.getLast().getSnapshotId(), version);
+    return forClient(delta, lastSnapshotId);
+  }
+
+  /**
+   * @return the delta itself if the client has the snapshot it starts from, otherwise the state it leads to
+   */
+  private List<Common.Operation> forClient(LinkedList<Common.Operation> delta, int lastSnapshotId) {
+    if (lastSnapshotId > 0 && (delta.isEmpty() || !delta.getFirst().equals(OpUtil.REMOVE_ALL_OP)))
+      return delta;
+    //the client has nothing usable and the delta is the whole log, send the current state instead of the history
+    boolean removeAll = !delta.isEmpty() && delta.getFirst().equals(OpUtil.REMOVE_ALL_OP);
+    if (removeAll)
+      delta.removeFirst();
+    List<Common.Operation> state = new ArrayList<>();
+    if (removeAll)
+      state.add(OpUtil.REMOVE_ALL_OP);
+    state.addAll(compactOperations(delta.descendingIterator()));
+    return state;
+  }
+
+  /**
+   * @return the raw operations after the lastSnapshotId, prefixed by a remove all operation if the lastSnapshotId
+   * does not exist and greater than 0
+   */
+  private LinkedList<Common.Operation> delta(String userId, int lastSnapshotId) {
+    Iterator<Common.Operation> operationIterator = reverseIterator(userId);
+    LinkedList<Common.Operation> result = new LinkedList<>();
+    boolean foundSnapshot = false;
+    while (operationIterator.hasNext()) {
+      Common.Operation op = operationIterator.next();
+      if (op.getType() == Common.OpType.SNAPSHOT && op.getSnapshotId() == lastSnapshotId) {
+        foundSnapshot = true;
+        break;
       }
-      if (!foundSnapshot && lastSnapshotId > 0)
-        result.addFirst(OpUtil.REMOVE_ALL_OP);
-      return result;
-    } catch (RocksDBException e) {
-      throw new InternalServerException(e);
+      result.addFirst(op);
     }
+    if (!foundSnapshot && lastSnapshotId > 0)
+      result.addFirst(OpUtil.REMOVE_ALL_OP);
+    return result;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean isLatestSnapshot(String userId, int snapshotId) {
+    return latestSnapshots.isLatest(userId, snapshotId);
   }
 
   /**
@@ -162,40 +474,48 @@ public class RocksStorageService implements StorageService {
    */
   @Override
   public ByteString getValue(String userId, String key) {
-    try {
-      Iterator<Common.Operation> reverseOpsIterator =
-          ByteUtil.getReverseIterator(rocksDB.get(userId.getBytes(Charset.defaultCharset())));
-
-      Set<ByteString> additionToList = new HashSet<>();
-      Set<ByteString> deletionFromList = new HashSet<>();
-
-      int resultLen = 0;
-      while (reverseOpsIterator.hasNext()) {
-        Common.Operation op = reverseOpsIterator.next();
-        if (key.equals(op.getKey())) {
-          switch (op.getType()) {
-            case PUT:
-              additionToList.add(op.getVal());
+    Iterator<Common.Operation> reverseOpsIterator;
+    Snapshot snapshot = rocksDB.getSnapshot();
+    try (ReadOptions ro = new ReadOptions().setSnapshot(snapshot)) {
+      //answer absent keys without reading the log, the dictionary is a superset of the logged keys
+      KeyDictionary dictionary = KeyDictionary.decode(rocksDB.get(metaData, ro, metaKey(userId, KEY_DICTIONARY)));
+      if (dictionary != null && !dictionary.contains(key))
+        return ByteString.EMPTY;
+      reverseOpsIterator = LogCodec.reverseIterator(rocksDB.get(ro, userId.getBytes(Charset.defaultCharset())),
+          dictionary);
+    } catch (RocksDBException e) {
+      throw new InternalServerException(e);
+    } finally {
+      rocksDB.releaseSnapshot(snapshot);
+    }
+
+    Set<ByteString> additionToList = new HashSet<>();
+    Set<ByteString> deletionFromList = new HashSet<>();
+
+    int resultLen = 0;
+    while (reverseOpsIterator.hasNext()) {
+      Common.Operation op = reverseOpsIterator.next();
+      if (key.equals(op.getKey())) {
+        switch (op.getType()) {
+          case PUT:
+            additionToList.add(op.getVal());
+            resultLen += op.getVal().size();
+            return constructValue(additionToList, resultLen);
+          case DEL:
+            return constructValue(additionToList, resultLen);
+          case ADD_TO_LIST:
+            if (!deletionFromList.contains(op.getVal())) {
               resultLen += op.getVal().size();
-              return constructValue(additionToList, resultLen);
-            case DEL:
-              return constructValue(additionToList, resultLen);
-            case ADD_TO_LIST:
-              if (!deletionFromList.contains(op.getVal())) {
-                resultLen += op.getVal().size();
-                additionToList.add(op.getVal());
-              }
-              break;
-            case REMOVE_FROM_LIST:
-              deletionFromList.add(op.getVal());
-              break;
-          }
+              additionToList.add(op.getVal());
+            }
+            break;
+          case REMOVE_FROM_LIST:
+            deletionFromList.add(op.getVal());
+            break;
         }
       }
-      return constructValue(additionToList, resultLen);
-    } catch (RocksDBException e) {
-      throw new InternalServerException(e);
     }
+    return constructValue(additionToList, resultLen);
   }
 
   private ByteString constructValue(Set<ByteString> vals, int len) {
@@ -215,28 +535,37 @@ public class RocksStorageService implements StorageService {
   @Override
   public int snapshot(String userId) {
     try {
+      long version = latestSnapshots.version(userId);
       WriteBatch wb = new WriteBatch();
-      int snapshotId = snapshot(userId, wb);
+      KeyDictionary dictionary = dictionaryForWrite(userId, userId.getBytes(Charset.defaultCharset()), wb);
+      Common.Operation op = snapshot(userId, wb, dictionary);
+      putDictionary(wb, userId, dictionary);
       rocksDB.write(wo, wb);
-      return snapshotId;
+      latestSnapshots.put(userId, op.getSnapshotId(), version);
+
+      Queue<Common.Operation> mirrorQueue = mirroredUser.get(userId);
+      if (mirrorQueue != null) mirrorQueue.offer(op);
+      //snapshots are what the retention policy trims, so they also make the user a compaction candidate
+      compactionScheduler.updateReceived(userId);
+      return op.getSnapshotId();
     } catch (RocksDBException e) {
       throw new InternalServerException(e);
     }
   }
 
-  public int snapshot(String userId, WriteBatch wb) throws RocksDBException {
+  private Common.Operation snapshot(String userId, WriteBatch wb, KeyDictionary dictionary)
+      throws RocksDBException {
     int snapshotId = lastSnapshotId(userId) + 1;
     Common.Operation op = Common.Operation.newBuilder().setType(Common.OpType.SNAPSHOT)
-        .setSnapshotId(snapshotId).build();
-    wb.merge(userId.getBytes(Charset.defaultCharset()), ByteUtil.opToByte(op));
-    wb.put(metaData, (userId + ".lastSnapshotId").getBytes(Charset.defaultCharset()),
-        ByteBuffer.allocate(4).putInt(snapshotId).array());
-    return snapshotId;
+        .setSnapshotId(snapshotId).setTimestamp(System.currentTimeMillis()).build();
+    wb.merge(userId.getBytes(Charset.defaultCharset()), LogCodec.encode(op, dictionary, checksum()));
+    wb.put(metaData, metaKey(userId, LAST_SNAPSHOT_ID), ByteBuffer.allocate(4).putInt(snapshotId).array());
+    return op;
   }
 
   private int lastSnapshotId(String userId) {
     try {
-      byte[] lastSnapShotId = rocksDB.get(metaData, (userId + ".lastSnapshotId").getBytes(Charset.defaultCharset()));
+      byte[] lastSnapShotId = rocksDB.get(metaData, metaKey(userId, LAST_SNAPSHOT_ID));
       if (lastSnapShotId == null)
         return 0;
       return ByteBuffer.wrap(lastSnapShotId).getInt();
@@ -251,8 +580,15 @@ public class RocksStorageService implements StorageService {
   @Override
   public void delete(String userId) {
     try {
-      rocksDB.delete(userId.getBytes(Charset.defaultCharset()));
-      rocksDB.delete(metaData, (userId + ".lastSnapshotId").getBytes(Charset.defaultCharset()));
+      WriteBatch wb = new WriteBatch();
+      wb.delete(userId.getBytes(Charset.defaultCharset()));
+      wb.delete(metaData, metaKey(userId, LAST_SNAPSHOT_ID));
+      wb.delete(metaData, metaKey(userId, KEY_DICTIONARY));
+      wb.delete(metaData, metaKey(userId, LEGACY_LOG));
+      byte[] versionPrefix = versionKey(userId, "");
+      wb.deleteRange(versions, versionPrefix, prefixEnd(versionPrefix));
+      rocksDB.write(wo, wb);
+      latestSnapshots.invalidate(userId);
     } catch (RocksDBException e) {
       throw new InternalServerException(e);
     }
@@ -263,17 +599,14 @@ public class RocksStorageService implements StorageService {
    */
   @Override
   public void compact(String userId) {
-    byte[] userKey = userId.getBytes(Charset.defaultCharset());
-    OpUtil.OperatorsReverseIterator iterator;
+    Iterator<Common.Operation> iterator;
     try {
       //it's a write lock because we start mirroring and we don't want any other write interfere this
       if (UserLockManager.getInstance().tryWriteLock(userId, 10)) {
         try {
-          iterator = new OpUtil.OperatorsReverseIterator(rocksDB.get(userKey));
+          iterator = reverseIterator(userId);
           //start mirroring
           mirroredUser.put(userId, new LinkedList<>());
-        } catch (RocksDBException e) {
-          throw new InternalServerException(e);
         } finally {
           UserLockManager.getInstance().releaseWriteLock(userId);
         }
@@ -283,11 +616,49 @@ public class RocksStorageService implements StorageService {
       return;
     }
 
-    List<Common.Operation> result = compactOperations(iterator);
+    List<Common.Operation> result = compactWithRetention(iterator,
+        DalvConfig.getInt(DalvConfig.SNAPSHOT_RETENTION_COUNT), DalvConfig.getLong(DalvConfig.SNAPSHOT_RETENTION_AGE));
     mergeBack(userId, result);
   }
 
-  private List<Common.Operation> compactOperations(OpUtil.OperatorsReverseIterator iterator) {
+  /**
+   * compact the log but keep the retained snapshot points, so clients at those snapshots still get a delta. The
+   * retained snapshots are the newest retentionCount ones plus the ones younger than retentionAge seconds. Everything
+   * before the oldest retained snapshot is folded into a base image, the rest is kept as it is.
+   *
+   * @param iterator       iterator over the user's log from the newest to the oldest
+   * @param retentionCount number of newest snapshots to keep
+   * @param retentionAge   maximum age of snapshots to keep in seconds, zero means no age based retention
+   * @return the compacted log from the oldest to the newest
+   */
+  static List<Common.Operation> compactWithRetention(Iterator<Common.Operation> iterator, int retentionCount,
+                                                     long retentionAge) {
+    if (retentionCount <= 0 && retentionAge <= 0)
+      return compactOperations(iterator);
+    long cutoff = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(retentionAge);
+    List<Common.Operation> newestFirst = new ArrayList<>();
+    int boundary = -1;
+    int seenSnapshots = 0;
+    while (iterator.hasNext()) {
+      Common.Operation op = iterator.next();
+      newestFirst.add(op);
+      if (op.getType() != Common.OpType.SNAPSHOT) continue;
+      seenSnapshots++;
+      if (seenSnapshots <= retentionCount || (retentionAge > 0 && op.getTimestamp() >= cutoff))
+        boundary = newestFirst.size() - 1;
+    }
+    if (boundary < 0)
+      return compactOperations(newestFirst.iterator());
+
+    LinkedList<Common.Operation> result = new LinkedList<>();
+    for (Common.Operation op : compactOperations(newestFirst.subList(boundary + 1, newestFirst.size()).iterator()))
+      if (op.getType() != Common.OpType.SNAPSHOT) result.add(op);
+    for (int i = boundary; i >= 0; i--)
+      result.add(newestFirst.get(i));
+    return result;
+  }
+
+  static List<Common.Operation> compactOperations(Iterator<Common.Operation> iterator) {
     Set<String> ignoreKeys = new HashSet<>();
     Map<String, List<ByteString>> ignoreItemInList = new HashMap<>();
     LinkedList<Common.Operation> result = new LinkedList<>();
@@ -323,21 +694,30 @@ public class RocksStorageService implements StorageService {
     try {
       if (UserLockManager.getInstance().tryWriteLock(userId, 10)) {
         try {
-          if (!result.isEmpty() &&
+          if (!retainSnapshots() && !result.isEmpty() &&
               result.get(result.size() - 1).getType() == Common.OpType.SNAPSHOT &&
               !mirroredUser.get(userId).isEmpty())
             result.remove(result.size() - 1);
           result.addAll(mirroredUser.get(userId));
+          //the whole log is rewritten, so it is also the time to build a fresh dictionary or convert the log format
+          KeyDictionary dictionary = DalvConfig.getInt(DalvConfig.LOG_FORMAT_VERSION) >= 2 ? new KeyDictionary() : null;
           WriteBatch wb = new WriteBatch();
           wb.delete(userKey);
           boolean seeSnapshot = false;
           for (Common.Operation operation : result) {
             if (operation.getType() == Common.OpType.SNAPSHOT) seeSnapshot = true;
-            wb.merge(userKey, ByteUtil.opToByte(operation));
+            wb.merge(userKey, LogCodec.encode(operation, dictionary, checksum()));
           }
           if (!seeSnapshot)
-            snapshot(userId, wb);
+            snapshot(userId, wb, dictionary);
+          if (dictionary == null)
+            wb.delete(metaData, metaKey(userId, KEY_DICTIONARY));
+          else
+            putDictionary(wb, userId, dictionary);
+          wb.delete(metaData, metaKey(userId, LEGACY_LOG));
           rocksDB.write(wo, wb);
+          //the compaction could drop or add the last snapshot
+          latestSnapshots.invalidate(userId);
         } catch (RocksDBException e) {
           throw new InternalServerException(e);
         } finally {
@@ -352,10 +732,121 @@ public class RocksStorageService implements StorageService {
     }
   }
 
+  /**
+   * read the log and the key dictionary of a user from a consistent point-in-time view
+   *
+   * @return an iterator which returns the user's operations from the newest to the oldest
+   */
+  private Iterator<Common.Operation> reverseIterator(String userId) {
+    Snapshot snapshot = rocksDB.getSnapshot();
+    try (ReadOptions ro = new ReadOptions().setSnapshot(snapshot)) {
+      return reverseIterator(userId, rocksDB.get(ro, userId.getBytes(Charset.defaultCharset())), ro);
+    } catch (RocksDBException e) {
+      throw new InternalServerException(e);
+    } finally {
+      rocksDB.releaseSnapshot(snapshot);
+    }
+  }
+
+  /**
+   * @param userId      the user identification
+   * @param log         the user's log, read by the same read options
+   * @param readOptions options which the log read by, used to read the matching key dictionary
+   * @return an iterator which returns the user's operations from the newest to the oldest
+   */
+  Iterator<Common.Operation> reverseIterator(String userId, byte[] log, ReadOptions readOptions)
+      throws RocksDBException {
+    byte[] dictionary = rocksDB.get(metaData, readOptions, metaKey(userId, KEY_DICTIONARY));
+    return LogCodec.reverseIterator(log, KeyDictionary.decode(dictionary));
+  }
+
+  /**
+   * find the dictionary to write new operations of a user by. The user's log stays in the legacy format if it
+   * already exists without a dictionary, it will be converted on the next compaction. The log is read only once to
+   * tell a legacy user from a new one, a legacy user is marked in the meta by the batch so the next writes skip it.
+   *
+   * @param wb the batch the operations are written by
+   * @return the user's dictionary or null if the operations should be written in the legacy format
+   */
+  private KeyDictionary dictionaryForWrite(String userId, byte[] userKey, WriteBatch wb) throws RocksDBException {
+    byte[] dictionary = rocksDB.get(metaData, metaKey(userId, KEY_DICTIONARY));
+    if (dictionary != null)
+      return KeyDictionary.decode(dictionary);
+    if (DalvConfig.getInt(DalvConfig.LOG_FORMAT_VERSION) < 2)
+      return null;
+    byte[] legacyKey = metaKey(userId, LEGACY_LOG);
+    if (rocksDB.get(metaData, legacyKey) != null)
+      return null;
+    //keyMayExist answers from the memtable and the bloom filters, a new user mostly skips the read of the log
+    if (rocksDB.keyMayExist(userKey, new StringBuilder()) && rocksDB.get(userKey) != null) {
+      wb.put(metaData, legacyKey, new byte[0]);
+      return null;
+    }
+    return new KeyDictionary();
+  }
+
+  /**
+   * persist the dictionary if it is changed
+   */
+  private void putDictionary(WriteBatch wb, String userId, KeyDictionary dictionary) throws RocksDBException {
+    if (dictionary == null || !dictionary.isModified())
+      return;
+    wb.put(metaData, metaKey(userId, KEY_DICTIONARY), dictionary.encode());
+  }
+
+  private static boolean retainSnapshots() {
+    return DalvConfig.getInt(DalvConfig.SNAPSHOT_RETENTION_COUNT) > 0 ||
+        DalvConfig.getLong(DalvConfig.SNAPSHOT_RETENTION_AGE) > 0;
+  }
+
+  private static boolean checksum() {
+    return DalvConfig.getBoolean(DalvConfig.LOG_CHECKSUM);
+  }
+
+  private static byte[] metaKey(String userId, String name) {
+    return (userId + "." + name).getBytes(Charset.defaultCharset());
+  }
+
+  /**
+   * the user id is prefixed by its length, so the keys of a user never share a prefix with the keys of another one
+   */
+  private static byte[] versionKey(String userId, String key) {
+    byte[] user = userId.getBytes(StandardCharsets.UTF_8);
+    byte[] name = key.getBytes(StandardCharsets.UTF_8);
+    return ByteBuffer.allocate(4 + user.length + name.length).putInt(user.length).put(user).put(name).array();
+  }
+
+  /**
+   * @return the smallest key greater than all the keys with the prefix
+   */
+  private static byte[] prefixEnd(byte[] prefix) {
+    byte[] end = Arrays.copyOf(prefix, prefix.length);
+    for (int i = end.length - 1; i >= 0; i--) {
+      if (end[i] != (byte) 0xff) {
+        end[i]++;
+        return Arrays.copyOf(end, i + 1);
+      }
+    }
+    //the length prefix of a user id never starts with 0xff
+    throw new IllegalArgumentException("no key is greater than the prefix");
+  }
+
   RocksIterator keyIterator() {
     return rocksDB.newIterator();
   }
 
+  RocksIterator keyIterator(ReadOptions readOptions) {
+    return rocksDB.newIterator(readOptions);
+  }
+
+  Snapshot newSnapshot() {
+    return rocksDB.getSnapshot();
+  }
+
+  void releaseSnapshot(Snapshot snapshot) {
+    rocksDB.releaseSnapshot(snapshot);
+  }
+
   /**
    * Close the underling rocks db instance and its writeOptions
    */
@@ -363,7 +854,11 @@ public class RocksStorageService implements StorageService {
   public void close() {
     compactionScheduler.close();
     metaData.close();
+    versions.close();
+    changes.close();
+    offsets.close();
     wo.close();
+    asyncWo.close();
     rocksDB.close();
   }
 }
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import dalv.common.Common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination of a {@link ParallelScanner} run. The scanner calls {@link #accept(String, List)} once per user from
+ * several threads at the same time, so implementations should be thread-safe.
+ *
+ * @see FramedFileScanSink the default implementation which writes users to a local file
+ */
+public interface ScanSink extends Closeable {
+
+  /**
+   * consume the data of a single user
+   *
+   * @param userId     the user identification
+   * @param operations the user's log or compacted state, depending on the scan mode
+   * @throws IOException if the sink could not store the user's data
+   */
+  void accept(String userId, List<Common.Operation> operations) throws IOException;
+}
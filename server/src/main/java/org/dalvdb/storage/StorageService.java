@@ -26,6 +26,9 @@ import java.util.List;
 /**
  * A server-side storage layer, responsible for storing operations for users, generating snapshots and provide access
  * to the user's data
+ * <p>
+ * Reads ({@link #get} and {@link #getValue}) come from a consistent point-in-time view of the user and need no user
+ * lock, methods which change the user's log should be called under the user write lock.
  *
  * @see RocksStorageService the default implementation
  */
@@ -41,6 +44,19 @@ public interface StorageService extends Closeable {
    */
   boolean handleOperations(String userId, List<Common.Operation> opsList, int lastSnapshotId);
 
+  /**
+   * Handle the operations of a client like {@link #handleOperations(String, List, int)} and end them with a new
+   * snapshot in the same write, so the client is synced to its own operations without another synced write.
+   *
+   * @param userId         the user identification
+   * @param opsList        list of operation to handle
+   * @param lastSnapshotId last snapshotId seen by user, for conflict detection
+   * @return null if the operations conflict, otherwise the operations the client has not seen as
+   * {@link #get(String, int)} returns them before the write, followed by the new snapshot
+   */
+  List<Common.Operation> handleOperationsAndSnapshot(String userId, List<Common.Operation> opsList,
+                                                     int lastSnapshotId);
+
   /**
    * add a single operation for a specific user
    *
@@ -49,11 +65,86 @@ public interface StorageService extends Closeable {
    */
   void addOperation(String userId, Common.Operation operation);
 
+  /**
+   * add several operations for a specific user in an atomic way, without conflict detection
+   *
+   * @param userId     the user identification
+   * @param operations the operations to add
+   */
+  void addOperations(String userId, List<Common.Operation> operations);
+
+  /**
+   * add several operations for a specific user in an atomic way, only if the key is still at the expected version
+   *
+   * @param userId          the user identification
+   * @param key             the key which its version is checked
+   * @param expectedVersion the version the key should have, 0 means the key should never have been written
+   * @param operations      the operations to add
+   * @return true if the operations persisted, false if the key has another version
+   */
+  boolean addOperationsIfVersion(String userId, String key, long expectedVersion, List<Common.Operation> operations);
+
+  /**
+   * get the version of a key, which changes on every write of the key. To use the version for a conditional write,
+   * it should be read before the value
+   *
+   * @param userId the user identification
+   * @param key    the key to query
+   * @return the version of the key, 0 if the key has never been written
+   */
+  long getVersion(String userId, String key);
+
+  /**
+   * add a listener which is called after every commit of operations, on the writing thread. Snapshots and
+   * compactions are not passed to the listeners
+   */
+  void addChangeListener(ChangeListener listener);
+
+  /**
+   * remove a listener added by {@link #addChangeListener(ChangeListener)}, it is not called for the commits which
+   * start after this returns
+   */
+  void removeChangeListener(ChangeListener listener);
+
+  /**
+   * @return the greatest change sequence which it and all the smaller ones are either persisted and passed to the
+   * change listener or failed
+   */
+  long stableSequence();
+
+  /**
+   * read the recorded changes in the order of their sequence, the oldest changes may be already trimmed
+   *
+   * @param after return the changes with a greater sequence
+   * @param limit maximum number of changes to return
+   * @return the changes, empty if there is no newer change
+   */
+  List<Common.Change> readChanges(long after, int limit);
+
+  /**
+   * @return the sequence of the oldest recorded change which is not trimmed yet, 0 if there is no change
+   */
+  long oldestSequence();
+
+  /**
+   * persist the offset a consumer of the changes has processed, so it could continue from there after a restart
+   *
+   * @param consumer name of the consumer
+   * @param offset   the sequence of the last processed change
+   */
+  void commitOffset(String consumer, long offset);
+
+  /**
+   * @return the last committed offset of the consumer, 0 if it has never committed
+   */
+  long committedOffset(String consumer);
+
   /**
    * Get the list of operations for a user after the lastSnapshotId
    *
    * if the lastSnapshotId does not exist and greater than 0
-   * then add a remove all operation in the beginning of the result
+   * then add a remove all operation in the beginning of the result. If the lastSnapshotId does not exist or it is 0
+   * the result is the compacted current state of the user instead of the whole history
    *
    * @param userId         the user identification
    * @param lastSnapshotId return operations after this snapshot
@@ -61,6 +152,17 @@ public interface StorageService extends Closeable {
    */
   List<Common.Operation> get(String userId, int lastSnapshotId);
 
+  /**
+   * Answered from memory without any lock or I/O, it is known after the log of the user is read or a snapshot is
+   * created, and forgotten on the next write
+   *
+   * @param userId     the user identification
+   * @param snapshotId the snapshot id of a client
+   * @return true if the log of the user is known to end with the snapshot, so a client at that snapshot is current.
+   * false means it is unknown
+   */
+  boolean isLatestSnapshot(String userId, int snapshotId);
+
   /**
    * get the value of a specific key for a user
    *
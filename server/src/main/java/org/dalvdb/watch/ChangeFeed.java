@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.watch;
+
+import dalv.common.Common;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.dalvdb.DalvConfig;
+import org.dalvdb.exception.InternalServerException;
+import org.dalvdb.proto.BackendProto;
+import org.dalvdb.storage.ChangeListener;
+import org.dalvdb.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The node-wide stream of changes, every committed operation of every user in the order of its change sequence. The
+ * offset of a change is its sequence.
+ * <p>
+ * Every subscriber tails the changes column family of the storage: it reads the changes up to the stable sequence, so
+ * it never skips a commit which is still in flight, and it is woken up whenever the stable sequence moves. Reading is
+ * flow controlled by the gRPC on-ready handler, a slow subscriber just lags behind and holds no memory. A subscriber
+ * which falls behind the retention of the storage is closed with OUT_OF_RANGE.
+ */
+public class ChangeFeed implements ChangeListener, Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(ChangeFeed.class);
+  private static final int CHUNK_SIZE = 256;
+  private final StorageService storage;
+  private final Set<Tail> tails = ConcurrentHashMap.newKeySet();
+  private final ExecutorService executor = Executors.newFixedThreadPool(
+      DalvConfig.getInt(DalvConfig.CHANGES_THREAD_NUM));
+
+  public ChangeFeed(StorageService storage) {
+    this.storage = storage;
+  }
+
+  /**
+   * stream the changes after the offset, then the new ones as they are committed
+   *
+   * @param after the offset of the last processed change, zero means from the oldest retained change
+   */
+  public void subscribe(long after, StreamObserver<BackendProto.ChangesResponse> observer) {
+    long oldest = storage.oldestSequence();
+    if (after == 0) {
+      after = Math.max(0, oldest - 1);
+    } else if (oldest > after + 1) {
+      observer.onError(outOfRange(after, oldest).asRuntimeException());
+      return;
+    }
+    Tail tail = new Tail(observer, after);
+    tails.add(tail);
+    tail.wake();
+  }
+
+  @Override
+  public void onChange(String userId, List<Common.Operation> operations, long sequence, long stableSequence) {
+  }
+
+  @Override
+  public void onStable(long stableSequence) {
+    for (Tail tail : tails)
+      if (tail.position < stableSequence)
+        tail.wake();
+  }
+
+  private static Status outOfRange(long after, long oldest) {
+    return Status.OUT_OF_RANGE.withDescription("the changes after " + after + " are trimmed, the oldest one is " +
+        oldest);
+  }
+
+  @Override
+  public void close() {
+    for (Tail tail : tails)
+      tail.complete();
+    executor.shutdown();
+  }
+
+  private final class Tail {
+    private final StreamObserver<BackendProto.ChangesResponse> observer;
+    private final ServerCallStreamObserver<BackendProto.ChangesResponse> serverObserver;
+    private volatile long position;
+    private boolean signaled;
+    private boolean draining;
+    private boolean completing;
+    private boolean closed;
+
+    Tail(StreamObserver<BackendProto.ChangesResponse> observer, long after) {
+      this.observer = observer;
+      this.position = after;
+      if (observer instanceof ServerCallStreamObserver) {
+        serverObserver = (ServerCallStreamObserver<BackendProto.ChangesResponse>) observer;
+        serverObserver.setOnReadyHandler(this::wake);
+        serverObserver.setOnCancelHandler(this::cancelled);
+      } else {
+        serverObserver = null;
+      }
+    }
+
+    void wake() {
+      synchronized (this) {
+        if (closed) return;
+        signaled = true;
+        if (draining) return;
+        draining = true;
+      }
+      executor.execute(this::drain);
+    }
+
+    synchronized void complete() {
+      completing = true;
+      wake();
+    }
+
+    private synchronized void cancelled() {
+      closed = true;
+      tails.remove(this);
+    }
+
+    private void drain() {
+      while (true) {
+        boolean complete;
+        synchronized (this) {
+          if (closed || !signaled) {
+            draining = false;
+            return;
+          }
+          signaled = false;
+          complete = completing;
+          if (complete)
+            closed = true;
+        }
+        if (complete) {
+          tails.remove(this);
+          observer.onCompleted();
+          return;
+        }
+        Status failure;
+        try {
+          failure = send();
+        } catch (InternalServerException e) {
+          logger.error("could not read the changes", e);
+          failure = Status.UNAVAILABLE.withDescription("could not read the changes");
+        } catch (RuntimeException e) {
+          //the call is already cancelled or closed by the peer
+          logger.debug("could not deliver the changes", e);
+          cancelled();
+          continue;
+        }
+        if (failure != null) {
+          cancelled();
+          observer.onError(failure.asRuntimeException());
+        }
+      }
+    }
+
+    /**
+     * send the readable changes while the transport is ready, the on-ready handler wakes the tail again
+     *
+     * @return the status to close the stream with or null
+     */
+    private Status send() {
+      while (serverObserver == null || serverObserver.isReady()) {
+        long stable = storage.stableSequence();
+        if (position >= stable) return null;
+        List<Common.Change> chunk = storage.readChanges(position, CHUNK_SIZE);
+        if (!chunk.isEmpty() && chunk.get(0).getSequence() > position + 1) {
+          long oldest = storage.oldestSequence();
+          if (oldest > position + 1)
+            return outOfRange(position, oldest);
+        }
+        BackendProto.ChangesResponse.Builder response = BackendProto.ChangesResponse.newBuilder();
+        for (Common.Change change : chunk) {
+          if (change.getSequence() > stable) break;
+          response.addChanges(change);
+        }
+        if (response.getChangesCount() == 0) {
+          //the commits up to the stable sequence were failed, nothing is recorded for them
+          position = stable;
+          return null;
+        }
+        observer.onNext(response.build());
+        position = response.getChanges(response.getChangesCount() - 1).getSequence();
+      }
+      return null;
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.watch;
+
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Route the events of a key among the members of the consumer groups which watch it.
+ * <p>
+ * The streams of a group split the users by rendezvous hashing: a user goes to the open member with the highest weight
+ * for the pair of the userId and the stable id of the member. A user always goes to the same member while the
+ * membership is unchanged, so the order of its events is preserved. When a member leaves just its users move, and a
+ * joining member only takes the users it now weighs the highest for, whatever the position of the member. The events
+ * already queued to a member are still sent by it.
+ */
+final class ConsumerGroups {
+
+  private ConsumerGroups() {
+    throw new IllegalStateException();
+  }
+
+  /**
+   * @param streams the streams which watch the key, in their registration order
+   * @return the streams without a group and a single member of every group for the user
+   */
+  static <T> List<WatchStream<T>> route(List<WatchStream<T>> streams, String userId) {
+    Map<String, List<WatchStream<T>>> groups = null;
+    List<WatchStream<T>> routed = null;
+    for (int i = 0; i < streams.size(); i++) {
+      WatchStream<T> stream = streams.get(i);
+      String group = stream.group();
+      if (group.isEmpty()) {
+        if (routed != null)
+          routed.add(stream);
+        continue;
+      }
+      if (routed == null) {
+        routed = new ArrayList<>(streams.subList(0, i));
+        groups = new LinkedHashMap<>();
+      }
+      //a closed member is not removed yet, its users are moved to the others
+      if (!stream.isClosed())
+        groups.computeIfAbsent(group, g -> new ArrayList<>()).add(stream);
+    }
+    //most of the keys have no group
+    if (routed == null) return streams;
+    if (!groups.isEmpty()) {
+      long hash = Hashing.murmur3_128().hashString(userId, StandardCharsets.UTF_8).asLong();
+      for (List<WatchStream<T>> members : groups.values())
+        routed.add(highestWeight(members, hash));
+    }
+    return routed;
+  }
+
+  private static <T> WatchStream<T> highestWeight(List<WatchStream<T>> members, long userHash) {
+    WatchStream<T> chosen = null;
+    long max = 0;
+    for (WatchStream<T> member : members) {
+      long weight = weight(userHash, member.memberId());
+      if (chosen == null || Long.compareUnsigned(weight, max) > 0) {
+        chosen = member;
+        max = weight;
+      }
+    }
+    return chosen;
+  }
+
+  /**
+   * mix the pair into a well distributed weight, the finalizer of splitmix64
+   */
+  private static long weight(long userHash, long memberId) {
+    long h = userHash ^ memberId * 0x9E3779B97F4A7C15L;
+    h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+    h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+    return h ^ (h >>> 31);
+  }
+
+  /**
+   * @return true if the stream is the member of its group which gets the events of the user
+   */
+  static <T> boolean owns(List<WatchStream<T>> streams, WatchStream<T> stream, String userId) {
+    return stream.group().isEmpty() || streams == null || route(streams, userId).contains(stream);
+  }
+}
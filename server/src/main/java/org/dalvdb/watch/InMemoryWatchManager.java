@@ -18,148 +18,445 @@
 package org.dalvdb.watch;
 
 import dalv.common.Common;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import org.dalvdb.DalvConfig;
 import org.dalvdb.proto.BackendProto;
 import org.dalvdb.proto.ClientProto;
+import org.dalvdb.storage.StorageService;
 
 import java.io.Closeable;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
+/**
+ * Keep the watches in memory and notify them on the watcher executor.
+ * <p>
+ * The registry has no global lock: watches are kept in concurrent maps keyed by the key (backend watches) or the
+ * userId and then the key (client watches), and the streams of a key are kept in a copy-on-write list. Registering
+ * or cancelling a watch just locks the map bin of that user or key, and notifications read the streams without any
+ * lock. Empty lists and user maps are removed inside the same map operation which modifies them, so a concurrent
+ * registration never adds to a list which is already detached from the registry.
+ * <p>
+ * Every observer is wrapped in a {@link WatchStream} with a bounded outbound queue, a slow consumer just fills its own
+ * queue and never holds a watcher thread. A watch could ask for conflation, then its stream holds the events up to
+ * the requested delay, capped by the configured maximum, and merges the superseded ones before sending.
+ * <p>
+ * A watch key with an unescaped '*' or '?' is a pattern, see {@link KeyTrie}. Patterns are indexed in a trie, a single one for
+ * the backend watches and one per user for the client watches, and they are only walked if there is any pattern.
+ * <p>
+ * A backend watch could have an {@link OperationFilter}, the operations it filters out are never queued nor
+ * serialized for its stream.
+ * <p>
+ * The streams which get the same operations of a commit share one message, which is serialized once by
+ * {@link SharedMessages}.
+ * <p>
+ * A client could watch all its keys on a single multiplexed call, its stream is held open without registrations and
+ * the keys are subscribed and unsubscribed on it while the call lasts. Every client stream belongs to a single user.
+ * <p>
+ * Backend watches could join a consumer group, the members of a group split the users of the key between themselves,
+ * see {@link ConsumerGroups}.
+ * <p>
+ * The manager receives the commits from the storage as a {@link org.dalvdb.storage.ChangeListener}, every message
+ * carries the change sequence of its commit and a resume token. A backend watch could resume from a token, then the
+ * recorded changes after it are replayed before the live messages. A client watch could resume from a snapshot of
+ * the user, its replay is read by the caller under the user lock.
+ */
 public class InMemoryWatchManager implements WatchManager, Closeable {
+  //shared by all the streams, so a message offered to several streams is built once. A single operation is also set
+  //in the deprecated operation field, which is all the SDKs before the batched events read
+  @SuppressWarnings("deprecation")
+  private static final WatchStream.MessageFactory<BackendProto.WatchResponse> BACKEND_MESSAGES =
+      (userId, ops, seq, token) -> {
+        BackendProto.WatchResponse.Builder builder = BackendProto.WatchResponse.newBuilder()
+            .setUserId(userId)
+            .addAllOperations(ops)
+            .setSequence(seq)
+            .setResumeToken(token);
+        if (ops.size() == 1)
+          builder.setOperation(ops.get(0));
+        return builder.build();
+      };
+  @SuppressWarnings("deprecation")
+  private static final WatchStream.MessageFactory<ClientProto.WatchResponse> CLIENT_MESSAGES =
+      (userId, ops, seq, token) -> {
+        ClientProto.WatchResponse.Builder builder = ClientProto.WatchResponse.newBuilder()
+            .addAllOperations(ops)
+            .setSequence(seq)
+            .setResumeToken(token);
+        if (ops.size() == 1)
+          builder.setOperation(ops.get(0));
+        return builder.build();
+      };
 
-  private final ReadWriteLock lock = new ReentrantReadWriteLock();
-  private final Map<String, List<StreamObserver<BackendProto.WatchResponse>>> backendWatches = new HashMap<>();
-  private final Map<String, Map<String, List<StreamObserver<ClientProto.WatchResponse>>>> clientWatches = new HashMap<>();
+  private final Map<String, List<WatchStream<BackendProto.WatchResponse>>> backendWatches =
+      new ConcurrentHashMap<>();
+  private final Map<String, Map<String, List<WatchStream<ClientProto.WatchResponse>>>> clientWatches =
+      new ConcurrentHashMap<>();
+  private final KeyTrie<WatchStream<BackendProto.WatchResponse>> backendPatterns = new KeyTrie<>();
+  private final Map<String, KeyTrie<WatchStream<ClientProto.WatchResponse>>> clientPatterns =
+      new ConcurrentHashMap<>();
+  private final Map<StreamObserver<BackendProto.WatchResponse>, WatchStream<BackendProto.WatchResponse>>
+      backendStreams = new ConcurrentHashMap<>();
+  private final Map<StreamObserver<ClientProto.WatchResponse>, WatchStream<ClientProto.WatchResponse>>
+      clientStreams = new ConcurrentHashMap<>();
   private final ExecutorService watcherExecutor = Executors.newFixedThreadPool(
       DalvConfig.getInt(DalvConfig.WATCHER_THREAD_NUM));
+  private final WatchMetrics metrics = new WatchMetrics();
+  private final int queueSize = DalvConfig.getInt(DalvConfig.WATCH_QUEUE_SIZE);
+  private final WatchStream.OverflowPolicy overflowPolicy =
+      WatchStream.OverflowPolicy.of(DalvConfig.getStr(DalvConfig.WATCH_OVERFLOW_POLICY));
+  private final long maxConflateDelay = DalvConfig.getInt(DalvConfig.WATCH_CONFLATE_MAX_DELAY);
+  private final ScheduledExecutorService conflateTimer = Executors.newSingleThreadScheduledExecutor();
+  private final StorageService storage;
+
+  /**
+   * create a watch manager which could not resume the backend watches
+   */
+  public InMemoryWatchManager() {
+    this(null);
+  }
+
+  /**
+   * @param storage the storage which the backend watches are resumed from, it should pass its changes to this
+   *                manager
+   */
+  public InMemoryWatchManager(StorageService storage) {
+    this.storage = storage;
+  }
+
+  public WatchMetrics metrics() {
+    return metrics;
+  }
 
   @Override
-  public void addBackendWatch(String key, StreamObserver<BackendProto.WatchResponse> responseObserver) {
-    lock.writeLock().lock();
-    try {
-      backendWatches.putIfAbsent(key, new LinkedList<>());
-      backendWatches.get(key).add(responseObserver);
-    } finally {
-      lock.writeLock().unlock();
+  public void addBackendWatch(String watchKey, String group, OperationFilter filter, long conflateDelay,
+                              long resumeToken, StreamObserver<BackendProto.WatchResponse> responseObserver) {
+    String key = KeyTrie.normalize(watchKey);
+    //the commits up to the live sequence are offered to the registered streams before this one is registered
+    long liveAfter = storage == null ? 0 : storage.stableSequence();
+    WatchStream<BackendProto.WatchResponse> stream;
+    do {
+      stream = backendStreams.compute(responseObserver, (o, s) -> s == null || s.isClosed() ? new WatchStream<>(o,
+          BACKEND_MESSAGES, watcherExecutor, queueSize, overflowPolicy, metrics, this::backendStreamClosed,
+          Math.min(conflateDelay, maxConflateDelay), conflateTimer) : s);
+    } while (!stream.retain(key));
+    stream.joinGroup(group);
+    stream.setFilter(filter);
+    boolean resume = resumeToken > 0 && storage != null;
+    if (resume) {
+      Predicate<String> matcher = keyMatcher(key);
+      WatchStream<BackendProto.WatchResponse> member = stream;
+      //a group member replays the users it owns among the current members of the same watch key
+      stream.holdForReplay(new WatchStream.Replay(storage, resumeToken, liveAfter,
+          (userId, op) -> matcher.test(op.getKey()) && (filter == null || filter.test(userId, op)) &&
+              ConsumerGroups.owns(backendMembers(key), member, userId)));
     }
+    if (KeyTrie.isPattern(key))
+      backendPatterns.add(key, stream);
+    else
+      backendWatches.compute(key, register(stream));
+    if (resume)
+      stream.startReplay();
+    if (stream.isClosed())
+      backendStreamClosed(stream);
   }
 
   @Override
-  public void addClientWatch(String userId, String key, StreamObserver<ClientProto.WatchResponse> responseObserver) {
-    lock.writeLock().lock();
-    try {
-      clientWatches.putIfAbsent(userId, new HashMap<>());
-      clientWatches.get(userId).putIfAbsent(key, new LinkedList<>());
-      clientWatches.get(userId).get(key).add(responseObserver);
-    } finally {
-      lock.writeLock().unlock();
+  public void addClientWatch(String userId, String watchKey, long conflateDelay, List<Common.Operation> replay,
+                             StreamObserver<ClientProto.WatchResponse> responseObserver) {
+    String key = KeyTrie.normalize(watchKey);
+    WatchStream<ClientProto.WatchResponse> stream;
+    do {
+      stream = clientStreams.compute(responseObserver,
+          (o, s) -> s == null || s.isClosed() ? newClientStream(o, conflateDelay) : s);
+    } while (!stream.retain(key));
+    if (!stream.own(userId)) {
+      stream.release(key);
+      throw new IllegalArgumentException("the watch stream belongs to another user");
+    }
+    Predicate<String> matcher = keyMatcher(key);
+    List<Common.Operation> replayed = replay.stream()
+        .filter(op -> matcher.test(op.getKey()))
+        .collect(Collectors.toList());
+    if (!replayed.isEmpty())
+      stream.offer(userId, replayed, 0, 0);
+    WatchStream<ClientProto.WatchResponse> registered = stream;
+    if (KeyTrie.isPattern(key)) {
+      clientPatterns.compute(userId, (u, patterns) -> {
+        if (patterns == null)
+          patterns = new KeyTrie<>();
+        patterns.add(key, registered);
+        return patterns;
+      });
+    } else {
+      clientWatches.compute(userId, (u, keys) -> {
+        if (keys == null)
+          keys = new ConcurrentHashMap<>();
+        keys.compute(key, register(registered));
+        return keys;
+      });
     }
+    if (stream.isClosed())
+      clientStreamClosed(userId, stream);
   }
 
   @Override
-  public void notifyChange(String userId, List<Common.Operation> operations) {
-    operations.forEach(operation -> notifyChange(userId, operation));
+  public void openClientWatch(StreamObserver<ClientProto.WatchResponse> responseObserver) {
+    WatchStream<ClientProto.WatchResponse> stream = newClientStream(responseObserver, 0);
+    stream.hold();
+    clientStreams.put(responseObserver, stream);
   }
 
   @Override
-  public void notifyChange(String userId, Common.Operation operation) {
-    lock.readLock().lock();
-    try {
-      watcherExecutor.submit(() -> backendNotifyChange(userId, operation));
-      watcherExecutor.submit(() -> clientNotifyChange(userId, operation));
-    } finally {
-      lock.readLock().unlock();
-    }
+  public void openClientWatch(StreamObserver<ClientProto.WatchResponse> responseObserver, long conflateDelay) {
+    clientStreams.put(responseObserver, newClientStream(responseObserver, conflateDelay));
+  }
+
+  private WatchStream<ClientProto.WatchResponse> newClientStream(StreamObserver<ClientProto.WatchResponse> observer,
+                                                                 long conflateDelay) {
+    return new WatchStream<>(observer, CLIENT_MESSAGES, watcherExecutor, queueSize, overflowPolicy, metrics,
+        this::clientStreamClosed, Math.min(conflateDelay, maxConflateDelay), conflateTimer);
   }
 
   @Override
-  public void cancelAllClientWatch(String userId) {
-    lock.writeLock().lock();
-    try {
-      Map<String, List<StreamObserver<ClientProto.WatchResponse>>> map = clientWatches.remove(userId);
-      if (map == null) return;
-      map.values().forEach(soList -> soList.forEach(StreamObserver::onCompleted));
-    } finally {
-      lock.writeLock().unlock();
+  public void cancelClientWatch(String userId, String watchKey,
+                                StreamObserver<ClientProto.WatchResponse> responseObserver) {
+    String key = KeyTrie.normalize(watchKey);
+    WatchStream<ClientProto.WatchResponse> stream = clientStreams.get(responseObserver);
+    if (stream == null || !userId.equals(stream.owner())) return;
+    if (KeyTrie.isPattern(key)) {
+      clientPatterns.computeIfPresent(userId, (u, patterns) -> {
+        patterns.remove(key, stream);
+        return patterns.isEmpty() ? null : patterns;
+      });
+    } else {
+      clientWatches.computeIfPresent(userId, (u, keys) -> {
+        unregister(keys, key, stream);
+        return keys.isEmpty() ? null : keys;
+      });
     }
+    stream.release(key);
   }
 
   @Override
-  public void cancelClientWatch(String userId, String key) {
-    lock.writeLock().lock();
-    try {
-      Map<String, List<StreamObserver<ClientProto.WatchResponse>>> map = clientWatches.remove(userId);
-      if (map == null) return;
-      List<StreamObserver<ClientProto.WatchResponse>> soList = map.get(key);
-      if (soList == null) return;
-      soList.forEach(StreamObserver::onCompleted);
-    } finally {
-      lock.writeLock().unlock();
+  public void closeClientWatch(StreamObserver<ClientProto.WatchResponse> responseObserver, Status failure) {
+    WatchStream<ClientProto.WatchResponse> stream = clientStreams.get(responseObserver);
+    if (stream == null) return;
+    String userId = stream.owner();
+    if (userId != null)
+      for (String key : stream.keys())
+        cancelClientWatch(userId, key, responseObserver);
+    stream.close(failure);
+  }
+
+  private List<WatchStream<BackendProto.WatchResponse>> backendMembers(String key) {
+    return KeyTrie.isPattern(key) ? backendPatterns.get(key) : backendWatches.get(key);
+  }
+
+  private static <T> BiFunction<String, List<WatchStream<T>>, List<WatchStream<T>>> register(
+      WatchStream<T> stream) {
+    return (k, streams) -> {
+      if (streams == null)
+        streams = new CopyOnWriteArrayList<>();
+      if (!streams.contains(stream))
+        streams.add(stream);
+      return streams;
+    };
+  }
+
+  private static <T> void unregister(Map<String, List<WatchStream<T>>> watches, String key, WatchStream<T> stream) {
+    watches.computeIfPresent(key, (k, streams) -> {
+      streams.remove(stream);
+      return streams.isEmpty() ? null : streams;
+    });
+  }
+
+  private void backendStreamClosed(WatchStream<BackendProto.WatchResponse> stream) {
+    backendStreams.remove(stream.observer(), stream);
+    for (String key : stream.keys()) {
+      if (KeyTrie.isPattern(key))
+        backendPatterns.remove(key, stream);
+      else
+        unregister(backendWatches, key, stream);
     }
   }
 
+  private void clientStreamClosed(WatchStream<ClientProto.WatchResponse> stream) {
+    clientStreams.remove(stream.observer(), stream);
+    String userId = stream.owner();
+    //a multiplexed stream which never subscribed a key
+    if (userId == null) return;
+    List<String> streamKeys = stream.keys();
+    clientWatches.computeIfPresent(userId, (u, keys) -> {
+      for (String key : streamKeys)
+        unregister(keys, key, stream);
+      return keys.isEmpty() ? null : keys;
+    });
+    clientPatterns.computeIfPresent(userId, (u, patterns) -> {
+      for (String key : streamKeys)
+        if (KeyTrie.isPattern(key))
+          patterns.remove(key, stream);
+      return patterns.isEmpty() ? null : patterns;
+    });
+  }
+
+  private static Predicate<String> keyMatcher(String key) {
+    if (!KeyTrie.isPattern(key))
+      return k -> key.equals(KeyTrie.escape(k));
+    KeyTrie<String> trie = new KeyTrie<>();
+    trie.add(key, key);
+    return trie::matches;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
   @Override
-  public void cancelAllBackendWatch() {
-    lock.writeLock().lock();
-    try {
-      backendWatches.values().forEach(soList -> soList.forEach(StreamObserver::onCompleted));
-      backendWatches.clear();
-    } finally {
-      lock.writeLock().unlock();
+  public void onChange(String userId, List<Common.Operation> operations, long sequence, long stableSequence) {
+    dispatch(userId, operations, sequence, stableSequence);
+  }
+
+  /**
+   * notify the watchers of all the operations of a single commit. the streams are resolved once on the caller thread
+   * and every stream gets one message containing its operations in the commit order. the messages are just queued,
+   * sending them is up to the streams
+   */
+  private void dispatch(String userId, List<Common.Operation> operations, long sequence, long stableSequence) {
+    Map<WatchStream<BackendProto.WatchResponse>, List<Common.Operation>> backendBatches = new LinkedHashMap<>();
+    Map<WatchStream<ClientProto.WatchResponse>, List<Common.Operation>> clientBatches = new LinkedHashMap<>();
+    Map<String, List<WatchStream<ClientProto.WatchResponse>>> keys = clientWatches.get(userId);
+    KeyTrie<WatchStream<ClientProto.WatchResponse>> patterns = clientPatterns.get(userId);
+    int filtered = 0;
+    for (Common.Operation operation : operations) {
+      //the exact watches are kept by their canonical watch key
+      String key = KeyTrie.escape(operation.getKey());
+      filtered += group(backendBatches, backendWatches.get(key), backendPatterns, userId, operation);
+      filtered += group(clientBatches, keys == null ? null : keys.get(key), patterns, userId, operation);
     }
+    if (filtered > 0)
+      metrics.filtered(filtered);
+    //most of the commits have no watcher
+    if (backendBatches.isEmpty() && clientBatches.isEmpty()) return;
+    offer(backendBatches, userId, sequence, stableSequence);
+    offer(clientBatches, userId, sequence, stableSequence);
   }
 
-  @Override
-  public void cancelBackendWatch(String key) {
-    lock.writeLock().lock();
-    try {
-      List<StreamObserver<BackendProto.WatchResponse>> list = backendWatches.remove(key);
-      if (list == null) return;
-      list.forEach(StreamObserver::onCompleted);
-    } finally {
-      lock.writeLock().unlock();
+  /**
+   * the streams which get the same operations share a single message, so it is built and serialized once
+   */
+  private static <T> void offer(Map<WatchStream<T>, List<Common.Operation>> batches, String userId, long sequence,
+                                long stableSequence) {
+    if (batches.isEmpty()) return;
+    Map<List<Common.Operation>, WatchStream.Pending> pendings = new HashMap<>();
+    for (List<Common.Operation> ops : batches.values()) {
+      WatchStream.Pending pending = pendings.get(ops);
+      if (pending == null)
+        pendings.put(ops, new WatchStream.Pending(userId, ops, sequence, stableSequence));
+      else
+        pending.share();
     }
+    batches.forEach((stream, ops) -> stream.offer(pendings.get(ops)));
   }
 
-  private void clientNotifyChange(String userId, Common.Operation operation) {
-    List<StreamObserver<ClientProto.WatchResponse>> streamObservers = clientWatches.get(userId)
-        .getOrDefault(operation.getKey(), null);
-    if (streamObservers == null) return;
-    for (StreamObserver<ClientProto.WatchResponse> o : streamObservers) {
-      o.onNext(ClientProto.WatchResponse.newBuilder()
-          .setOperation(operation)
-          .build());
+  /**
+   * add the operation to the batches of the streams which get it
+   *
+   * @return number of the streams which match the operation but filter it out
+   */
+  private static <T> int group(Map<WatchStream<T>, List<Common.Operation>> batches, List<WatchStream<T>> streams,
+                               KeyTrie<WatchStream<T>> patterns, String userId, Common.Operation operation) {
+    if (patterns != null && !patterns.isEmpty()) {
+      //a stream could watch the key and several matching patterns, it gets the operation once
+      Set<WatchStream<T>> matched = new LinkedHashSet<>();
+      if (streams != null)
+        matched.addAll(streams);
+      patterns.match(operation.getKey(), matched::add);
+      streams = new ArrayList<>(matched);
+    }
+    if (streams == null) return 0;
+    int filtered = 0;
+    for (WatchStream<T> stream : ConsumerGroups.route(streams, userId)) {
+      OperationFilter filter = stream.filter();
+      if (filter != null && !filter.test(userId, operation)) {
+        filtered++;
+        continue;
+      }
+      batches.computeIfAbsent(stream, k -> new ArrayList<>()).add(operation);
     }
+    return filtered;
   }
 
-  private void backendNotifyChange(String userId, Common.Operation operation) {
-    List<StreamObserver<BackendProto.WatchResponse>> streamObservers = backendWatches.get(operation.getKey());
-    if (streamObservers == null) return;
-    for (StreamObserver<BackendProto.WatchResponse> o : streamObservers) {
-      o.onNext(BackendProto.WatchResponse.newBuilder()
-          .setOperation(operation)
-          .setUserId(userId)
-          .build());
+  @Override
+  public void cancelAllClientWatch(String userId) {
+    Map<String, List<WatchStream<ClientProto.WatchResponse>>> map = clientWatches.remove(userId);
+    if (map != null)
+      map.forEach((key, streams) -> streams.forEach(stream -> stream.release(key)));
+    KeyTrie<WatchStream<ClientProto.WatchResponse>> patterns = clientPatterns.remove(userId);
+    if (patterns != null)
+      patterns.entries().forEach((key, streams) -> streams.forEach(stream -> stream.release(key)));
+  }
+
+  @Override
+  public void cancelClientWatch(String userId, String watchKey) {
+    String key = KeyTrie.normalize(watchKey);
+    List<List<WatchStream<ClientProto.WatchResponse>>> removed = new ArrayList<>(1);
+    if (KeyTrie.isPattern(key)) {
+      clientPatterns.computeIfPresent(userId, (u, patterns) -> {
+        removed.add(patterns.removeAll(key));
+        return patterns.isEmpty() ? null : patterns;
+      });
     }
+    clientWatches.computeIfPresent(userId, (u, keys) -> {
+      List<WatchStream<ClientProto.WatchResponse>> streams = keys.remove(key);
+      if (streams != null)
+        removed.add(streams);
+      return keys.isEmpty() ? null : keys;
+    });
+    //release the streams out of the map operation, it takes the stream locks
+    removed.forEach(streams -> streams.forEach(stream -> stream.release(key)));
+  }
+
+  @Override
+  public void cancelAllBackendWatch() {
+    for (String key : backendWatches.keySet())
+      cancelBackendWatch(key);
+    for (String pattern : backendPatterns.entries().keySet())
+      cancelBackendWatch(pattern);
+  }
+
+  @Override
+  public void cancelBackendWatch(String watchKey) {
+    String key = KeyTrie.normalize(watchKey);
+    List<WatchStream<BackendProto.WatchResponse>> list = KeyTrie.isPattern(key) ? backendPatterns.removeAll(key) :
+        backendWatches.remove(key);
+    if (list == null) return;
+    list.forEach(stream -> stream.release(key));
   }
 
   @Override
   public void close() {
-    lock.writeLock().lock();
-    try {
-      backendWatches.values().forEach(streamObservers -> streamObservers.forEach(StreamObserver::onCompleted));
-      clientWatches.values().forEach(map -> map.values().forEach(
-          streamObservers -> streamObservers.forEach(StreamObserver::onCompleted)));
-    } finally {
-      lock.writeLock().unlock();
-    }
+    cancelAllBackendWatch();
+    for (String userId : clientWatches.keySet())
+      cancelAllClientWatch(userId);
+    for (String userId : clientPatterns.keySet())
+      cancelAllClientWatch(userId);
+    for (WatchStream<ClientProto.WatchResponse> stream : clientStreams.values())
+      stream.close(null);
+    //the conflated messages already scheduled are still flushed
+    conflateTimer.shutdown();
   }
 }
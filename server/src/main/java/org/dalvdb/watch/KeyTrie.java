@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.dalvdb.watch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Index of key patterns, each pattern is kept as a path of characters in a trie. A pattern could contain '*' which
+ * matches any sequence of characters, including the empty one, and '?' which matches exactly one character, so
+ * "cart.*" is a prefix pattern. A backslash escapes the next '*', '?' or backslash, so "rate\*" watches the key
+ * "rate*" alone, any other backslash stands for itself. Watch keys are kept in a canonical form, see
+ * {@link #normalize(String)}, so an exact watch is found by {@link #escape(String)} of an operation key.
+ * <p>
+ * Matching walks the key once and keeps the set of trie nodes which match the key so far. The set only holds the nodes
+ * of patterns which actually match a prefix of the key, so the cost of matching depends on the key length and the
+ * number of matching patterns, not on the number of indexed patterns.
+ * <p>
+ * Matching reads the trie without any lock. Modifications are serialized, so a registration is never lost because of a
+ * concurrent removal which prunes the same path.
+ */
+final class KeyTrie<V> {
+  private static final char ANY = '*';
+  private static final char ONE = '?';
+  private static final char ESCAPE = '\\';
+  //the tokens of the wildcards, any other token is a literal character
+  private static final int ANY_TOKEN = -1;
+  private static final int ONE_TOKEN = -2;
+  private final Node<V> root = new Node<>(false);
+
+  /**
+   * @return true if the key has a '*' or '?' which is not escaped
+   */
+  static boolean isPattern(String key) {
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      if (c == ESCAPE && escapes(key, i))
+        i++;
+      else if (c == ANY || c == ONE)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return the watch key in its canonical form, where a backslash which escapes nothing is escaped itself
+   */
+  static String normalize(String key) {
+    if (key.indexOf(ESCAPE) < 0) return key;
+    StringBuilder normalized = new StringBuilder(key.length() + 1);
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      normalized.append(c);
+      if (c == ESCAPE)
+        normalized.append(escapes(key, i) ? key.charAt(++i) : ESCAPE);
+    }
+    return normalized.toString();
+  }
+
+  /**
+   * @return the canonical watch key which matches the key alone
+   */
+  static String escape(String key) {
+    int i = 0;
+    while (i < key.length() && !isSpecial(key.charAt(i)))
+      i++;
+    //most of the keys have nothing to escape
+    if (i == key.length()) return key;
+    StringBuilder escaped = new StringBuilder(key.length() + 4).append(key, 0, i);
+    for (; i < key.length(); i++) {
+      char c = key.charAt(i);
+      if (isSpecial(c))
+        escaped.append(ESCAPE);
+      escaped.append(c);
+    }
+    return escaped.toString();
+  }
+
+  private static boolean isSpecial(char c) {
+    return c == ANY || c == ONE || c == ESCAPE;
+  }
+
+  private static boolean escapes(String key, int i) {
+    return i + 1 < key.length() && isSpecial(key.charAt(i + 1));
+  }
+
+  /**
+   * @return the pattern as literal characters and wildcard tokens
+   */
+  private static int[] tokens(String pattern) {
+    int[] tokens = new int[pattern.length()];
+    int n = 0;
+    for (int i = 0; i < pattern.length(); i++) {
+      char c = pattern.charAt(i);
+      if (c == ESCAPE && escapes(pattern, i))
+        tokens[n++] = pattern.charAt(++i);
+      else if (c == ANY)
+        tokens[n++] = ANY_TOKEN;
+      else if (c == ONE)
+        tokens[n++] = ONE_TOKEN;
+      else
+        tokens[n++] = c;
+    }
+    return Arrays.copyOf(tokens, n);
+  }
+
+  synchronized void add(String pattern, V value) {
+    Node<V> node = root;
+    for (int token : tokens(pattern)) {
+      //consecutive '*' are the same as one
+      if (token == ANY_TOKEN && node.star)
+        continue;
+      node = node.addChild(token);
+    }
+    node.pattern = pattern;
+    if (!node.values.contains(value))
+      node.values.add(value);
+  }
+
+  /**
+   * @return true if the value was registered on the pattern
+   */
+  synchronized boolean remove(String pattern, V value) {
+    List<Node<V>> path = path(pattern);
+    if (path == null) return false;
+    boolean removed = path.get(path.size() - 1).values.remove(value);
+    prune(path);
+    return removed;
+  }
+
+  /**
+   * remove the pattern with all its values
+   *
+   * @return the values of the pattern
+   */
+  synchronized List<V> removeAll(String pattern) {
+    List<Node<V>> path = path(pattern);
+    if (path == null) return Collections.emptyList();
+    Node<V> node = path.get(path.size() - 1);
+    List<V> values = new ArrayList<>(node.values);
+    node.values.clear();
+    prune(path);
+    return values;
+  }
+
+  /**
+   * @return the values of the pattern in their registration order, null if the pattern is not indexed
+   */
+  synchronized List<V> get(String pattern) {
+    List<Node<V>> path = path(pattern);
+    if (path == null) return null;
+    List<V> values = path.get(path.size() - 1).values;
+    return values.isEmpty() ? null : new ArrayList<>(values);
+  }
+
+  /**
+   * @return all the indexed patterns with their values
+   */
+  synchronized Map<String, List<V>> entries() {
+    Map<String, List<V>> entries = new HashMap<>();
+    collect(root, entries);
+    return entries;
+  }
+
+  private static <V> void collect(Node<V> node, Map<String, List<V>> entries) {
+    if (!node.values.isEmpty())
+      entries.put(node.pattern, new ArrayList<>(node.values));
+    for (Node<V> child : node.children.values())
+      collect(child, entries);
+    if (node.any != null)
+      collect(node.any, entries);
+    if (node.one != null)
+      collect(node.one, entries);
+  }
+
+  /**
+   * @return true if any pattern matches the key
+   */
+  boolean matches(String key) {
+    boolean[] matched = {false};
+    match(key, v -> matched[0] = true);
+    return matched[0];
+  }
+
+  boolean isEmpty() {
+    return !root.hasChildren();
+  }
+
+  /**
+   * pass the values of all the patterns which match the key to the consumer, a value registered on several matching
+   * patterns is passed once for each of them
+   */
+  void match(String key, Consumer<V> consumer) {
+    List<Node<V>> active = new ArrayList<>();
+    enter(root, active);
+    for (int i = 0; i < key.length() && !active.isEmpty(); i++) {
+      char c = key.charAt(i);
+      List<Node<V>> next = new ArrayList<>(active.size());
+      for (Node<V> node : active) {
+        if (node.star)
+          enter(node, next);
+        Node<V> child = node.children.get(c);
+        if (child != null)
+          enter(child, next);
+        child = node.one;
+        if (child != null)
+          enter(child, next);
+      }
+      active = next;
+    }
+    for (Node<V> node : active)
+      node.values.forEach(consumer);
+  }
+
+  /**
+   * add the node and the '*' following it, which could match an empty sequence, to the active nodes
+   */
+  private static <V> void enter(Node<V> node, List<Node<V>> active) {
+    if (!active.contains(node))
+      active.add(node);
+    Node<V> star = node.any;
+    if (star != null && !active.contains(star))
+      active.add(star);
+  }
+
+  /**
+   * @return the nodes from the root to the node of the pattern, or null if the pattern is not indexed
+   */
+  private List<Node<V>> path(String pattern) {
+    List<Node<V>> path = new ArrayList<>(pattern.length() + 1);
+    Node<V> node = root;
+    path.add(node);
+    for (int token : tokens(pattern)) {
+      if (token == ANY_TOKEN && node.star)
+        continue;
+      node = node.child(token);
+      if (node == null) return null;
+      path.add(node);
+    }
+    return path;
+  }
+
+  /**
+   * remove the nodes of the path which have neither a value nor a child, from the end of the path
+   */
+  private void prune(List<Node<V>> path) {
+    for (int i = path.size() - 1; i > 0; i--) {
+      Node<V> node = path.get(i);
+      if (!node.values.isEmpty() || node.hasChildren())
+        return;
+      path.get(i - 1).removeChild(node);
+    }
+  }
+
+  private static final class Node<V> {
+    final boolean star;
+    //the children of the literal characters, the wildcards are kept apart so they could be escaped
+    final Map<Character, Node<V>> children = new ConcurrentHashMap<>(4);
+    volatile Node<V> any;
+    volatile Node<V> one;
+    final List<V> values = new CopyOnWriteArrayList<>();
+    //the pattern which ends in this node, set when a value is added
+    String pattern;
+
+    Node(boolean star) {
+      this.star = star;
+    }
+
+    Node<V> child(int token) {
+      if (token == ANY_TOKEN) return any;
+      if (token == ONE_TOKEN) return one;
+      return children.get((char) token);
+    }
+
+    Node<V> addChild(int token) {
+      if (token == ANY_TOKEN) {
+        if (any == null)
+          any = new Node<>(true);
+        return any;
+      }
+      if (token == ONE_TOKEN) {
+        if (one == null)
+          one = new Node<>(false);
+        return one;
+      }
+      return children.computeIfAbsent((char) token, k -> new Node<>(false));
+    }
+
+    void removeChild(Node<V> child) {
+      if (any == child)
+        any = null;
+      else if (one == child)
+        one = null;
+      else
+        children.values().remove(child);
+    }
+
+    boolean hasChildren() {
+      return !children.isEmpty() || any != null || one != null;
+    }
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.watch;
+
+import com.google.common.hash.Hashing;
+import com.google.protobuf.ByteString;
+import dalv.common.Common;
+import org.dalvdb.proto.BackendProto;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The server side filter of a backend watch, compiled from a {@link BackendProto.WatchFilter}. An operation passes if
+ * it satisfies every condition which is set: its type, its user being in the allow-list or the hash range and its
+ * value starting with one of the prefixes.
+ */
+public final class OperationFilter {
+  private final Set<Common.OpType> types;
+  private final Set<String> userIds;
+  private final int hashBuckets;
+  private final int hashFrom;
+  private final int hashTo;
+  private final List<ByteString> valuePrefixes;
+
+  private OperationFilter(BackendProto.WatchFilter filter) {
+    this.types = filter.getOpTypesCount() == 0 ? null : EnumSet.copyOf(filter.getOpTypesList());
+    this.userIds = filter.getUserIdsCount() == 0 ? null : new HashSet<>(filter.getUserIdsList());
+    this.hashBuckets = filter.getHashBuckets();
+    this.hashFrom = filter.getHashFrom();
+    this.hashTo = filter.getHashTo();
+    this.valuePrefixes = filter.getValuePrefixesCount() == 0 ? null : new ArrayList<>(filter.getValuePrefixesList());
+  }
+
+  /**
+   * @return the filter or null if the request has no condition, so every operation passes
+   */
+  public static OperationFilter of(BackendProto.WatchFilter filter) {
+    if (filter.equals(BackendProto.WatchFilter.getDefaultInstance()))
+      return null;
+    if (filter.getHashBuckets() != 0 &&
+        (filter.getHashFrom() >= filter.getHashTo() || filter.getHashTo() > filter.getHashBuckets()))
+      throw new IllegalArgumentException("invalid hash range [" + filter.getHashFrom() + ", " + filter.getHashTo() +
+          ") of " + filter.getHashBuckets() + " buckets");
+    return new OperationFilter(filter);
+  }
+
+  /**
+   * @return the hash bucket of the user, the unsigned murmur3 32-bit hash of its UTF-8 id modulo the buckets
+   */
+  static int bucket(String userId, int buckets) {
+    return (int) (Integer.toUnsignedLong(Hashing.murmur3_32().hashString(userId, StandardCharsets.UTF_8).asInt())
+        % buckets);
+  }
+
+  boolean test(String userId, Common.Operation operation) {
+    if (types != null && !types.contains(operation.getType()))
+      return false;
+    if (userIds != null && !userIds.contains(userId))
+      return false;
+    if (hashBuckets != 0) {
+      int bucket = bucket(userId, hashBuckets);
+      if (bucket < hashFrom || bucket >= hashTo)
+        return false;
+    }
+    if (valuePrefixes == null)
+      return true;
+    for (ByteString prefix : valuePrefixes)
+      if (operation.getVal().startsWith(prefix))
+        return true;
+    return false;
+  }
+}
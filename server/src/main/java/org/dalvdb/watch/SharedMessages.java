@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.watch;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.protobuf.MessageLite;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.ServiceDescriptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Serialize a watch message once for all the streams it is sent to.
+ * <p>
+ * A message which is shared between several streams is serialized when it is built and the bytes are kept as long as
+ * the message is reachable. The response marshaller of the watch methods writes the kept bytes of a message instead
+ * of serializing it again, other messages are serialized by the original marshaller.
+ */
+public final class SharedMessages {
+  //weak keys are compared by identity
+  private static final Cache<Object, byte[]> serialized = CacheBuilder.newBuilder().weakKeys().build();
+
+  private SharedMessages() {
+    throw new IllegalStateException();
+  }
+
+  static void serialize(Object message) {
+    if (message instanceof MessageLite)
+      serialized.put(message, ((MessageLite) message).toByteArray());
+  }
+
+  /**
+   * @param service the bound service
+   * @param methods the methods which send the shared messages
+   * @return the same service, its methods send the serialized bytes of the shared messages
+   */
+  public static ServerServiceDefinition bind(ServerServiceDefinition service, MethodDescriptor<?, ?>... methods) {
+    Set<String> names = new HashSet<>();
+    for (MethodDescriptor<?, ?> method : methods)
+      names.add(method.getFullMethodName());
+    ServiceDescriptor descriptor = service.getServiceDescriptor();
+    ServiceDescriptor.Builder descriptorBuilder = ServiceDescriptor.newBuilder(descriptor.getName())
+        .setSchemaDescriptor(descriptor.getSchemaDescriptor());
+    List<ServerMethodDefinition<?, ?>> definitions = new ArrayList<>();
+    for (ServerMethodDefinition<?, ?> definition : service.getMethods()) {
+      if (names.contains(definition.getMethodDescriptor().getFullMethodName()))
+        definition = withSharedResponses(definition);
+      definitions.add(definition);
+      descriptorBuilder.addMethod(definition.getMethodDescriptor());
+    }
+    ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(descriptorBuilder.build());
+    definitions.forEach(builder::addMethod);
+    return builder.build();
+  }
+
+  private static <ReqT, RespT> ServerMethodDefinition<ReqT, RespT> withSharedResponses(
+      ServerMethodDefinition<ReqT, RespT> definition) {
+    MethodDescriptor<ReqT, RespT> method = definition.getMethodDescriptor();
+    return ServerMethodDefinition.create(method.toBuilder()
+        .setResponseMarshaller(new Marshaller<>(method.getResponseMarshaller()))
+        .build(), definition.getServerCallHandler());
+  }
+
+  private static final class Marshaller<T> implements MethodDescriptor.Marshaller<T> {
+    private final MethodDescriptor.Marshaller<T> delegate;
+
+    Marshaller(MethodDescriptor.Marshaller<T> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public InputStream stream(T value) {
+      byte[] bytes = serialized.getIfPresent(value);
+      return bytes == null ? delegate.stream(value) : new SerializedStream(bytes);
+    }
+
+    @Override
+    public T parse(InputStream stream) {
+      return delegate.parse(stream);
+    }
+  }
+
+  /**
+   * the transport asks for the length and drains the bytes to its buffer without another copy
+   */
+  private static final class SerializedStream extends ByteArrayInputStream implements KnownLength, Drainable {
+    SerializedStream(byte[] bytes) {
+      super(bytes);
+    }
+
+    @Override
+    public int drainTo(OutputStream target) throws IOException {
+      int length = count - pos;
+      target.write(buf, pos, length);
+      pos = count;
+      return length;
+    }
+  }
+}
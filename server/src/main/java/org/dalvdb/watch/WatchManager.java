@@ -19,20 +19,79 @@ package org.dalvdb.watch;
 
 
 import dalv.common.Common;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import org.dalvdb.proto.BackendProto;
 import org.dalvdb.proto.ClientProto;
+import org.dalvdb.storage.ChangeListener;
 
+import java.util.Collections;
 import java.util.List;
 
-public interface WatchManager {
-  void addBackendWatch(String key, StreamObserver<BackendProto.WatchResponse> responseObserver);
+public interface WatchManager extends ChangeListener {
+  default void addBackendWatch(String key, StreamObserver<BackendProto.WatchResponse> responseObserver) {
+    addBackendWatch(key, 0, 0, responseObserver);
+  }
 
-  void addClientWatch(String userId, String key, StreamObserver<ClientProto.WatchResponse> responseObserver);
+  /**
+   * @param conflateDelay milliseconds the events could be held to merge the superseded ones, zero means no conflation
+   * @param resumeToken   replay the recorded changes after this token before the live ones, zero means no replay
+   */
+  default void addBackendWatch(String key, long conflateDelay, long resumeToken,
+                               StreamObserver<BackendProto.WatchResponse> responseObserver) {
+    addBackendWatch(key, "", null, conflateDelay, resumeToken, responseObserver);
+  }
 
-  void notifyChange(String userId, List<Common.Operation> operations);
+  default void addBackendWatch(String key, String group, long conflateDelay, long resumeToken,
+                               StreamObserver<BackendProto.WatchResponse> responseObserver) {
+    addBackendWatch(key, group, null, conflateDelay, resumeToken, responseObserver);
+  }
 
-  void notifyChange(String userId, Common.Operation operation);
+  /**
+   * @param group  consumer group of the watch, the watches of a group split the users of the key. empty means the
+   *               watch gets the events of all the users
+   * @param filter the operations sent to the watch, null means all of them
+   */
+  void addBackendWatch(String key, String group, OperationFilter filter, long conflateDelay, long resumeToken,
+                       StreamObserver<BackendProto.WatchResponse> responseObserver);
+
+  default void addClientWatch(String userId, String key, StreamObserver<ClientProto.WatchResponse> responseObserver) {
+    addClientWatch(userId, key, 0, Collections.emptyList(), responseObserver);
+  }
+
+  /**
+   * @param conflateDelay milliseconds the events could be held to merge the superseded ones, zero means no conflation
+   * @param replay        operations of the user to send before the live ones, the matching ones are sent. the caller
+   *                      should hold the user lock, so no commit of the user is missed or sent twice
+   */
+  void addClientWatch(String userId, String key, long conflateDelay, List<Common.Operation> replay,
+                      StreamObserver<ClientProto.WatchResponse> responseObserver);
+
+  /**
+   * open the stream of a multiplexed watch call, it stays open without any key. the keys are subscribed by
+   * {@link #addClientWatch} and unsubscribed by {@link #cancelClientWatch(String, String, StreamObserver)} with the
+   * same observer. must be called on the thread of the call handler
+   */
+  void openClientWatch(StreamObserver<ClientProto.WatchResponse> responseObserver);
+
+  /**
+   * open the stream of a single watch call whose key is registered later on another thread by {@link #addClientWatch}
+   * with the same observer. it is completed once the key is released like the one created by addClientWatch. must be
+   * called on the thread of the call handler
+   */
+  void openClientWatch(StreamObserver<ClientProto.WatchResponse> responseObserver, long conflateDelay);
+
+  /**
+   * unsubscribe a key of a single client stream, the other streams of the user keep watching it
+   */
+  void cancelClientWatch(String userId, String key, StreamObserver<ClientProto.WatchResponse> responseObserver);
+
+  /**
+   * unsubscribe all the keys of a client stream and close it
+   *
+   * @param failure the status to close the stream with, null means complete it after the queued events are sent
+   */
+  void closeClientWatch(StreamObserver<ClientProto.WatchResponse> responseObserver, Status failure);
 
   void cancelAllClientWatch(String userId);
 
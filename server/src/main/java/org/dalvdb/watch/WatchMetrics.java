@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.dalvdb.watch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Delivery metrics of the watch streams. Counters are updated by the streams, the depth of the longest queue is only
+ * computed when it is read.
+ */
+public class WatchMetrics implements WatchMetricsMXBean {
+  private static final Logger logger = LoggerFactory.getLogger(WatchMetrics.class);
+  private final Set<WatchStream<?>> streams = ConcurrentHashMap.newKeySet();
+  private final LongAdder queuedMessages = new LongAdder();
+  private final LongAdder droppedMessages = new LongAdder();
+  private final LongAdder conflatedOperations = new LongAdder();
+  private final LongAdder disconnectedStreams = new LongAdder();
+  private final LongAdder filteredOperations = new LongAdder();
+
+  /**
+   * register the metrics in the platform MBean server
+   */
+  public void register() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("org.dalvdb:type=Watches"));
+    } catch (JMException e) {
+      logger.warn("could not register watch metrics", e);
+    }
+  }
+
+  void streamOpened(WatchStream<?> stream) {
+    streams.add(stream);
+  }
+
+  void streamClosed(WatchStream<?> stream) {
+    streams.remove(stream);
+  }
+
+  void queued(int delta) {
+    queuedMessages.add(delta);
+  }
+
+  void dropped(int count) {
+    droppedMessages.add(count);
+  }
+
+  void conflated(int count) {
+    conflatedOperations.add(count);
+  }
+
+  void disconnected() {
+    disconnectedStreams.increment();
+  }
+
+  void filtered(int count) {
+    filteredOperations.add(count);
+  }
+
+  @Override
+  public int getStreams() {
+    return streams.size();
+  }
+
+  @Override
+  public long getQueuedMessages() {
+    return queuedMessages.sum();
+  }
+
+  @Override
+  public int getMaxQueueDepth() {
+    int max = 0;
+    for (WatchStream<?> stream : streams)
+      max = Math.max(max, stream.depth());
+    return max;
+  }
+
+  @Override
+  public long getDroppedMessages() {
+    return droppedMessages.sum();
+  }
+
+  @Override
+  public long getConflatedOperations() {
+    return conflatedOperations.sum();
+  }
+
+  @Override
+  public long getDisconnectedStreams() {
+    return disconnectedStreams.sum();
+  }
+
+  @Override
+  public long getFilteredOperations() {
+    return filteredOperations.sum();
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.dalvdb.watch;
+
+/**
+ * JMX view of the watch delivery metrics, registered as org.dalvdb:type=Watches
+ */
+public interface WatchMetricsMXBean {
+  /**
+   * @return number of open watch streams
+   */
+  int getStreams();
+
+  /**
+   * @return number of messages waiting in the outbound queues of all the streams
+   */
+  long getQueuedMessages();
+
+  /**
+   * @return the depth of the longest outbound queue
+   */
+  int getMaxQueueDepth();
+
+  /**
+   * @return number of messages dropped because of a full queue
+   */
+  long getDroppedMessages();
+
+  /**
+   * @return number of operations removed from full queues because a newer operation superseded them
+   */
+  long getConflatedOperations();
+
+  /**
+   * @return number of streams closed because of a full queue
+   */
+  long getDisconnectedStreams();
+
+  /**
+   * @return number of operations not sent to a matching stream because of its filter
+   */
+  long getFilteredOperations();
+}
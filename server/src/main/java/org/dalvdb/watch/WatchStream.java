@@ -0,0 +1,658 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.dalvdb.watch;
+
+import dalv.common.Common;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.dalvdb.exception.InternalServerException;
+import org.dalvdb.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+
+/**
+ * The outbound side of a single watch call. Messages are put in a bounded queue by the notifying thread and sent by a
+ * single drain task on the watcher executor, so the calls to the observer are serialized and never block on the
+ * network: the drain stops as soon as the transport is not ready and is resumed by the gRPC on-ready handler.
+ * <p>
+ * When the queue is full the {@link OverflowPolicy} decides what to give up. A stream could be registered on several
+ * keys, it is completed when the last registration is released. A held stream, the one of a multiplexed watch call,
+ * stays open without any registration until it is closed.
+ * <p>
+ * A conflating stream holds a new message up to its conflate delay before sending, and every drain first merges the
+ * queued messages and removes the operations superseded by a newer PUT or DEL of the same key. List operations are
+ * never merged since each of them changes the value.
+ * <p>
+ * A stream could start with a {@link Replay} of the recorded changes, which is sent before any live message. The live
+ * messages which are queued meanwhile and were also replayed are skipped.
+ */
+final class WatchStream<T> {
+  private static final Logger logger = LoggerFactory.getLogger(WatchStream.class);
+  private static final AtomicLong MEMBER_IDS = new AtomicLong();
+  /**
+   * trailer of a disconnected stream, the resume token of the last message which was sent before the disconnection
+   */
+  static final Metadata.Key<String> RESUME_TOKEN = Metadata.Key.of("dalv-resume-token",
+      Metadata.ASCII_STRING_MARSHALLER);
+
+  enum OverflowPolicy {
+    /**
+     * drop the oldest queued message
+     */
+    DROP_OLDEST,
+    /**
+     * remove the queued operations which are superseded by a newer PUT or DEL of the same key, drop the oldest message
+     * if it does not free any space
+     */
+    CONFLATE,
+    /**
+     * close the stream with RESOURCE_EXHAUSTED and a {@link #RESUME_TOKEN} trailer
+     */
+    DISCONNECT;
+
+    static OverflowPolicy of(String name) {
+      return valueOf(name.toUpperCase());
+    }
+  }
+
+  /**
+   * build the message of the stream from the operations of a commit
+   */
+  interface MessageFactory<T> {
+    T create(String userId, List<Common.Operation> operations, long sequence, long resumeToken);
+  }
+
+  private final StreamObserver<T> observer;
+  private final ServerCallStreamObserver<T> serverObserver;
+  private final MessageFactory<T> factory;
+  private final Executor executor;
+  private final int capacity;
+  private final OverflowPolicy policy;
+  private final WatchMetrics metrics;
+  private final Consumer<WatchStream<T>> onClose;
+  private final long conflateDelay;
+  private final ScheduledExecutorService timer;
+  private final Deque<Pending> queue = new ArrayDeque<>();
+  private final Set<String> keys = new HashSet<>();
+  private final long memberId = MEMBER_IDS.incrementAndGet();
+  private boolean draining;
+  private boolean flushScheduled;
+  private boolean completing;
+  private boolean disconnecting;
+  private boolean closed;
+  private boolean held;
+  private Replay replay;
+  private Status failure;
+  //only touched by the drain task
+  private long lastResumeToken;
+  private Replay duplicates;
+  private boolean replayStarted;
+  private volatile String group = "";
+  private volatile OperationFilter filter;
+  private volatile String owner;
+
+  /**
+   * must be created on the thread of the call handler, since it registers the on-ready and cancel handlers of the call
+   *
+   * @param onClose called once when the stream is closed, to remove it from the registry
+   */
+  WatchStream(StreamObserver<T> observer, MessageFactory<T> factory, Executor executor, int capacity,
+              OverflowPolicy policy, WatchMetrics metrics, Consumer<WatchStream<T>> onClose) {
+    this(observer, factory, executor, capacity, policy, metrics, onClose, 0, null);
+  }
+
+  /**
+   * @param conflateDelay milliseconds a new message could be held to be merged with the next ones, zero means no
+   *                      conflation
+   * @param timer         schedules the delayed drains of a conflating stream
+   */
+  WatchStream(StreamObserver<T> observer, MessageFactory<T> factory, Executor executor, int capacity,
+              OverflowPolicy policy, WatchMetrics metrics, Consumer<WatchStream<T>> onClose, long conflateDelay,
+              ScheduledExecutorService timer) {
+    this.observer = observer;
+    this.factory = factory;
+    this.executor = executor;
+    this.capacity = capacity;
+    this.policy = policy;
+    this.metrics = metrics;
+    this.onClose = onClose;
+    this.conflateDelay = conflateDelay;
+    this.timer = timer;
+    if (observer instanceof ServerCallStreamObserver) {
+      this.serverObserver = (ServerCallStreamObserver<T>) observer;
+      serverObserver.setOnReadyHandler(this::onReady);
+      serverObserver.setOnCancelHandler(this::onCancel);
+    } else {
+      this.serverObserver = null;
+    }
+    metrics.streamOpened(this);
+  }
+
+  /**
+   * register the stream on a key
+   *
+   * @return false if the stream is already closed and could not be used anymore
+   */
+  synchronized boolean retain(String key) {
+    if (closed || completing || disconnecting)
+      return false;
+    keys.add(key);
+    return true;
+  }
+
+  /**
+   * release the registration of a key, the stream is completed after the queued messages are sent if it was the last
+   * registration
+   */
+  synchronized void release(String key) {
+    keys.remove(key);
+    if (keys.isEmpty() && !held && !closed) {
+      completing = true;
+      scheduleDrain();
+    }
+  }
+
+  /**
+   * keep the stream open when it has no registration, so the keys of a multiplexed call could be subscribed later
+   */
+  synchronized void hold() {
+    held = true;
+  }
+
+  /**
+   * close a held stream, it is completed after the queued messages are sent once the keys are released
+   *
+   * @param failure the status to close the stream with, null means complete it normally
+   */
+  synchronized void close(Status failure) {
+    held = false;
+    if (closed || completing || disconnecting)
+      return;
+    if (failure != null) {
+      this.failure = failure;
+      disconnecting = true;
+      metrics.queued(-queue.size());
+      queue.clear();
+      scheduleDrain();
+    } else if (keys.isEmpty()) {
+      completing = true;
+      scheduleDrain();
+    }
+  }
+
+  /**
+   * bind a client stream to its user, a client stream gets the events of a single user
+   *
+   * @return false if the stream is already bound to another user
+   */
+  synchronized boolean own(String userId) {
+    if (owner == null)
+      owner = userId;
+    return owner.equals(userId);
+  }
+
+  /**
+   * @return the user of a client stream, null if it is not bound yet
+   */
+  String owner() {
+    return owner;
+  }
+
+  /**
+   * join a consumer group, the stream would get just its share of the users, see {@link ConsumerGroups}
+   */
+  void joinGroup(String group) {
+    this.group = group;
+  }
+
+  /**
+   * @return the consumer group of the stream, empty if it has none
+   */
+  String group() {
+    return group;
+  }
+
+  /**
+   * @return an id which is unique among the streams and never changes, it places the stream in its group
+   */
+  long memberId() {
+    return memberId;
+  }
+
+  void setFilter(OperationFilter filter) {
+    this.filter = filter;
+  }
+
+  /**
+   * @return the filter of the operations sent to the stream, null means all the operations
+   */
+  OperationFilter filter() {
+    return filter;
+  }
+
+  StreamObserver<T> observer() {
+    return observer;
+  }
+
+  synchronized List<String> keys() {
+    return new ArrayList<>(keys);
+  }
+
+  synchronized boolean isClosed() {
+    return closed;
+  }
+
+  synchronized int depth() {
+    return queue.size();
+  }
+
+  /**
+   * replay the changes before the live messages which are not sent yet, nothing is sent until the replay is started
+   */
+  synchronized void holdForReplay(Replay replay) {
+    this.replay = replay;
+    this.replayStarted = false;
+  }
+
+  /**
+   * start the replay once the stream is registered for the live messages, so every commit which is not read by the
+   * replay is offered to the stream
+   */
+  synchronized void startReplay() {
+    replayStarted = true;
+    scheduleDrain();
+  }
+
+  /**
+   * queue the operations of a commit, never blocks
+   *
+   * @param resumeToken the stable sequence of the storage before the commit, all the commits up to it are already
+   *                    offered to the stream
+   */
+  void offer(String userId, List<Common.Operation> operations, long sequence, long resumeToken) {
+    offer(new Pending(userId, operations, sequence, resumeToken));
+  }
+
+  /**
+   * queue a message which could be offered to other streams too, see {@link Pending#share()}
+   */
+  void offer(Pending pending) {
+    synchronized (this) {
+      if (closed || completing || disconnecting)
+        return;
+      if (queue.size() >= capacity && !overflow())
+        return;
+      queue.add(pending);
+      metrics.queued(1);
+      if (conflateDelay <= 0) {
+        scheduleDrain();
+      } else if (!flushScheduled && !draining) {
+        flushScheduled = true;
+        timer.schedule(this::flush, conflateDelay, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  private synchronized void flush() {
+    flushScheduled = false;
+    scheduleDrain();
+  }
+
+  /**
+   * @return false if the new message should be dropped
+   */
+  private boolean overflow() {
+    switch (policy) {
+      case CONFLATE:
+        int size = queue.size();
+        metrics.conflated(conflate(queue));
+        metrics.queued(queue.size() - size);
+        if (queue.size() < capacity)
+          return true;
+        //fall through, nothing to conflate
+      case DROP_OLDEST:
+        queue.poll();
+        metrics.queued(-1);
+        metrics.dropped(1);
+        return true;
+      default:
+        disconnecting = true;
+        metrics.queued(-queue.size());
+        metrics.dropped(queue.size());
+        queue.clear();
+        scheduleDrain();
+        return false;
+    }
+  }
+
+  /**
+   * remove the operations which are superseded by a newer PUT or DEL of the same user and key, a PUT or DEL replaces
+   * the whole value so any older operation of that key is useless for the watcher. messages left without operations
+   * are removed
+   *
+   * @return number of removed operations
+   */
+  static int conflate(Deque<Pending> queue) {
+    Set<String> superseded = new HashSet<>();
+    Deque<Pending> conflated = new ArrayDeque<>(queue.size());
+    int removed = 0;
+    for (Iterator<Pending> it = queue.descendingIterator(); it.hasNext(); ) {
+      Pending pending = it.next();
+      List<Common.Operation> kept = new ArrayList<>(pending.operations.size());
+      for (int i = pending.operations.size() - 1; i >= 0; i--) {
+        Common.Operation op = pending.operations.get(i);
+        String id = pending.userId + '\0' + op.getKey();
+        if (!op.getKey().isEmpty() && superseded.contains(id)) {
+          removed++;
+          continue;
+        }
+        kept.add(op);
+        if (op.getType() == Common.OpType.PUT || op.getType() == Common.OpType.DEL)
+          superseded.add(id);
+      }
+      if (kept.size() == pending.operations.size()) {
+        conflated.addFirst(pending);
+      } else if (!kept.isEmpty()) {
+        //the message could be shared with other streams, so it is replaced instead of changed
+        Collections.reverse(kept);
+        conflated.addFirst(new Pending(pending.userId, kept, pending.sequence, pending.resumeToken));
+      }
+    }
+    queue.clear();
+    queue.addAll(conflated);
+    return removed;
+  }
+
+  /**
+   * merge the adjacent messages of the same user into the newest of them, after removing the superseded operations
+   *
+   * @return number of removed operations
+   */
+  static int coalesce(Deque<Pending> queue) {
+    int removed = conflate(queue);
+    if (queue.size() < 2)
+      return removed;
+    Deque<Pending> merged = new ArrayDeque<>(queue.size());
+    for (Pending pending : queue) {
+      Pending last = merged.peekLast();
+      if (last != null && last.userId.equals(pending.userId)) {
+        List<Common.Operation> operations = new ArrayList<>(last.operations.size() + pending.operations.size());
+        operations.addAll(last.operations);
+        operations.addAll(pending.operations);
+        merged.pollLast();
+        merged.add(new Pending(pending.userId, operations, pending.sequence, pending.resumeToken));
+      } else {
+        merged.add(pending);
+      }
+    }
+    queue.clear();
+    queue.addAll(merged);
+    return removed;
+  }
+
+  private void scheduleDrain() {
+    if (draining) return;
+    draining = true;
+    executor.execute(this::drain);
+  }
+
+  private void onReady() {
+    synchronized (this) {
+      if (!queue.isEmpty() || replay != null || completing || disconnecting)
+        scheduleDrain();
+    }
+  }
+
+  private void onCancel() {
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      metrics.queued(-queue.size());
+      queue.clear();
+    }
+    closed();
+  }
+
+  private void drain() {
+    if (conflateDelay > 0) {
+      synchronized (this) {
+        int size = queue.size();
+        metrics.conflated(coalesce(queue));
+        metrics.queued(queue.size() - size);
+      }
+    }
+    while (true) {
+      Pending next = null;
+      Replay replaying = null;
+      boolean complete = false;
+      boolean disconnect = false;
+      synchronized (this) {
+        if (closed) {
+          draining = false;
+          return;
+        }
+        if (completing)
+          replay = null;
+        if (disconnecting) {
+          disconnect = true;
+        } else if (replay != null && replayStarted && isReady()) {
+          replaying = replay;
+        } else if (replay == null && !queue.isEmpty() && isReady()) {
+          next = queue.poll();
+          metrics.queued(-1);
+        } else if (queue.isEmpty() && completing) {
+          complete = true;
+        } else {
+          //the on-ready handler resumes the drain
+          draining = false;
+          return;
+        }
+        if (disconnect || complete) {
+          closed = true;
+          draining = false;
+        }
+      }
+      try {
+        if (replaying != null) {
+          next = replaying.next();
+          if (next == null) {
+            synchronized (this) {
+              replay = null;
+            }
+            duplicates = replaying;
+            continue;
+          }
+        } else if (next != null && duplicates != null) {
+          if (duplicates.isReplayed(next)) continue;
+          //all the commits up to the newest replayed one are offered before this message, no more duplicate
+          if (next.resumeToken >= duplicates.maxReplayed)
+            duplicates = null;
+        }
+        if (next != null) {
+          observer.onNext(next.message(factory));
+          lastResumeToken = next.resumeToken;
+          continue;
+        }
+        if (disconnect) {
+          Metadata trailers = new Metadata();
+          trailers.put(RESUME_TOKEN, String.valueOf(lastResumeToken));
+          Status status = failure != null ? failure : Status.RESOURCE_EXHAUSTED.withDescription("watch queue overflow");
+          observer.onError(status.asRuntimeException(trailers));
+          if (failure == null)
+            metrics.disconnected();
+        } else {
+          observer.onCompleted();
+        }
+      } catch (InternalServerException e) {
+        //the replay could not read the changes, close the stream so the watcher could resume it later
+        logger.error("could not replay the changes to the watch stream", e);
+        synchronized (this) {
+          replay = null;
+          failure = Status.UNAVAILABLE.withDescription("could not replay the changes");
+          disconnecting = true;
+          metrics.queued(-queue.size());
+          queue.clear();
+        }
+        continue;
+      } catch (RuntimeException e) {
+        //the call is already cancelled or closed by the peer
+        logger.debug("could not deliver to the watch stream", e);
+        if (next == null) {
+          closed();
+          return;
+        }
+        synchronized (this) {
+          if (closed) return;
+          closed = true;
+          draining = false;
+          metrics.queued(-queue.size());
+          queue.clear();
+        }
+      }
+      closed();
+      return;
+    }
+  }
+
+  private boolean isReady() {
+    return serverObserver == null || serverObserver.isReady();
+  }
+
+  private void closed() {
+    metrics.streamClosed(this);
+    onClose.accept(this);
+  }
+
+  /**
+   * A message in the queue, it is immutable. The same pending could be offered to several streams of the same factory,
+   * then the message is built once and serialized once for all of them.
+   */
+  static final class Pending {
+    final String userId;
+    final long sequence;
+    final long resumeToken;
+    final List<Common.Operation> operations;
+    private boolean shared;
+    private MessageFactory<?> factory;
+    private Object message;
+
+    Pending(String userId, List<Common.Operation> operations, long sequence, long resumeToken) {
+      this.userId = userId;
+      this.operations = operations;
+      this.sequence = sequence;
+      this.resumeToken = resumeToken;
+    }
+
+    /**
+     * mark the pending as offered to more than one stream, so its message is serialized once
+     */
+    synchronized void share() {
+      shared = true;
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized <T> T message(MessageFactory<T> factory) {
+      if (this.factory != factory) {
+        this.factory = factory;
+        this.message = factory.create(userId, operations, sequence, resumeToken);
+        if (shared)
+          SharedMessages.serialize(message);
+      }
+      return (T) message;
+    }
+  }
+
+  /**
+   * Read the recorded changes after a resume token in chunks and pass the operations which the stream watches. The
+   * replay ends when it reaches the newest recorded change.
+   * <p>
+   * The commits after the live sequence could also be offered to the stream as live messages, so the replay keeps
+   * their sequences to skip the duplicates.
+   */
+  static final class Replay {
+    private static final int CHUNK_SIZE = 256;
+    private final StorageService storage;
+    private final BiPredicate<String, Common.Operation> filter;
+    private final long liveAfter;
+    private final Deque<Pending> buffer = new ArrayDeque<>();
+    private final Set<Long> replayed = new HashSet<>();
+    private long position;
+    private long maxReplayed;
+    private boolean exhausted;
+
+    /**
+     * @param after     the resume token, the changes after it are replayed
+     * @param liveAfter the stable sequence of the storage before the stream is registered for live messages
+     * @param filter    whether an operation of a user should be sent to the stream
+     */
+    Replay(StorageService storage, long after, long liveAfter, BiPredicate<String, Common.Operation> filter) {
+      this.storage = storage;
+      this.position = after;
+      this.liveAfter = liveAfter;
+      this.filter = filter;
+    }
+
+    /**
+     * @return the next message to replay or null if the replay is finished
+     */
+    Pending next() {
+      while (buffer.isEmpty() && !exhausted) {
+        //the changes up to the stable sequence are all readable, so they are safe to resume from
+        long stable = storage.stableSequence();
+        List<Common.Change> chunk = storage.readChanges(position, CHUNK_SIZE);
+        exhausted = chunk.isEmpty();
+        for (Common.Change change : chunk) {
+          position = change.getSequence();
+          if (position > liveAfter) {
+            replayed.add(position);
+            maxReplayed = position;
+          }
+          List<Common.Operation> operations = new ArrayList<>(change.getOpsCount());
+          for (Common.Operation op : change.getOpsList())
+            if (filter.test(change.getUserId(), op))
+              operations.add(op);
+          if (!operations.isEmpty())
+            buffer.add(new Pending(change.getUserId(), operations, position, Math.min(position, stable)));
+        }
+      }
+      return buffer.poll();
+    }
+
+    boolean isReplayed(Pending live) {
+      return live.sequence > liveAfter && replayed.contains(live.sequence);
+    }
+  }
+}
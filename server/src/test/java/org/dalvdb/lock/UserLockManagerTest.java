@@ -130,15 +130,54 @@ public class UserLockManagerTest {
   }
 
   @Test
-  public void blockUntilRelease() throws InterruptedException {
+  public void neverRejectBecauseOfNumberOfUsers() throws InterruptedException {
     UserLockManager manager = new UserLockManager(2);
-    assertThat(manager.tryReadLock("esa", 0)).isTrue();
-    assertThat(manager.tryReadLock("sia", 0)).isTrue();
-    assertThat(manager.tryReadLock("nazi", 0)).isFalse();
-    manager.releaseReadLock("esa");
-    assertThat(manager.tryReadLock("nazi", 0)).isTrue();
-    manager.releaseReadLock("sia");
-    manager.releaseReadLock("nazi");
+    for (int i = 0; i < 100; i++)
+      assertThat(manager.tryReadLock("user" + i, 0)).isTrue();
+    for (int i = 0; i < 100; i++)
+      manager.releaseReadLock("user" + i);
+  }
+
+  @Test
+  public void stripesArePowerOfTwo() {
+    UserLockManager manager = new UserLockManager(1000);
+    for (int i = 0; i < 100; i++)
+      assertThat(manager.stripeOf("user" + i)).isBetween(0, 1023);
+    assertThat(new UserLockManager(1).stripeOf("esa")).isZero();
+  }
+
+  @Test
+  public void estimateWaitOfHeldLock() throws InterruptedException {
+    UserLockManager manager = new UserLockManager(16);
+    assertThat(manager.estimatedWriteWait("esa")).isZero();
+    assertThat(manager.tryWriteLock("esa", 0)).isTrue();
+    Thread.sleep(20);
+    manager.releaseWriteLock("esa");
+    assertThat(manager.tryWriteLock("esa", 0)).isTrue();
+    assertThat(manager.estimatedWriteWait("esa")).isPositive();
+    manager.releaseWriteLock("esa");
   }
 
-}
\ No newline at end of file
+  @Test
+  public void recordContention() throws InterruptedException {
+    UserLockManager manager = new UserLockManager(16);
+    assertThat(manager.tryWriteLock("esa", 0)).isTrue();
+    Thread thread = new Thread(() -> {
+      try {
+        manager.tryWriteLock("esa", 5);
+        manager.tryReadLock("esa", 5);
+      } catch (InterruptedException e) {
+        e.printStackTrace();
+      }
+    });
+    thread.start();
+    thread.join();
+    manager.releaseWriteLock("esa");
+    LockMetrics metrics = manager.metrics();
+    assertThat(metrics.getWriteTimeouts()).isEqualTo(1);
+    assertThat(metrics.getReadTimeouts()).isEqualTo(1);
+    assertThat(metrics.getTopContendedUsers()).containsEntry("esa", 2L);
+    assertThat(metrics.getWaitTimeP99()).isGreaterThanOrEqualTo(4096);
+    assertThat(metrics.getWriteHoldTimeHistogram()).isNotEqualTo(new long[32]);
+  }
+}
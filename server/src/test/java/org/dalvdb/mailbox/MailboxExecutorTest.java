@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.mailbox;
+
+import dalv.common.Common;
+import org.dalvdb.DalvConfig;
+import org.dalvdb.lock.UserLockManager;
+import org.dalvdb.storage.StorageService;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class MailboxExecutorTest {
+
+  @Test
+  public void batchConsecutiveWritesInOrder() throws Exception {
+    List<Common.Operation> persisted = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger calls = new AtomicInteger();
+    StorageService storage = Mockito.mock(StorageService.class);
+    Mockito.doAnswer(invocation -> {
+      calls.incrementAndGet();
+      persisted.addAll(invocation.getArgument(1));
+      Thread.sleep(1);
+      return null;
+    }).when(storage).addOperations(Mockito.eq("esa"), Mockito.anyList());
+
+    MailboxExecutor executor = new MailboxExecutor(storage, 4, 128);
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
+    for (int i = 0; i < 1000; i++)
+      futures.add(executor.write("esa", Common.Operation.newBuilder().setKey("k" + i).build()));
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+    executor.close();
+
+    assertThat(persisted).hasSize(1000);
+    for (int i = 0; i < 1000; i++)
+      assertThat(persisted.get(i).getKey()).isEqualTo("k" + i);
+    assertThat(calls.get()).isLessThan(1000);
+  }
+
+  @Test
+  public void tasksOfUserNeverRunConcurrently() throws Exception {
+    MailboxExecutor executor = new MailboxExecutor(Mockito.mock(StorageService.class), 8, 4);
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    List<CompletableFuture<Integer>> futures = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      int n = i;
+      futures.add(executor.submit("esa", () -> {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        running.decrementAndGet();
+        return n;
+      }));
+    }
+    for (int i = 0; i < 200; i++)
+      assertThat(futures.get(i).get()).isEqualTo(i);
+    executor.close();
+    assertThat(maxRunning.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void heldUserDoesNotOccupyWorker() throws Exception {
+    DalvConfig.set(DalvConfig.LOCK_TIMEOUT, 5000);
+    CountDownLatch release = new CountDownLatch(1);
+    Thread holder = holdUser("esa", release);
+    MailboxExecutor executor = new MailboxExecutor(Mockito.mock(StorageService.class), 1, 4);
+    try {
+      CompletableFuture<String> held = executor.submit("esa", () -> "esa");
+      CompletableFuture<String> other = executor.submit("isa", () -> "isa");
+      //the only worker is not waiting for the lock of esa
+      assertThat(other.get(1, TimeUnit.SECONDS)).isEqualTo("isa");
+      assertThat(held).isNotDone();
+      release.countDown();
+      assertThat(held.get(1, TimeUnit.SECONDS)).isEqualTo("esa");
+    } finally {
+      release.countDown();
+      holder.join();
+      executor.close();
+      DalvConfig.set(DalvConfig.LOCK_TIMEOUT, 20);
+    }
+  }
+
+  @Test
+  public void pendingAndLateTasksFailOnClose() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    Thread holder = holdUser("esa", release);
+    MailboxExecutor executor = new MailboxExecutor(Mockito.mock(StorageService.class), 1, 4);
+    CompletableFuture<String> pending = executor.submit("esa", () -> "esa");
+    executor.close();
+    release.countDown();
+    holder.join();
+
+    assertThatThrownBy(() -> pending.get(1, TimeUnit.SECONDS))
+        .isInstanceOf(ExecutionException.class)
+        .hasCauseInstanceOf(RejectedExecutionException.class);
+    assertThatThrownBy(() -> executor.submit("isa", () -> "isa").get(1, TimeUnit.SECONDS))
+        .isInstanceOf(ExecutionException.class)
+        .hasCauseInstanceOf(RejectedExecutionException.class);
+  }
+
+  /**
+   * hold the write lock of the user on another thread until the latch is released
+   */
+  private static Thread holdUser(String userId, CountDownLatch release) throws InterruptedException {
+    CountDownLatch held = new CountDownLatch(1);
+    Thread holder = new Thread(() -> {
+      UserLockManager lockManager = UserLockManager.getInstance();
+      try {
+        lockManager.tryWriteLock(userId, 1000);
+        held.countDown();
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        lockManager.releaseWriteLock(userId);
+      }
+    });
+    holder.start();
+    held.await();
+    return holder;
+  }
+}
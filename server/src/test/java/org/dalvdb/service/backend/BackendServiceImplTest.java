@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.service.backend;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import dalv.common.Common;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.dalvdb.DalvConfig;
+import org.dalvdb.lock.UserLockManager;
+import org.dalvdb.proto.BackendProto;
+import org.dalvdb.storage.ParallelScanner;
+import org.dalvdb.storage.ScanSink;
+import org.dalvdb.storage.StorageService;
+import org.dalvdb.watch.ChangeFeed;
+import org.dalvdb.watch.WatchManager;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BackendServiceImplTest {
+
+  @Test
+  public void conditionalUpdateRejectsInvalidOperations() {
+    StorageService storage = Mockito.mock(StorageService.class);
+    BackendServiceImpl service = new BackendServiceImpl(storage, Mockito.mock(WatchManager.class),
+        Mockito.mock(ChangeFeed.class), null);
+    List<List<Common.Operation>> invalid = Arrays.asList(
+        Collections.emptyList(),
+        Arrays.asList(put("name"),
+            Common.Operation.newBuilder().setType(Common.OpType.SNAPSHOT).setSnapshotId(100).build()),
+        Collections.singletonList(Common.Operation.newBuilder().setKey("name").setTypeValue(42).build()));
+    for (List<Common.Operation> ops : invalid) {
+      StreamObserver<BackendProto.ConditionalUpdateResponse> observer = observer();
+      service.conditionalUpdate(request(ops), observer);
+
+      ArgumentCaptor<Throwable> error = ArgumentCaptor.forClass(Throwable.class);
+      Mockito.verify(observer).onError(error.capture());
+      assertThat(Status.fromThrowable(error.getValue()).getCode()).isEqualTo(Status.Code.INVALID_ARGUMENT);
+      Mockito.verify(observer, Mockito.never()).onNext(Mockito.any());
+    }
+    Mockito.verify(storage, Mockito.never()).addOperationsIfVersion(Mockito.any(), Mockito.any(), Mockito.anyLong(),
+        Mockito.any());
+  }
+
+  @Test
+  public void conditionalUpdateAppliesValidOperations() {
+    StorageService storage = Mockito.mock(StorageService.class);
+    List<Common.Operation> ops = Arrays.asList(put("name"),
+        Common.Operation.newBuilder().setType(Common.OpType.DEL).setKey("age").build());
+    Mockito.when(storage.addOperationsIfVersion("esa", "name", 3, ops)).thenReturn(true);
+    Mockito.when(storage.getVersion("esa", "name")).thenReturn(4L);
+    BackendServiceImpl service = new BackendServiceImpl(storage, Mockito.mock(WatchManager.class),
+        Mockito.mock(ChangeFeed.class), null);
+    StreamObserver<BackendProto.ConditionalUpdateResponse> observer = observer();
+
+    service.conditionalUpdate(request(ops), observer);
+
+    Mockito.verify(observer).onNext(BackendProto.ConditionalUpdateResponse.newBuilder()
+        .setRepType(Common.RepType.OK)
+        .setVersion(4)
+        .build());
+    Mockito.verify(observer).onCompleted();
+  }
+
+  @Test
+  public void getDoesNotWaitForUserLock() throws Exception {
+    StorageService storage = Mockito.mock(StorageService.class);
+    Mockito.when(storage.getVersion("esa", "name")).thenReturn(2L);
+    Mockito.when(storage.getValue("esa", "name")).thenReturn(ByteString.copyFromUtf8("value"));
+    BackendServiceImpl service = new BackendServiceImpl(storage, Mockito.mock(WatchManager.class),
+        Mockito.mock(ChangeFeed.class), null);
+    CountDownLatch release = new CountDownLatch(1);
+    Thread holder = holdUser("esa", release);
+    try {
+      @SuppressWarnings("unchecked")
+      StreamObserver<BackendProto.GetResponse> observer = Mockito.mock(StreamObserver.class);
+      service.get(BackendProto.GetRequest.newBuilder().setUserId("esa").setKey("name").build(), observer);
+
+      Mockito.verify(observer).onNext(BackendProto.GetResponse.newBuilder()
+          .setRepType(Common.RepType.OK)
+          .setValue(ByteString.copyFromUtf8("value"))
+          .setVersion(2)
+          .build());
+      Mockito.verify(observer).onCompleted();
+    } finally {
+      release.countDown();
+      holder.join();
+    }
+  }
+
+  @Test
+  public void scanWritesFileIntoScanDir() throws Exception {
+    Path dir = Files.createTempDirectory("dalv-scan");
+    DalvConfig.set(DalvConfig.SCAN_DIR, dir.resolve("scans").toString());
+    try {
+      ParallelScanner scanner = Mockito.mock(ParallelScanner.class);
+      Mockito.doAnswer(invocation -> {
+        invocation.<ScanSink>getArgument(1).accept("esa", Collections.singletonList(put("name")));
+        return null;
+      }).when(scanner).scan(Mockito.eq(ParallelScanner.Mode.LOG), Mockito.any());
+      BackendServiceImpl service = new BackendServiceImpl(Mockito.mock(StorageService.class),
+          Mockito.mock(WatchManager.class), Mockito.mock(ChangeFeed.class), null, scanner);
+      @SuppressWarnings("unchecked")
+      StreamObserver<BackendProto.ScanResponse> observer = Mockito.mock(StreamObserver.class);
+
+      service.scan(BackendProto.ScanRequest.newBuilder().setMode(BackendProto.ScanRequest.Mode.LOG).build(), observer);
+
+      ArgumentCaptor<BackendProto.ScanResponse> response = ArgumentCaptor.forClass(BackendProto.ScanResponse.class);
+      Mockito.verify(observer).onNext(response.capture());
+      Mockito.verify(observer).onCompleted();
+      assertThat(response.getValue().getRepType()).isEqualTo(Common.RepType.OK);
+      Path file = Paths.get(response.getValue().getFile());
+      assertThat(file.getParent()).isEqualTo(dir.resolve("scans"));
+      CodedInputStream in = CodedInputStream.newInstance(Files.readAllBytes(file));
+      assertThat(in.readString()).isEqualTo("esa");
+      assertThat(in.readUInt32()).isEqualTo(1);
+      assertThat(in.readMessage(Common.Operation.parser(), null)).isEqualTo(put("name"));
+      assertThat(in.isAtEnd()).isTrue();
+    } finally {
+      DalvConfig.set(DalvConfig.SCAN_DIR, "");
+    }
+  }
+
+  @Test
+  public void scanIsDisabledWithoutScanDir() throws Exception {
+    ParallelScanner scanner = Mockito.mock(ParallelScanner.class);
+    BackendServiceImpl service = new BackendServiceImpl(Mockito.mock(StorageService.class),
+        Mockito.mock(WatchManager.class), Mockito.mock(ChangeFeed.class), null, scanner);
+    @SuppressWarnings("unchecked")
+    StreamObserver<BackendProto.ScanResponse> observer = Mockito.mock(StreamObserver.class);
+
+    service.scan(BackendProto.ScanRequest.getDefaultInstance(), observer);
+
+    ArgumentCaptor<Throwable> error = ArgumentCaptor.forClass(Throwable.class);
+    Mockito.verify(observer).onError(error.capture());
+    assertThat(Status.fromThrowable(error.getValue()).getCode()).isEqualTo(Status.Code.FAILED_PRECONDITION);
+    Mockito.verify(scanner, Mockito.never()).scan(Mockito.any(), Mockito.any());
+  }
+
+  private static Thread holdUser(String userId, CountDownLatch release) throws InterruptedException {
+    CountDownLatch held = new CountDownLatch(1);
+    Thread holder = new Thread(() -> {
+      UserLockManager lockManager = UserLockManager.getInstance();
+      try {
+        lockManager.tryWriteLock(userId, 1000);
+        held.countDown();
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        lockManager.releaseWriteLock(userId);
+      }
+    });
+    holder.start();
+    held.await();
+    return holder;
+  }
+
+  private static BackendProto.ConditionalUpdateRequest request(List<Common.Operation> ops) {
+    return BackendProto.ConditionalUpdateRequest.newBuilder()
+        .setUserId("esa")
+        .setKey("name")
+        .setExpectedVersion(3)
+        .addAllOps(ops)
+        .build();
+  }
+
+  private static Common.Operation put(String key) {
+    return Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey(key)
+        .setVal(ByteString.copyFromUtf8("value"))
+        .build();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static StreamObserver<BackendProto.ConditionalUpdateResponse> observer() {
+    return Mockito.mock(StreamObserver.class);
+  }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.service.client;
+
+import com.google.protobuf.ByteString;
+import dalv.common.Common;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.io.Decoders;
+import io.jsonwebtoken.security.Keys;
+import org.dalvdb.DalvConfig;
+import org.dalvdb.lock.UserLockManager;
+import org.dalvdb.mailbox.MailboxExecutor;
+import org.dalvdb.proto.ClientProto;
+import org.dalvdb.storage.ChangeListener;
+import org.dalvdb.storage.StorageService;
+import org.dalvdb.watch.InMemoryWatchManager;
+import org.dalvdb.watch.WatchManager;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClientServerImplTest {
+
+  @Test
+  public void resumeUnaryWatchInMailboxMode() throws Exception {
+    CountDownLatch handlerReturned = new CountDownLatch(1);
+    StorageService storage = Mockito.mock(StorageService.class);
+    Mockito.when(storage.get("esa", 3)).thenAnswer(invocation -> {
+      //the replay is read in the mailbox after the handler of the call returned
+      handlerReturned.await(1, TimeUnit.SECONDS);
+      return Collections.singletonList(put("name"));
+    });
+    InMemoryWatchManager watchManager = new InMemoryWatchManager();
+    MailboxExecutor mailbox = new MailboxExecutor(storage, 1, 128);
+    ClientServerImpl server = new ClientServerImpl(storage, watchManager, mailbox);
+
+    AtomicBoolean started = new AtomicBoolean();
+    @SuppressWarnings("unchecked")
+    ServerCallStreamObserver<ClientProto.WatchResponse> observer = Mockito.mock(ServerCallStreamObserver.class);
+    Mockito.when(observer.isReady()).thenReturn(true);
+    //gRPC rejects the handlers of a call once its handler returned
+    Answer<Void> beforeStart = invocation -> {
+      if (started.get()) throw new IllegalStateException("the call is already started");
+      return null;
+    };
+    Mockito.doAnswer(beforeStart).when(observer).setOnReadyHandler(Mockito.any());
+    Mockito.doAnswer(beforeStart).when(observer).setOnCancelHandler(Mockito.any());
+
+    server.watch(ClientProto.WatchRequest.newBuilder()
+        .setJwt(jwt("esa"))
+        .setKey("name")
+        .setLastSnapshotId(3)
+        .build(), observer);
+    started.set(true);
+    handlerReturned.countDown();
+
+    Mockito.verify(observer, Mockito.timeout(1000)).onNext(Mockito.any());
+    Mockito.verify(observer, Mockito.never()).onError(Mockito.any());
+    server.close();
+    mailbox.close();
+    watchManager.close();
+  }
+
+  @Test
+  public void largeConflateDelayIsNotNegative() {
+    WatchManager watchManager = Mockito.mock(WatchManager.class);
+    ClientServerImpl server = new ClientServerImpl(Mockito.mock(StorageService.class), watchManager, null);
+    @SuppressWarnings("unchecked")
+    StreamObserver<ClientProto.WatchResponse> observer = Mockito.mock(StreamObserver.class);
+    server.watch(ClientProto.WatchRequest.newBuilder()
+        .setJwt(jwt("esa"))
+        .setKey("name")
+        .setConflateDelay(-1)
+        .build(), observer);
+    //the largest uint32, the manager bounds it by the max conflate delay
+    Mockito.verify(watchManager).addClientWatch(Mockito.eq("esa"), Mockito.eq("name"), Mockito.eq(0xffffffffL),
+        Mockito.anyList(), Mockito.eq(observer));
+    server.close();
+  }
+
+  @Test
+  public void syncSessionIsAuthorizedByFirstMessage() {
+    StorageService storage = Mockito.mock(StorageService.class);
+    ClientServerImpl server = new ClientServerImpl(storage, Mockito.mock(WatchManager.class), null);
+    StreamObserver<ClientProto.SyncSessionResponse> responses = responses();
+
+    StreamObserver<ClientProto.SyncSessionRequest> session = server.syncSession(responses);
+    session.onNext(ClientProto.SyncSessionRequest.newBuilder()
+        .setJwt("invalid")
+        .addOps(put("name"))
+        .setBatchId(1)
+        .build());
+
+    ArgumentCaptor<Throwable> error = ArgumentCaptor.forClass(Throwable.class);
+    Mockito.verify(responses).onError(error.capture());
+    assertThat(Status.fromThrowable(error.getValue()).getCode()).isEqualTo(Status.Code.UNAUTHENTICATED);
+    Mockito.verify(storage, Mockito.never()).handleOperationsAndSnapshot(Mockito.any(), Mockito.any(),
+        Mockito.anyInt());
+    server.close();
+  }
+
+  @Test
+  public void syncSessionCommitsBatchesAgainstPosition() {
+    StorageService storage = Mockito.mock(StorageService.class);
+    Mockito.when(storage.handleOperationsAndSnapshot("esa", Collections.singletonList(put("name")), 5))
+        .thenReturn(new ArrayList<>(Collections.singletonList(snapshot(6))));
+    Mockito.when(storage.handleOperationsAndSnapshot("esa", Collections.singletonList(put("age")), 6))
+        .thenReturn(new ArrayList<>(Arrays.asList(put("city"), snapshot(7))));
+    ClientServerImpl server = new ClientServerImpl(storage, Mockito.mock(WatchManager.class), null);
+    StreamObserver<ClientProto.SyncSessionResponse> responses = responses();
+
+    StreamObserver<ClientProto.SyncSessionRequest> session = server.syncSession(responses);
+    session.onNext(ClientProto.SyncSessionRequest.newBuilder()
+        .setJwt(jwt("esa"))
+        .setLastSnapshotId(5)
+        .addOps(put("name"))
+        .setBatchId(1)
+        .build());
+    //the next batch is committed against the snapshot of the previous response
+    session.onNext(ClientProto.SyncSessionRequest.newBuilder()
+        .addOps(put("age"))
+        .setBatchId(2)
+        .build());
+
+    ArgumentCaptor<ClientProto.SyncSessionResponse> response =
+        ArgumentCaptor.forClass(ClientProto.SyncSessionResponse.class);
+    Mockito.verify(responses, Mockito.times(2)).onNext(response.capture());
+    ClientProto.SyncSessionResponse first = response.getAllValues().get(0);
+    assertThat(first.getSyncResponse()).isEqualTo(Common.RepType.OK);
+    assertThat(first.getBatchId()).isEqualTo(1);
+    assertThat(first.getLastSnapshotId()).isEqualTo(5);
+    assertThat(first.getSnapshotId()).isEqualTo(6);
+    assertThat(first.getAcknowledgedOps()).isEqualTo(1);
+    ClientProto.SyncSessionResponse second = response.getAllValues().get(1);
+    assertThat(second.getBatchId()).isEqualTo(2);
+    assertThat(second.getLastSnapshotId()).isEqualTo(6);
+    assertThat(second.getSnapshotId()).isEqualTo(7);
+    assertThat(second.getOpsList()).containsExactly(put("city"), snapshot(7));
+    server.close();
+  }
+
+  @Test
+  public void syncSessionPushesDeltaOfBackendWrite() {
+    StorageService storage = Mockito.mock(StorageService.class);
+    Mockito.when(storage.get("esa", 5))
+        .thenReturn(Collections.emptyList(), Arrays.asList(put("name"), snapshot(6)));
+    ArgumentCaptor<ChangeListener> listener = ArgumentCaptor.forClass(ChangeListener.class);
+    ClientServerImpl server = new ClientServerImpl(storage, Mockito.mock(WatchManager.class), null);
+    Mockito.verify(storage).addChangeListener(listener.capture());
+    StreamObserver<ClientProto.SyncSessionResponse> responses = responses();
+
+    server.syncSession(responses).onNext(ClientProto.SyncSessionRequest.newBuilder()
+        .setJwt(jwt("esa"))
+        .setLastSnapshotId(5)
+        .setBatchId(1)
+        .build());
+    listener.getValue().onChange("esa", Collections.singletonList(put("name")), 1, 0);
+
+    ArgumentCaptor<ClientProto.SyncSessionResponse> response =
+        ArgumentCaptor.forClass(ClientProto.SyncSessionResponse.class);
+    Mockito.verify(responses, Mockito.timeout(1000).times(2)).onNext(response.capture());
+    ClientProto.SyncSessionResponse delta = response.getAllValues().get(1);
+    assertThat(delta.getBatchId()).isEqualTo(0);
+    assertThat(delta.getLastSnapshotId()).isEqualTo(5);
+    assertThat(delta.getSnapshotId()).isEqualTo(6);
+    assertThat(delta.getOpsList()).containsExactly(put("name"), snapshot(6));
+    server.close();
+  }
+
+  @Test
+  public void syncSessionCoalescesBurstOfCommits() throws Exception {
+    StorageService storage = Mockito.mock(StorageService.class);
+    Mockito.when(storage.get("esa", 5))
+        .thenReturn(Collections.emptyList(), Arrays.asList(put("name"), snapshot(6)));
+    ArgumentCaptor<ChangeListener> listener = ArgumentCaptor.forClass(ChangeListener.class);
+    MailboxExecutor mailbox = new MailboxExecutor(storage, 2, 128);
+    ClientServerImpl server = new ClientServerImpl(storage, Mockito.mock(WatchManager.class), mailbox);
+    Mockito.verify(storage).addChangeListener(listener.capture());
+    StreamObserver<ClientProto.SyncSessionResponse> responses = responses();
+    server.syncSession(responses).onNext(ClientProto.SyncSessionRequest.newBuilder()
+        .setJwt(jwt("esa"))
+        .setLastSnapshotId(5)
+        .setBatchId(1)
+        .build());
+    Mockito.verify(responses, Mockito.timeout(1000)).onNext(Mockito.any());
+
+    //the commits arrive while the user's mailbox is busy
+    CountDownLatch busy = new CountDownLatch(1);
+    mailbox.submit("esa", () -> {
+      try {
+        return busy.await(1, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    for (int sequence = 1; sequence <= 10; sequence++)
+      listener.getValue().onChange("esa", Collections.singletonList(put("name")), sequence, 0);
+    busy.countDown();
+
+    Mockito.verify(responses, Mockito.timeout(1000).times(2)).onNext(Mockito.any());
+    Mockito.verify(storage, Mockito.after(200).times(2)).get("esa", 5);
+    Mockito.verify(storage, Mockito.never()).get("esa", 6);
+    server.close();
+    mailbox.close();
+  }
+
+  @Test
+  public void syncSessionBatchIsBusyWhileUserIsHeld() throws Exception {
+    DalvConfig.set(DalvConfig.LOCK_MAX_WAIT, 20);
+    StorageService storage = Mockito.mock(StorageService.class);
+    ClientServerImpl server = new ClientServerImpl(storage, Mockito.mock(WatchManager.class), null);
+    StreamObserver<ClientProto.SyncSessionResponse> responses = responses();
+    CountDownLatch release = new CountDownLatch(1);
+    Thread holder = holdUser("esa", release);
+    try {
+      server.syncSession(responses).onNext(ClientProto.SyncSessionRequest.newBuilder()
+          .setJwt(jwt("esa"))
+          .setLastSnapshotId(5)
+          .addOps(put("name"))
+          .setBatchId(3)
+          .build());
+
+      ArgumentCaptor<ClientProto.SyncSessionResponse> response =
+          ArgumentCaptor.forClass(ClientProto.SyncSessionResponse.class);
+      Mockito.verify(responses).onNext(response.capture());
+      assertThat(response.getValue().getSyncResponse()).isEqualTo(Common.RepType.BUSY);
+      assertThat(response.getValue().getBatchId()).isEqualTo(3);
+      assertThat(response.getValue().getRetryAfter()).isGreaterThan(0);
+      Mockito.verify(storage, Mockito.never()).handleOperationsAndSnapshot(Mockito.any(), Mockito.any(),
+          Mockito.anyInt());
+    } finally {
+      release.countDown();
+      holder.join();
+      server.close();
+      DalvConfig.set(DalvConfig.LOCK_MAX_WAIT, 500);
+    }
+  }
+
+  @Test
+  public void readOnlySyncDoesNotWaitForUserLock() throws Exception {
+    DalvConfig.set(DalvConfig.LOCK_MAX_WAIT, 20);
+    StorageService storage = Mockito.mock(StorageService.class);
+    Mockito.when(storage.get("esa", 3)).thenReturn(Arrays.asList(put("name"), snapshot(4)));
+    Mockito.when(storage.isLatestSnapshot("esa", 4)).thenReturn(true);
+    Mockito.when(storage.get("esa", 5)).thenReturn(Collections.singletonList(put("age")));
+    ClientServerImpl server = new ClientServerImpl(storage, Mockito.mock(WatchManager.class), null);
+    CountDownLatch release = new CountDownLatch(1);
+    Thread holder = holdUser("esa", release);
+    try {
+      //the changes end with a snapshot
+      ClientProto.SyncResponse response = sync(server, 3);
+      assertThat(response.getSyncResponse()).isEqualTo(Common.RepType.OK);
+      assertThat(response.getOpsList()).containsExactly(put("name"), snapshot(4));
+      assertThat(response.getSnapshotId()).isEqualTo(4);
+
+      //the client is already current, the log is not read
+      response = sync(server, 4);
+      assertThat(response.getSyncResponse()).isEqualTo(Common.RepType.OK);
+      assertThat(response.getOpsCount()).isEqualTo(0);
+      assertThat(response.getSnapshotId()).isEqualTo(4);
+      Mockito.verify(storage, Mockito.never()).get("esa", 4);
+
+      //a new snapshot is needed, so it falls back to the user lock
+      response = sync(server, 5);
+      assertThat(response.getSyncResponse()).isEqualTo(Common.RepType.BUSY);
+      Mockito.verify(storage, Mockito.never()).snapshot("esa");
+    } finally {
+      release.countDown();
+      holder.join();
+      server.close();
+      DalvConfig.set(DalvConfig.LOCK_MAX_WAIT, 500);
+    }
+  }
+
+  @Test
+  public void readOnlySyncSnapshotsUnderLockWhenChangesAreOpen() {
+    StorageService storage = Mockito.mock(StorageService.class);
+    Mockito.when(storage.get("esa", 5)).thenReturn(Collections.singletonList(put("age")));
+    Mockito.when(storage.snapshot("esa")).thenReturn(6);
+    ClientServerImpl server = new ClientServerImpl(storage, Mockito.mock(WatchManager.class), null);
+
+    ClientProto.SyncResponse response = sync(server, 5);
+
+    assertThat(response.getSyncResponse()).isEqualTo(Common.RepType.OK);
+    assertThat(response.getOpsList()).containsExactly(put("age"));
+    assertThat(response.getSnapshotId()).isEqualTo(6);
+    //read once without the lock, then again with it before the snapshot is appended
+    Mockito.verify(storage, Mockito.times(2)).get("esa", 5);
+    Mockito.verify(storage).snapshot("esa");
+    server.close();
+  }
+
+  private static ClientProto.SyncResponse sync(ClientServerImpl server, int lastSnapshotId) {
+    @SuppressWarnings("unchecked")
+    StreamObserver<ClientProto.SyncResponse> observer = Mockito.mock(StreamObserver.class);
+    server.sync(ClientProto.SyncRequest.newBuilder()
+        .setJwt(jwt("esa"))
+        .setLastSnapshotId(lastSnapshotId)
+        .build(), observer);
+    ArgumentCaptor<ClientProto.SyncResponse> response = ArgumentCaptor.forClass(ClientProto.SyncResponse.class);
+    Mockito.verify(observer).onNext(response.capture());
+    Mockito.verify(observer).onCompleted();
+    return response.getValue();
+  }
+
+  private static Thread holdUser(String userId, CountDownLatch release) throws InterruptedException {
+    CountDownLatch held = new CountDownLatch(1);
+    Thread holder = new Thread(() -> {
+      UserLockManager lockManager = UserLockManager.getInstance();
+      try {
+        lockManager.tryWriteLock(userId, 1000);
+        held.countDown();
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        lockManager.releaseWriteLock(userId);
+      }
+    });
+    holder.start();
+    held.await();
+    return holder;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static StreamObserver<ClientProto.SyncSessionResponse> responses() {
+    return Mockito.mock(StreamObserver.class);
+  }
+
+  private static String jwt(String userId) {
+    return Jwts.builder()
+        .claim("userId", userId)
+        .signWith(Keys.hmacShaKeyFor(Decoders.BASE64.decode(DalvConfig.getStr(DalvConfig.JWT_SIGN))))
+        .compact();
+  }
+
+  private static Common.Operation put(String key) {
+    return Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey(key)
+        .setVal(ByteString.copyFrom("Isa".getBytes()))
+        .build();
+  }
+
+  private static Common.Operation snapshot(int snapshotId) {
+    return Common.Operation.newBuilder()
+        .setType(Common.OpType.SNAPSHOT)
+        .setSnapshotId(snapshotId)
+        .build();
+  }
+}
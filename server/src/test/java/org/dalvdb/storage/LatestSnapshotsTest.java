@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LatestSnapshotsTest {
+
+  @Test
+  public void latestSnapshotUntilWrite() {
+    LatestSnapshots snapshots = new LatestSnapshots();
+    assertThat(snapshots.isLatest("esa", 3)).isFalse();
+    snapshots.put("esa", 3, snapshots.version("esa"));
+    assertThat(snapshots.isLatest("esa", 3)).isTrue();
+    assertThat(snapshots.isLatest("esa", 2)).isFalse();
+    assertThat(snapshots.isLatest("ali", 3)).isFalse();
+    snapshots.invalidate("esa");
+    assertThat(snapshots.isLatest("esa", 3)).isFalse();
+  }
+
+  @Test
+  public void writeAfterVersionRejectsPut() {
+    LatestSnapshots snapshots = new LatestSnapshots();
+    long version = snapshots.version("esa");
+    snapshots.invalidate("esa");
+    snapshots.put("esa", 3, version);
+    assertThat(snapshots.isLatest("esa", 3)).isFalse();
+
+    snapshots.put("esa", 3, snapshots.version("esa"));
+    version = snapshots.version("esa");
+    snapshots.invalidate("esa");
+    snapshots.put("esa", 4, version);
+    assertThat(snapshots.isLatest("esa", 4)).isFalse();
+    snapshots.put("esa", 4, snapshots.version("esa"));
+    assertThat(snapshots.isLatest("esa", 4)).isTrue();
+  }
+
+  @Test
+  public void manyUsers() {
+    LatestSnapshots snapshots = new LatestSnapshots();
+    int users = 10_000;
+    for (int i = 0; i < users; i++)
+      snapshots.put("user" + i, i + 1, snapshots.version("user" + i));
+    for (int i = 0; i < users; i++)
+      assertThat(snapshots.isLatest("user" + i, i + 1)).isTrue();
+  }
+}
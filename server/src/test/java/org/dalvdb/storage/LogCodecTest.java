@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import com.google.protobuf.ByteString;
+import dalv.common.Common;
+import org.dalvdb.common.util.ByteUtil;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class LogCodecTest {
+
+  @Test
+  public void roundTripV2() {
+    List<Common.Operation> ops = sampleOps();
+    KeyDictionary dictionary = new KeyDictionary();
+    byte[] log = log(ops, dictionary, false);
+    //the dictionary is read back from the storage
+    assertThat(readAll(log, KeyDictionary.decode(dictionary.encode()))).isEqualTo(ops);
+    assertThat(dictionary.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void roundTripV2WithChecksum() {
+    List<Common.Operation> ops = sampleOps();
+    KeyDictionary dictionary = new KeyDictionary();
+    assertThat(readAll(log(ops, dictionary, true), dictionary)).isEqualTo(ops);
+  }
+
+  @Test
+  public void readLegacy() {
+    List<Common.Operation> ops = sampleOps();
+    assertThat(readAll(log(ops, null, true), null)).isEqualTo(ops);
+  }
+
+  @Test
+  public void detectCorruption() {
+    KeyDictionary dictionary = new KeyDictionary();
+    byte[] log = log(sampleOps(), dictionary, true);
+    log[log.length - 3] ^= 0x01;
+    assertThatThrownBy(() -> readAll(log, dictionary)).isInstanceOf(IllegalStateException.class);
+  }
+
+  @Test
+  public void smallerThanLegacy() {
+    Common.Operation op = put("profile.settings.theme", "blue");
+    KeyDictionary dictionary = new KeyDictionary();
+    LogCodec.encode(op, dictionary, false);
+    assertThat(LogCodec.encode(op, dictionary, false).length).isLessThan(ByteUtil.opToByte(op).length / 2);
+  }
+
+  private static List<Common.Operation> sampleOps() {
+    List<Common.Operation> ops = new ArrayList<>();
+    ops.add(put("name", "esa"));
+    ops.add(Common.Operation.newBuilder().setType(Common.OpType.SNAPSHOT).setSnapshotId(300).build());
+    ops.add(Common.Operation.newBuilder().setType(Common.OpType.ADD_TO_LIST).setKey("colors")
+        .setVal(ByteString.copyFrom(new byte[200])).build());
+    ops.add(Common.Operation.newBuilder().setType(Common.OpType.DEL).setKey("name").build());
+    ops.add(put("name", ""));
+    return ops;
+  }
+
+  private static byte[] log(List<Common.Operation> ops, KeyDictionary dictionary, boolean checksum) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < ops.size(); i++) {
+      if (i > 0) out.write(0); //merge operator separator
+      out.writeBytes(LogCodec.encode(ops.get(i), dictionary, checksum));
+    }
+    return out.toByteArray();
+  }
+
+  private static List<Common.Operation> readAll(byte[] log, KeyDictionary dictionary) {
+    List<Common.Operation> result = new ArrayList<>();
+    Iterator<Common.Operation> it = LogCodec.reverseIterator(log, dictionary);
+    while (it.hasNext())
+      result.add(0, it.next());
+    return result;
+  }
+
+  private static Common.Operation put(String key, String val) {
+    return Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey(key)
+        .setVal(ByteString.copyFromUtf8(val))
+        .build();
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.storage;
+
+import com.google.protobuf.ByteString;
+import dalv.common.Common;
+import org.dalvdb.DalvConfig;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ParallelScannerTest {
+  private static final int USERS = 300;
+  private static RocksStorageService storageService;
+  private static String dataDir;
+
+  @BeforeClass
+  public static void setUp() {
+    dataDir = UUID.randomUUID().toString();
+    DalvConfig.set(DalvConfig.DATA_DIR, dataDir);
+    storageService = new RocksStorageService();
+    for (int i = 0; i < USERS; i++) {
+      String userId = "user" + i;
+      storageService.addOperation(userId, put("name", "first"));
+      storageService.addOperation(userId, put("name", userId));
+    }
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    try {
+      storageService.close();
+      RocksDB.destroyDB(dataDir, new Options());
+    } catch (RocksDBException e) {
+      e.printStackTrace();
+    }
+  }
+
+  @Test
+  public void scanAllUsersState() throws IOException {
+    CollectingSink sink = new CollectingSink();
+    new ParallelScanner(storageService, 4, 0).scan(ParallelScanner.Mode.STATE, sink);
+    assertThat(sink.users).hasSize(USERS);
+    List<Common.Operation> ops = sink.users.get("user42");
+    assertThat(ops).hasSize(1);
+    assertThat(ops.get(0).getVal().toStringUtf8()).isEqualTo("user42");
+  }
+
+  @Test
+  public void scanAllUsersLog() throws IOException {
+    CollectingSink sink = new CollectingSink();
+    new ParallelScanner(storageService, 3, 0).scan(ParallelScanner.Mode.LOG, sink);
+    assertThat(sink.users).hasSize(USERS);
+    assertThat(sink.users.get("user7").get(0).getKey()).isEqualTo("name");
+  }
+
+  private static Common.Operation put(String key, String val) {
+    return Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey(key)
+        .setVal(ByteString.copyFromUtf8(val))
+        .build();
+  }
+
+  private static class CollectingSink implements ScanSink {
+    final Map<String, List<Common.Operation>> users = new ConcurrentHashMap<>();
+
+    @Override
+    public void accept(String userId, List<Common.Operation> operations) {
+      assertThat(users.put(userId, operations)).isNull();
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -31,6 +31,8 @@ import org.rocksdb.RocksDBException;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
@@ -370,4 +372,283 @@ public class RocksStorageServiceTest {
     assertThat(ops.get(2).getType()).isEqualTo(Common.OpType.SNAPSHOT);
     assertThat(ops.get(2).getSnapshotId()).isEqualTo(3);
   }
-}
\ No newline at end of file
+
+  @Test
+  public void legacyLogConvertedByCompaction() {
+    DalvConfig.set(DalvConfig.LOG_FORMAT_VERSION, 1);
+    try {
+      storageService.addOperation("esa", Common.Operation.newBuilder()
+          .setType(Common.OpType.PUT)
+          .setKey("theme")
+          .setVal(ByteString.copyFrom("blue".getBytes()))
+          .build());
+    } finally {
+      DalvConfig.set(DalvConfig.LOG_FORMAT_VERSION, 2);
+    }
+    //the log stays legacy until the next compaction, the writes after the first one find the user marked as legacy
+    storageService.addOperation("esa", Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("theme")
+        .setVal(ByteString.copyFrom("red".getBytes()))
+        .build());
+    storageService.addOperation("esa", Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("font")
+        .setVal(ByteString.copyFrom("mono".getBytes()))
+        .build());
+    assertThat(storageService.getValue("esa", "theme").substring(4).toStringUtf8()).isEqualTo("red");
+    assertThat(storageService.getValue("esa", "font").substring(4).toStringUtf8()).isEqualTo("mono");
+    storageService.compact("esa");
+    storageService.addOperation("esa", Common.Operation.newBuilder()
+        .setType(Common.OpType.ADD_TO_LIST)
+        .setKey("colors")
+        .setVal(ByteString.copyFrom("green".getBytes()))
+        .build());
+    List<Common.Operation> ops = storageService.get("esa", 1);
+    assertThat(ops.size()).isEqualTo(1);
+    assertThat(ops.get(0).getKey()).isEqualTo("colors");
+    assertThat(storageService.getValue("esa", "theme").substring(4).toStringUtf8()).isEqualTo("red");
+  }
+
+  @Test
+  public void getValueOfAbsentKey() {
+    for (String key : List.of("name", "lname", "theme"))
+      storageService.addOperation("esa", Common.Operation.newBuilder()
+          .setType(Common.OpType.PUT)
+          .setKey(key)
+          .setVal(ByteString.copyFrom(key.getBytes()))
+          .build());
+    assertThat(storageService.getValue("esa", "theme").substring(4).toStringUtf8()).isEqualTo("theme");
+    assertThat(storageService.getValue("esa", "feature.flag").isEmpty()).isTrue();
+    storageService.compact("esa");
+    assertThat(storageService.getValue("esa", "name").substring(4).toStringUtf8()).isEqualTo("name");
+    assertThat(storageService.getValue("esa", "feature.flag").isEmpty()).isTrue();
+  }
+
+  @Test
+  public void compactKeepsRetainedSnapshots() {
+    DalvConfig.set(DalvConfig.SNAPSHOT_RETENTION_COUNT, 2);
+    try {
+      for (String theme : List.of("blue", "red", "green")) {
+        storageService.addOperation("esa", Common.Operation.newBuilder()
+            .setType(Common.OpType.PUT)
+            .setKey("theme")
+            .setVal(ByteString.copyFrom(theme.getBytes()))
+            .build());
+        storageService.snapshot("esa");
+      }
+      storageService.addOperation("esa", Common.Operation.newBuilder()
+          .setType(Common.OpType.PUT)
+          .setKey("theme")
+          .setVal(ByteString.copyFrom("black".getBytes()))
+          .build());
+      storageService.compact("esa");
+
+      List<Common.Operation> ops = storageService.get("esa", 2);
+      assertThat(ops.size()).isEqualTo(3);
+      assertThat(ops.get(0).getVal()).isEqualTo(ByteString.copyFrom("green".getBytes()));
+      assertThat(ops.get(1).getSnapshotId()).isEqualTo(3);
+      assertThat(ops.get(2).getVal()).isEqualTo(ByteString.copyFrom("black".getBytes()));
+
+      //the first snapshot is folded into the base image
+      List<Common.Operation> all = storageService.get("esa", 1);
+      assertThat(all.size()).isEqualTo(2);
+      assertThat(all.get(0)).isEqualTo(OpUtil.REMOVE_ALL_OP);
+      assertThat(all.get(1).getVal()).isEqualTo(ByteString.copyFrom("black".getBytes()));
+    } finally {
+      DalvConfig.set(DalvConfig.SNAPSHOT_RETENTION_COUNT, 0);
+    }
+  }
+
+  @Test
+  public void unknownSnapshotGetsCurrentState() {
+    storageService.addOperation("esa", Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("theme")
+        .setVal(ByteString.copyFrom("blue".getBytes()))
+        .build());
+    storageService.snapshot("esa");
+    storageService.addOperation("esa", Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("theme")
+        .setVal(ByteString.copyFrom("red".getBytes()))
+        .build());
+    storageService.addOperation("esa", Common.Operation.newBuilder()
+        .setType(Common.OpType.ADD_TO_LIST)
+        .setKey("colors")
+        .setVal(ByteString.copyFrom("green".getBytes()))
+        .build());
+    storageService.addOperation("esa", Common.Operation.newBuilder()
+        .setType(Common.OpType.REMOVE_FROM_LIST)
+        .setKey("colors")
+        .setVal(ByteString.copyFrom("green".getBytes()))
+        .build());
+    List<Common.Operation> ops = storageService.get("esa", 7);
+    assertThat(ops.size()).isEqualTo(2);
+    assertThat(ops.get(0)).isEqualTo(OpUtil.REMOVE_ALL_OP);
+    assertThat(ops.get(1).getVal()).isEqualTo(ByteString.copyFrom("red".getBytes()));
+    assertThat(storageService.get("esa", 0).size()).isEqualTo(1);
+    //known snapshots still get the raw delta
+    assertThat(storageService.get("esa", 1).size()).isEqualTo(3);
+  }
+
+  @Test
+  public void conditionalWriteOnVersion() {
+    assertThat(storageService.getVersion("esa", "theme")).isEqualTo(0);
+    Common.Operation blue = Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("theme")
+        .setVal(ByteString.copyFrom("blue".getBytes()))
+        .build();
+    Common.Operation red = blue.toBuilder().setVal(ByteString.copyFrom("red".getBytes())).build();
+    storageService.addOperation("esa", blue);
+    long version = storageService.getVersion("esa", "theme");
+    assertThat(version).isGreaterThan(0);
+
+    assertThat(storageService.addOperationsIfVersion("esa", "theme", version, Collections.singletonList(red))).isTrue();
+    long newVersion = storageService.getVersion("esa", "theme");
+    assertThat(newVersion).isGreaterThan(version);
+    //the stale version is rejected and the value stays untouched
+    assertThat(storageService.addOperationsIfVersion("esa", "theme", version, Collections.singletonList(blue))).isFalse();
+    assertThat(storageService.getVersion("esa", "theme")).isEqualTo(newVersion);
+    assertThat(storageService.getValue("esa", "theme").substring(4).toStringUtf8()).isEqualTo("red");
+  }
+
+  @Test
+  public void versionsDoNotCollideAcrossUsers() {
+    Common.Operation op = Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("lastSnapshotId")
+        .setVal(ByteString.copyFrom("Isa".getBytes()))
+        .build();
+    assertThat(storageService.snapshot("a.version")).isEqualTo(1);
+    storageService.addOperation("a.version", op.toBuilder().setKey("theme").build());
+    long version = storageService.getVersion("a.version", "theme");
+    //the version of the key lastSnapshotId of user a is not the last snapshot id of user a.version
+    storageService.addOperation("a", op);
+    assertThat(storageService.snapshot("a.version")).isEqualTo(2);
+
+    storageService.delete("a");
+    assertThat(storageService.getVersion("a", "lastSnapshotId")).isEqualTo(0);
+    assertThat(storageService.getVersion("a.version", "theme")).isEqualTo(version);
+    assertThat(storageService.snapshot("a.version")).isEqualTo(3);
+  }
+
+  @Test
+  public void changesAreRecordedAndNotified() {
+    List<Long> notified = new ArrayList<>();
+    ChangeListener listener = (userId, operations, sequence, stableSequence) -> {
+      assertThat(stableSequence).isLessThan(sequence);
+      notified.add(sequence);
+    };
+    storageService.addChangeListener(listener);
+    try {
+      long before = storageService.stableSequence();
+      Common.Operation op = Common.Operation.newBuilder()
+          .setType(Common.OpType.PUT)
+          .setKey("name")
+          .setVal(ByteString.copyFrom("Isa".getBytes()))
+          .build();
+      storageService.addOperation("esa", op);
+      storageService.addOperations("esa", Arrays.asList(op, op.toBuilder().setKey("fname").build()));
+
+      assertThat(storageService.stableSequence()).isEqualTo(before + 2);
+      assertThat(notified).containsExactly(before + 1, before + 2);
+      List<Common.Change> changes = storageService.readChanges(before, 10);
+      assertThat(changes).extracting(Common.Change::getSequence).containsExactly(before + 1, before + 2);
+      assertThat(changes.get(1).getOpsList()).extracting(Common.Operation::getKey).containsExactly("name", "fname");
+      assertThat(changes.get(1).getUserId()).isEqualTo("esa");
+      assertThat(storageService.readChanges(before + 1, 10)).hasSize(1);
+    } finally {
+      storageService.removeChangeListener(listener);
+    }
+  }
+
+  @Test
+  public void trimChangesKeepsRetainedCount() {
+    long retention = DalvConfig.getLong(DalvConfig.CHANGES_RETENTION);
+    DalvConfig.set(DalvConfig.CHANGES_RETENTION, 2L);
+    try {
+      Common.Operation op = Common.Operation.newBuilder()
+          .setType(Common.OpType.PUT)
+          .setKey("name")
+          .setVal(ByteString.copyFrom("Isa".getBytes()))
+          .build();
+      for (int i = 0; i < 5; i++)
+        storageService.addOperation("esa", op);
+      long newest = storageService.stableSequence();
+      storageService.trimChanges();
+      assertThat(storageService.oldestSequence()).isEqualTo(newest - 1);
+      assertThat(storageService.readChanges(0, 10)).extracting(Common.Change::getSequence)
+          .containsExactly(newest - 1, newest);
+    } finally {
+      DalvConfig.set(DalvConfig.CHANGES_RETENTION, retention);
+    }
+  }
+
+  @Test
+  public void committedOffsetIsPersisted() {
+    assertThat(storageService.committedOffset("indexer")).isEqualTo(0);
+    storageService.commitOffset("indexer", 42);
+    assertThat(storageService.committedOffset("indexer")).isEqualTo(42);
+  }
+
+  @Test
+  public void latestSnapshotIsKnownUntilWrite() {
+    Common.Operation op = Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("name")
+        .setVal(ByteString.copyFrom("Isa".getBytes()))
+        .build();
+    storageService.addOperation("esa", op);
+    int snapshotId = storageService.snapshot("esa");
+    assertThat(storageService.isLatestSnapshot("esa", snapshotId)).isTrue();
+    storageService.addOperation("esa", op);
+    assertThat(storageService.isLatestSnapshot("esa", snapshotId)).isFalse();
+    int next = storageService.snapshot("esa");
+
+    //the compaction forgets it, a read which finds the log ending with the snapshot records it again
+    storageService.compact("esa");
+    assertThat(storageService.isLatestSnapshot("esa", next)).isFalse();
+    assertThat(storageService.get("esa", next)).isEmpty();
+    assertThat(storageService.isLatestSnapshot("esa", next)).isTrue();
+    storageService.delete("esa");
+    assertThat(storageService.isLatestSnapshot("esa", next)).isFalse();
+  }
+
+  @Test
+  public void handleOperationsAndSnapshotReturnsOnlyOthersOps() {
+    Common.Operation backendOp = Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("name")
+        .setVal(ByteString.copyFrom("Isa".getBytes()))
+        .build();
+    Common.Operation clientOp = Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey("age")
+        .setVal(ByteString.copyFrom(ByteBuffer.allocate(4).putInt(32).array()))
+        .build();
+    int snapshotId = storageService.snapshot("esa");
+    storageService.addOperation("esa", backendOp);
+
+    List<Common.Operation> unseen = storageService.handleOperationsAndSnapshot("esa",
+        Collections.singletonList(clientOp), snapshotId);
+    assertThat(unseen).hasSize(2);
+    assertThat(unseen.get(0)).isEqualTo(backendOp);
+    assertThat(unseen.get(1).getType()).isEqualTo(Common.OpType.SNAPSHOT);
+    int next = unseen.get(1).getSnapshotId();
+    assertThat(next).isEqualTo(snapshotId + 1);
+
+    //the snapshot is in the same write as the client's operation
+    List<Common.Operation> ops = storageService.get("esa", snapshotId);
+    assertThat(ops).hasSize(3);
+    assertThat(ops.get(1)).isEqualTo(clientOp);
+    assertThat(storageService.get("esa", next)).isEmpty();
+    assertThat(storageService.isLatestSnapshot("esa", next)).isTrue();
+
+    //a conflict writes nothing
+    assertThat(storageService.handleOperationsAndSnapshot("esa", Collections.singletonList(clientOp), snapshotId))
+        .isNull();
+    assertThat(storageService.isLatestSnapshot("esa", next)).isTrue();
+  }
+}
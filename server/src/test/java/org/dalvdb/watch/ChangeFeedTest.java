@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.watch;
+
+import dalv.common.Common;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.dalvdb.proto.BackendProto;
+import org.dalvdb.storage.StorageService;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ChangeFeedTest {
+
+  @Test
+  public void tailUpToStableSequence() throws InterruptedException {
+    StorageService storage = Mockito.mock(StorageService.class);
+    Mockito.when(storage.oldestSequence()).thenReturn(1L);
+    Mockito.when(storage.stableSequence()).thenReturn(2L);
+    Mockito.when(storage.readChanges(Mockito.eq(0L), Mockito.anyInt()))
+        .thenReturn(Arrays.asList(change(1), change(2), change(3)));
+    Mockito.when(storage.readChanges(Mockito.eq(2L), Mockito.anyInt()))
+        .thenReturn(Collections.singletonList(change(3)));
+    ChangeFeed feed = new ChangeFeed(storage);
+    List<Long> received = Collections.synchronizedList(new ArrayList<>());
+    feed.subscribe(0, new StreamObserver<BackendProto.ChangesResponse>() {
+      @Override
+      public void onNext(BackendProto.ChangesResponse value) {
+        value.getChangesList().forEach(change -> received.add(change.getSequence()));
+      }
+
+      @Override
+      public void onError(Throwable t) {
+      }
+
+      @Override
+      public void onCompleted() {
+      }
+    });
+    waitFor(received, 2);
+    //the commit 3 is still in flight
+    assertThat(received).containsExactly(1L, 2L);
+
+    Mockito.when(storage.stableSequence()).thenReturn(3L);
+    feed.onStable(3);
+    waitFor(received, 3);
+    assertThat(received).containsExactly(1L, 2L, 3L);
+    feed.close();
+  }
+
+  @Test
+  public void trimmedOffsetIsOutOfRange() {
+    StorageService storage = Mockito.mock(StorageService.class);
+    Mockito.when(storage.oldestSequence()).thenReturn(10L);
+    @SuppressWarnings("unchecked")
+    StreamObserver<BackendProto.ChangesResponse> observer = Mockito.mock(StreamObserver.class);
+    ChangeFeed feed = new ChangeFeed(storage);
+    feed.subscribe(5, observer);
+    ArgumentCaptor<Throwable> error = ArgumentCaptor.forClass(Throwable.class);
+    Mockito.verify(observer).onError(error.capture());
+    assertThat(Status.fromThrowable(error.getValue()).getCode()).isEqualTo(Status.Code.OUT_OF_RANGE);
+    feed.close();
+  }
+
+  private static void waitFor(List<Long> received, int size) throws InterruptedException {
+    for (int i = 0; i < 100 && received.size() < size; i++)
+      Thread.sleep(10);
+  }
+
+  private static Common.Change change(long sequence) {
+    return Common.Change.newBuilder()
+        .setSequence(sequence)
+        .setUserId("esa")
+        .addOps(Common.Operation.newBuilder().setKey("name").setType(Common.OpType.PUT))
+        .build();
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.watch;
+
+import dalv.common.Common;
+import io.grpc.stub.ServerCallStreamObserver;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConsumerGroupsTest {
+
+  @Test
+  public void userStaysOnOneMember() {
+    WatchStream<Long> single = stream("");
+    WatchStream<Long> first = stream("group");
+    WatchStream<Long> second = stream("group");
+    List<WatchStream<Long>> streams = Arrays.asList(single, first, second);
+    for (int i = 0; i < 50; i++) {
+      List<WatchStream<Long>> routed = ConsumerGroups.route(streams, "user" + i);
+      assertThat(routed).hasSize(2).contains(single);
+      assertThat(ConsumerGroups.route(streams, "user" + i)).isEqualTo(routed);
+    }
+    assertThat(ConsumerGroups.route(Arrays.asList(single), "user")).containsExactly(single);
+  }
+
+  @Test
+  public void rebalanceWhenMemberLeaves() {
+    List<Runnable> cancels = new ArrayList<>();
+    List<WatchStream<Long>> streams = new ArrayList<>();
+    for (int i = 0; i < 3; i++)
+      streams.add(stream("group", cancels));
+    List<String> movedUsers = new ArrayList<>();
+    List<WatchStream<Long>> before = new ArrayList<>();
+    for (int i = 0; i < 100; i++)
+      before.add(ConsumerGroups.route(streams, "user" + i).get(0));
+
+    cancels.get(2).run();
+    for (int i = 0; i < 100; i++) {
+      WatchStream<Long> owner = ConsumerGroups.route(streams, "user" + i).get(0);
+      assertThat(owner).isNotSameAs(streams.get(2));
+      if (owner != before.get(i))
+        movedUsers.add("user" + i);
+    }
+    //just the users of the closed member are moved
+    for (String user : movedUsers)
+      assertThat(before.get(Integer.parseInt(user.substring(4)))).isSameAs(streams.get(2));
+  }
+
+  @Test
+  public void rebalanceWhenFirstMemberLeaves() {
+    List<Runnable> cancels = new ArrayList<>();
+    List<WatchStream<Long>> streams = new ArrayList<>();
+    for (int i = 0; i < 3; i++)
+      streams.add(stream("group", cancels));
+    List<WatchStream<Long>> before = new ArrayList<>();
+    for (int i = 0; i < 300; i++)
+      before.add(ConsumerGroups.route(streams, "user" + i).get(0));
+    //every member has its share of the users
+    for (WatchStream<Long> member : streams)
+      assertThat(before).contains(member);
+
+    cancels.get(0).run();
+    for (int i = 0; i < 300; i++) {
+      WatchStream<Long> owner = ConsumerGroups.route(streams, "user" + i).get(0);
+      assertThat(owner).isNotSameAs(streams.get(0));
+      //the users of the members which stay are not moved
+      if (before.get(i) != streams.get(0))
+        assertThat(owner).isSameAs(before.get(i));
+    }
+  }
+
+  private static WatchStream<Long> stream(String group) {
+    return stream(group, new ArrayList<>());
+  }
+
+  private static WatchStream<Long> stream(String group, List<Runnable> cancels) {
+    @SuppressWarnings("unchecked")
+    ServerCallStreamObserver<Long> observer = Mockito.mock(ServerCallStreamObserver.class);
+    WatchStream<Long> stream = new WatchStream<>(observer,
+        (String userId, List<Common.Operation> ops, long seq, long token) -> seq, Runnable::run, 4,
+        WatchStream.OverflowPolicy.DROP_OLDEST, new WatchMetrics(), s -> {
+    });
+    ArgumentCaptor<Runnable> onCancel = ArgumentCaptor.forClass(Runnable.class);
+    Mockito.verify(observer).setOnCancelHandler(onCancel.capture());
+    cancels.add(onCancel.getValue());
+    stream.joinGroup(group);
+    return stream;
+  }
+}
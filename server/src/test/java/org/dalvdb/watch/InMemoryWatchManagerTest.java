@@ -24,6 +24,15 @@ import org.dalvdb.proto.BackendProto;
 import org.dalvdb.proto.ClientProto;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -35,7 +44,7 @@ public class InMemoryWatchManagerTest {
     WatchManager wm = new InMemoryWatchManager();
     MockStreamObserver<BackendProto.WatchResponse> mockBack = new MockStreamObserver<>();
     wm.addBackendWatch("testKey", mockBack);
-    wm.notifyChange("someUser", Common.Operation.newBuilder()
+    commit(wm, "someUser", Common.Operation.newBuilder()
         .setKey("testKey")
         .setType(Common.OpType.PUT)
         .setVal(ByteString.EMPTY)
@@ -51,7 +60,7 @@ public class InMemoryWatchManagerTest {
     WatchManager wm = new InMemoryWatchManager();
     MockStreamObserver<ClientProto.WatchResponse> mockClient = new MockStreamObserver<>();
     wm.addClientWatch("someUser", "testKey", mockClient);
-    wm.notifyChange("someUser", Common.Operation.newBuilder()
+    commit(wm, "someUser", Common.Operation.newBuilder()
         .setKey("testKey")
         .setType(Common.OpType.PUT)
         .setVal(ByteString.EMPTY)
@@ -62,12 +71,35 @@ public class InMemoryWatchManagerTest {
     assertThat(mockClient.onCompleteCall.get()).isEqualTo(0);
   }
 
+  @Test
+  @SuppressWarnings("deprecation")
+  public void singleOperationIsInDeprecatedField() throws InterruptedException {
+    WatchManager wm = new InMemoryWatchManager();
+    MockStreamObserver<BackendProto.WatchResponse> mockBack = new MockStreamObserver<>();
+    MockStreamObserver<ClientProto.WatchResponse> mockClient = new MockStreamObserver<>();
+    wm.addBackendWatch("testKey", mockBack);
+    wm.addClientWatch("someUser", "testKey", mockClient);
+    Common.Operation op = Common.Operation.newBuilder()
+        .setKey("testKey")
+        .setType(Common.OpType.PUT)
+        .setVal(ByteString.EMPTY)
+        .build();
+    commit(wm, "someUser", op);
+    mockBack.waitUntilChange();
+    mockClient.waitUntilChange();
+    //the SDKs which only read the single operation still get it
+    assertThat(mockBack.last.getOperation()).isEqualTo(op);
+    assertThat(mockBack.last.getOperationsList()).containsExactly(op);
+    assertThat(mockClient.last.getOperation()).isEqualTo(op);
+    assertThat(mockClient.last.getOperationsList()).containsExactly(op);
+  }
+
   @Test
   public void anotherClientWatchTest() throws InterruptedException {
     WatchManager wm = new InMemoryWatchManager();
     MockStreamObserver<ClientProto.WatchResponse> mockClient = new MockStreamObserver<>();
     wm.addClientWatch("someUser", "testKey", mockClient);
-    wm.notifyChange("anotherUser", Common.Operation.newBuilder()
+    commit(wm, "anotherUser", Common.Operation.newBuilder()
         .setKey("testKey")
         .setType(Common.OpType.PUT)
         .setVal(ByteString.EMPTY)
@@ -97,14 +129,222 @@ public class InMemoryWatchManagerTest {
     assertThat(mockBack.onCompleteCall.get()).isEqualTo(1);
   }
 
+  @Test
+  public void commitIsBatchedPerObserver() throws InterruptedException {
+    WatchManager wm = new InMemoryWatchManager();
+    MockStreamObserver<ClientProto.WatchResponse> mockClient = new MockStreamObserver<>();
+    wm.addClientWatch("someUser", "testKey", mockClient);
+    wm.addClientWatch("someUser", "otherKey", mockClient);
+    AtomicInteger received = new AtomicInteger();
+    MockStreamObserver<BackendProto.WatchResponse> mockBack = new MockStreamObserver<BackendProto.WatchResponse>() {
+      @Override
+      public void onNext(BackendProto.WatchResponse value) {
+        received.addAndGet(value.getOperationsCount());
+        super.onNext(value);
+      }
+    };
+    wm.addBackendWatch("testKey", mockBack);
+    Common.Operation op = Common.Operation.newBuilder()
+        .setKey("testKey")
+        .setType(Common.OpType.PUT)
+        .setVal(ByteString.EMPTY)
+        .build();
+    commit(wm, "someUser", op, op.toBuilder().setKey("otherKey").build(), op,
+        op.toBuilder().setKey("unwatched").build());
+    mockBack.waitUntilChange();
+    mockClient.waitUntilChange();
+    assertThat(mockClient.onNextCall.get()).isEqualTo(1);
+    assertThat(mockBack.onNextCall.get()).isEqualTo(1);
+    assertThat(received.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void prefixBackendWatch() throws InterruptedException {
+    WatchManager wm = new InMemoryWatchManager();
+    AtomicInteger received = new AtomicInteger();
+    MockStreamObserver<BackendProto.WatchResponse> mockBack = new MockStreamObserver<BackendProto.WatchResponse>() {
+      @Override
+      public void onNext(BackendProto.WatchResponse value) {
+        received.addAndGet(value.getOperationsCount());
+        super.onNext(value);
+      }
+    };
+    wm.addBackendWatch("cart.*", mockBack);
+    wm.addBackendWatch("cart.items", mockBack);
+    Common.Operation op = Common.Operation.newBuilder()
+        .setKey("cart.items")
+        .setType(Common.OpType.PUT)
+        .setVal(ByteString.EMPTY)
+        .build();
+    commit(wm, "someUser", op, op.toBuilder().setKey("cart.total").build(),
+        op.toBuilder().setKey("profile").build());
+    mockBack.waitUntilChange();
+    assertThat(mockBack.onNextCall.get()).isEqualTo(1);
+    //the stream watches cart.items twice but gets it once
+    assertThat(received.get()).isEqualTo(2);
+    wm.cancelBackendWatch("cart.*");
+    wm.cancelBackendWatch("cart.items");
+    mockBack.waitUntilChange();
+    assertThat(mockBack.onCompleteCall.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void cancelClientWatchKeepsOtherKeys() throws InterruptedException {
+    WatchManager wm = new InMemoryWatchManager();
+    MockStreamObserver<ClientProto.WatchResponse> canceled = new MockStreamObserver<>();
+    MockStreamObserver<ClientProto.WatchResponse> kept = new MockStreamObserver<>();
+    wm.addClientWatch("someUser", "testKey", canceled);
+    wm.addClientWatch("someUser", "otherKey", kept);
+    wm.cancelClientWatch("someUser", "testKey");
+    commit(wm, "someUser", Common.Operation.newBuilder()
+        .setKey("otherKey")
+        .setType(Common.OpType.PUT)
+        .setVal(ByteString.EMPTY)
+        .build());
+    kept.waitUntilChange();
+    canceled.waitUntilChange();
+    assertThat(canceled.onCompleteCall.get()).isEqualTo(1);
+    assertThat(kept.onNextCall.get()).isEqualTo(1);
+    assertThat(kept.onCompleteCall.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void escapedKeyIsExactWatch() throws InterruptedException {
+    InMemoryWatchManager wm = new InMemoryWatchManager();
+    MockStreamObserver<ClientProto.WatchResponse> exact = new MockStreamObserver<>();
+    MockStreamObserver<ClientProto.WatchResponse> pattern = new MockStreamObserver<>();
+    wm.addClientWatch("someUser", "rate\\*", exact);
+    wm.addClientWatch("someUser", "rate*", pattern);
+    Common.Operation op = Common.Operation.newBuilder()
+        .setKey("rates")
+        .setType(Common.OpType.PUT)
+        .setVal(ByteString.EMPTY)
+        .build();
+    commit(wm, "someUser", op);
+    pattern.waitUntilChange();
+    assertThat(pattern.onNextCall.get()).isEqualTo(1);
+    assertThat(exact.onNextCall.get()).isEqualTo(0);
+
+    commit(wm, "someUser", op.toBuilder().setKey("rate*").build());
+    exact.waitUntilChange();
+    pattern.waitUntilChange();
+    assertThat(exact.onNextCall.get()).isEqualTo(1);
+    assertThat(exact.last.getOpsList()).extracting(Common.Operation::getKey).containsExactly("rate*");
+    assertThat(pattern.onNextCall.get()).isEqualTo(2);
+    wm.cancelClientWatch("someUser", "rate\\*");
+    exact.waitUntilChange();
+    assertThat(exact.onCompleteCall.get()).isEqualTo(1);
+    assertThat(pattern.onCompleteCall.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void multiplexedClientWatch() throws InterruptedException {
+    WatchManager wm = new InMemoryWatchManager();
+    MockStreamObserver<ClientProto.WatchResponse> session = new MockStreamObserver<>();
+    wm.openClientWatch(session);
+    wm.addClientWatch("someUser", "testKey", session);
+    wm.addClientWatch("someUser", "cart.*", session);
+    wm.cancelClientWatch("someUser", "testKey", session);
+    wm.cancelClientWatch("someUser", "cart.*", session);
+    //the stream stays open without any key
+    wm.addClientWatch("someUser", "otherKey", session);
+    Common.Operation op = Common.Operation.newBuilder()
+        .setKey("testKey")
+        .setType(Common.OpType.PUT)
+        .setVal(ByteString.EMPTY)
+        .build();
+    commit(wm, "someUser", op, op.toBuilder().setKey("cart.total").build());
+    commit(wm, "someUser", op.toBuilder().setKey("otherKey").build());
+    session.waitUntilChange();
+    assertThat(session.onNextCall.get()).isEqualTo(1);
+    assertThat(session.onCompleteCall.get()).isEqualTo(0);
+
+    wm.closeClientWatch(session, null);
+    commit(wm, "someUser", op.toBuilder().setKey("otherKey").build());
+    session.waitUntilChange();
+    assertThat(session.onNextCall.get()).isEqualTo(1);
+    assertThat(session.onCompleteCall.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void concurrentRegistration() throws InterruptedException {
+    WatchManager wm = new InMemoryWatchManager();
+    int threads = 8;
+    int watchesPerThread = 500;
+    AtomicInteger completed = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    for (int t = 0; t < threads; t++) {
+      executor.submit(() -> {
+        for (int i = 0; i < watchesPerThread; i++) {
+          String userId = "user" + (i % 50);
+          wm.addClientWatch(userId, "testKey", new MockStreamObserver<ClientProto.WatchResponse>() {
+            @Override
+            public void onCompleted() {
+              completed.incrementAndGet();
+            }
+          });
+          if (i % 7 == 0)
+            wm.cancelClientWatch(userId, "testKey");
+        }
+      });
+    }
+    executor.shutdown();
+    assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+    wm.close();
+    //every registered watch is completed exactly once, either by a cancel or by the close
+    for (int i = 0; i < 100 && completed.get() < threads * watchesPerThread; i++)
+      Thread.sleep(50);
+    assertThat(completed.get()).isEqualTo(threads * watchesPerThread);
+  }
+
+  @Test
+  public void consumerGroupSplitsUsers() throws InterruptedException {
+    WatchManager wm = new InMemoryWatchManager();
+    Map<String, Set<String>> usersByMember = new ConcurrentHashMap<>();
+    List<MockStreamObserver<BackendProto.WatchResponse>> members = new ArrayList<>();
+    for (String name : Arrays.asList("first", "second", "all")) {
+      MockStreamObserver<BackendProto.WatchResponse> member = new MockStreamObserver<BackendProto.WatchResponse>() {
+        @Override
+        public void onNext(BackendProto.WatchResponse value) {
+          usersByMember.computeIfAbsent(name, n -> ConcurrentHashMap.newKeySet()).add(value.getUserId());
+          super.onNext(value);
+        }
+      };
+      members.add(member);
+      wm.addBackendWatch("testKey", name.equals("all") ? "" : "processors", 0, 0, member);
+    }
+    int users = 100;
+    for (int i = 0; i < users; i++)
+      commit(wm, "user" + i, Common.Operation.newBuilder()
+          .setKey("testKey")
+          .setType(Common.OpType.PUT)
+          .setVal(ByteString.EMPTY)
+          .build());
+    for (int i = 0; i < 100 && members.stream().mapToInt(m -> m.onNextCall.get()).sum() < 2 * users; i++)
+      Thread.sleep(10);
+    //the watch without a group gets every user, the group members get disjoint shares of them
+    assertThat(usersByMember.get("all")).hasSize(users);
+    assertThat(usersByMember.get("first")).isNotEmpty().doesNotContainAnyElementsOf(usersByMember.get("second"));
+    assertThat(usersByMember.get("first").size() + usersByMember.get("second").size()).isEqualTo(users);
+  }
+
+  /**
+   * pass the operations to the manager as a single commit of the storage
+   */
+  private static void commit(WatchManager wm, String userId, Common.Operation... operations) {
+    wm.onChange(userId, Arrays.asList(operations), 0, 0);
+  }
+
   private static class MockStreamObserver<T> implements StreamObserver<T> {
     final AtomicInteger onNextCall = new AtomicInteger();
     final AtomicInteger onErrorCall = new AtomicInteger();
     final AtomicInteger onCompleteCall = new AtomicInteger();
     final Object monitor = new Object();
+    volatile T last;
 
     @Override
     public void onNext(T value) {
+      last = value;
       onNextCall.incrementAndGet();
       synchronized (monitor) {
         monitor.notify();
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.dalvdb.watch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class KeyTrieTest {
+
+  @Test
+  public void matchPrefixAndGlobs() {
+    KeyTrie<String> trie = new KeyTrie<>();
+    trie.add("cart.*", "cart");
+    trie.add("cart.?", "single");
+    trie.add("user.*.name", "names");
+    trie.add("cart.items", "items");
+    trie.add("**", "all");
+
+    assertThat(match(trie, "cart.items")).containsExactlyInAnyOrder("cart", "items", "all");
+    assertThat(match(trie, "cart.x")).containsExactlyInAnyOrder("cart", "single", "all");
+    assertThat(match(trie, "cart.")).containsExactlyInAnyOrder("cart", "all");
+    assertThat(match(trie, "user.42.name")).containsExactlyInAnyOrder("names", "all");
+    assertThat(match(trie, "user.42.names")).containsExactlyInAnyOrder("all");
+    assertThat(match(trie, "")).containsExactlyInAnyOrder("all");
+  }
+
+  @Test
+  public void removePrunesTheTrie() {
+    KeyTrie<String> trie = new KeyTrie<>();
+    trie.add("cart.*", "a");
+    trie.add("cart.*", "b");
+    trie.add("car?", "c");
+    assertThat(trie.remove("cart.*", "a")).isTrue();
+    assertThat(trie.remove("cart.*", "a")).isFalse();
+    assertThat(match(trie, "cart.items")).containsExactly("b");
+    assertThat(trie.removeAll("cart.*")).containsExactly("b");
+    assertThat(trie.entries()).containsOnlyKeys("car?");
+    assertThat(trie.remove("car?", "c")).isTrue();
+    assertThat(trie.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void escapedWildcardsAreLiterals() {
+    KeyTrie<String> trie = new KeyTrie<>();
+    trie.add("rate\\*", "rate");
+    trie.add("rate\\**", "rates");
+    trie.add("what\\?", "question");
+    trie.add("dir\\\\*", "dir");
+
+    assertThat(match(trie, "rate*")).containsExactlyInAnyOrder("rate", "rates");
+    assertThat(match(trie, "rates")).isEmpty();
+    assertThat(match(trie, "rate*.usd")).containsExactly("rates");
+    assertThat(match(trie, "what?")).containsExactly("question");
+    assertThat(match(trie, "whatx")).isEmpty();
+    assertThat(match(trie, "dir\\a")).containsExactly("dir");
+    assertThat(trie.remove("rate\\*", "rate")).isTrue();
+    assertThat(trie.entries()).containsOnlyKeys("rate\\**", "what\\?", "dir\\\\*");
+  }
+
+  @Test
+  public void escapeAndNormalize() {
+    assertThat(KeyTrie.isPattern("rate*")).isTrue();
+    assertThat(KeyTrie.isPattern("rate\\*")).isFalse();
+    assertThat(KeyTrie.isPattern("rate\\\\*")).isTrue();
+    assertThat(KeyTrie.escape("name")).isSameAs("name");
+    assertThat(KeyTrie.escape("a*b?c\\d")).isEqualTo("a\\*b\\?c\\\\d");
+    //a backslash which escapes nothing stands for itself
+    assertThat(KeyTrie.normalize("c\\d")).isEqualTo("c\\\\d");
+    assertThat(KeyTrie.normalize("a\\*b\\\\d")).isEqualTo("a\\*b\\\\d");
+    assertThat(KeyTrie.normalize(KeyTrie.escape("a*b?c\\d"))).isEqualTo(KeyTrie.escape("a*b?c\\d"));
+  }
+
+  private static List<String> match(KeyTrie<String> trie, String key) {
+    List<String> matched = new ArrayList<>();
+    trie.match(key, matched::add);
+    return matched;
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.watch;
+
+import com.google.protobuf.ByteString;
+import dalv.common.Common;
+import org.dalvdb.proto.BackendProto;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class OperationFilterTest {
+
+  @Test
+  public void emptyFilterPassesAll() {
+    assertThat(OperationFilter.of(BackendProto.WatchFilter.getDefaultInstance())).isNull();
+  }
+
+  @Test
+  public void everyConditionMustHold() {
+    OperationFilter filter = OperationFilter.of(BackendProto.WatchFilter.newBuilder()
+        .addOpTypes(Common.OpType.ADD_TO_LIST)
+        .addUserIds("esa")
+        .addValuePrefixes(ByteString.copyFromUtf8("order:"))
+        .build());
+    Common.Operation order = op(Common.OpType.ADD_TO_LIST, "order:42");
+    assertThat(filter.test("esa", order)).isTrue();
+    assertThat(filter.test("other", order)).isFalse();
+    assertThat(filter.test("esa", op(Common.OpType.PUT, "order:42"))).isFalse();
+    assertThat(filter.test("esa", op(Common.OpType.ADD_TO_LIST, "refund:42"))).isFalse();
+  }
+
+  @Test
+  public void hashRangesSplitUsers() {
+    OperationFilter lower = hashRange(0, 2);
+    OperationFilter upper = hashRange(2, 4);
+    Common.Operation op = op(Common.OpType.PUT, "v");
+    for (int i = 0; i < 100; i++) {
+      String userId = "user" + i;
+      assertThat(lower.test(userId, op)).isNotEqualTo(upper.test(userId, op));
+    }
+    assertThatThrownBy(() -> hashRange(3, 5)).isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private static OperationFilter hashRange(int from, int to) {
+    return OperationFilter.of(BackendProto.WatchFilter.newBuilder()
+        .setHashBuckets(4)
+        .setHashFrom(from)
+        .setHashTo(to)
+        .build());
+  }
+
+  private static Common.Operation op(Common.OpType type, String val) {
+    return Common.Operation.newBuilder()
+        .setType(type)
+        .setKey("orders")
+        .setVal(ByteString.copyFromUtf8(val))
+        .build();
+  }
+}
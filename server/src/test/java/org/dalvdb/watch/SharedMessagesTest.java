@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.dalvdb.watch;
+
+import dalv.common.Common;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerServiceDefinition;
+import org.dalvdb.proto.BackendProto;
+import org.dalvdb.proto.BackendServerGrpc;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SharedMessagesTest {
+
+  @Test
+  public void sharedMessageIsSerializedOnce() throws IOException {
+    ServerServiceDefinition service = SharedMessages.bind(new BackendServerGrpc.BackendServerImplBase() {
+    }.bindService(), BackendServerGrpc.getWatchMethod());
+    @SuppressWarnings("unchecked")
+    MethodDescriptor.Marshaller<BackendProto.WatchResponse> marshaller =
+        (MethodDescriptor.Marshaller<BackendProto.WatchResponse>) service
+            .getMethod(BackendServerGrpc.getWatchMethod().getFullMethodName())
+            .getMethodDescriptor().getResponseMarshaller();
+    //the other methods are kept
+    assertThat(service.getMethods()).hasSize(new BackendServerGrpc.BackendServerImplBase() {
+    }.bindService().getMethods().size());
+
+    BackendProto.WatchResponse shared = response("shared");
+    SharedMessages.serialize(shared);
+    InputStream stream = marshaller.stream(shared);
+    assertThat(stream).isInstanceOf(KnownLength.class);
+    assertThat(stream.available()).isEqualTo(shared.getSerializedSize());
+    assertThat(marshaller.parse(stream)).isEqualTo(shared);
+
+    //an equal message which is not shared is serialized by the original marshaller
+    BackendProto.WatchResponse other = response("shared");
+    assertThat(marshaller.parse(marshaller.stream(other))).isEqualTo(other);
+  }
+
+  private static BackendProto.WatchResponse response(String userId) {
+    return BackendProto.WatchResponse.newBuilder()
+        .setUserId(userId)
+        .addOperations(Common.Operation.newBuilder().setKey("category").setType(Common.OpType.PUT))
+        .setSequence(42)
+        .build();
+  }
+}
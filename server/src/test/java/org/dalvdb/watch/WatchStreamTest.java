@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2020-present Isa Hekmatizadeh
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.dalvdb.watch;
+
+import com.google.protobuf.ByteString;
+import dalv.common.Common;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.dalvdb.storage.StorageService;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WatchStreamTest {
+
+  @Test
+  public void drainOnlyWhenReady() {
+    @SuppressWarnings("unchecked")
+    ServerCallStreamObserver<Long> observer = Mockito.mock(ServerCallStreamObserver.class);
+    Mockito.when(observer.isReady()).thenReturn(false);
+    WatchStream<Long> stream = stream(observer, 2, WatchStream.OverflowPolicy.DROP_OLDEST);
+    ArgumentCaptor<Runnable> onReady = ArgumentCaptor.forClass(Runnable.class);
+    Mockito.verify(observer).setOnReadyHandler(onReady.capture());
+
+    for (long seq = 1; seq <= 3; seq++)
+      stream.offer("esa", Collections.singletonList(put("name")), seq, seq);
+    Mockito.verify(observer, Mockito.never()).onNext(Mockito.any());
+    assertThat(stream.depth()).isEqualTo(2);
+
+    Mockito.when(observer.isReady()).thenReturn(true);
+    onReady.getValue().run();
+    //the oldest message was dropped
+    Mockito.verify(observer).onNext(2L);
+    Mockito.verify(observer).onNext(3L);
+    assertThat(stream.depth()).isEqualTo(0);
+  }
+
+  @Test
+  public void disconnectWithResumeToken() {
+    @SuppressWarnings("unchecked")
+    ServerCallStreamObserver<Long> observer = Mockito.mock(ServerCallStreamObserver.class);
+    Mockito.when(observer.isReady()).thenReturn(true);
+    WatchStream<Long> stream = stream(observer, 1, WatchStream.OverflowPolicy.DISCONNECT);
+    stream.offer("esa", Collections.singletonList(put("name")), 7, 7);
+    Mockito.when(observer.isReady()).thenReturn(false);
+    stream.offer("esa", Collections.singletonList(put("name")), 8, 8);
+    stream.offer("esa", Collections.singletonList(put("name")), 9, 9);
+
+    ArgumentCaptor<Throwable> error = ArgumentCaptor.forClass(Throwable.class);
+    Mockito.verify(observer).onError(error.capture());
+    assertThat(Status.fromThrowable(error.getValue()).getCode()).isEqualTo(Status.Code.RESOURCE_EXHAUSTED);
+    assertThat(Status.trailersFromThrowable(error.getValue()).get(WatchStream.RESUME_TOKEN)).isEqualTo("7");
+    assertThat(stream.isClosed()).isTrue();
+  }
+
+  @Test
+  public void conflateSupersededOperations() {
+    Deque<WatchStream.Pending> queue = new ArrayDeque<>();
+    queue.add(new WatchStream.Pending("esa", Arrays.asList(put("name"),
+        put("age").toBuilder().setType(Common.OpType.ADD_TO_LIST).build()), 1, 1));
+    queue.add(new WatchStream.Pending("esa", Collections.singletonList(put("name")), 2, 2));
+    queue.add(new WatchStream.Pending("other", Collections.singletonList(put("age")), 3, 3));
+    queue.add(new WatchStream.Pending("esa", Collections.singletonList(
+        put("age").toBuilder().setType(Common.OpType.DEL).build()), 4, 4));
+
+    assertThat(WatchStream.conflate(queue)).isEqualTo(2);
+    assertThat(queue).extracting(p -> p.sequence).containsExactly(2L, 3L, 4L);
+  }
+
+  @Test
+  public void conflateBurstIntoOneMessage() throws InterruptedException {
+    List<List<Common.Operation>> received = new CopyOnWriteArrayList<>();
+    StreamObserver<List<Common.Operation>> observer = new StreamObserver<List<Common.Operation>>() {
+      @Override
+      public void onNext(List<Common.Operation> value) {
+        received.add(value);
+      }
+
+      @Override
+      public void onError(Throwable t) {
+      }
+
+      @Override
+      public void onCompleted() {
+      }
+    };
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    try {
+      WatchStream<List<Common.Operation>> stream = new WatchStream<>(observer, (userId, ops, seq, token) -> ops,
+          Runnable::run, 16, WatchStream.OverflowPolicy.DROP_OLDEST, new WatchMetrics(), s -> {
+      }, 50, timer);
+      stream.offer("esa", Collections.singletonList(put("counter")), 1, 1);
+      stream.offer("esa", Arrays.asList(put("counter"),
+          put("timeline").toBuilder().setType(Common.OpType.ADD_TO_LIST).build()), 2, 2);
+      stream.offer("esa", Collections.singletonList(put("counter")
+          .toBuilder().setVal(ByteString.copyFromUtf8("3")).build()), 3, 3);
+      assertThat(received).isEmpty();
+      for (int i = 0; i < 40 && received.isEmpty(); i++)
+        Thread.sleep(10);
+    } finally {
+      timer.shutdown();
+    }
+    assertThat(received).hasSize(1);
+    assertThat(received.get(0)).extracting(Common.Operation::getKey).containsExactly("timeline", "counter");
+    assertThat(received.get(0).get(1).getVal().toStringUtf8()).isEqualTo("3");
+  }
+
+  @Test
+  public void replayBeforeLiveMessages() {
+    StorageService storage = Mockito.mock(StorageService.class);
+    Mockito.when(storage.stableSequence()).thenReturn(4L);
+    Mockito.when(storage.readChanges(Mockito.eq(1L), Mockito.anyInt())).thenReturn(Arrays.asList(
+        change(2, "name"), change(3, "age"), change(4, "name")));
+    Mockito.when(storage.readChanges(Mockito.eq(4L), Mockito.anyInt())).thenReturn(Collections.emptyList());
+    @SuppressWarnings("unchecked")
+    ServerCallStreamObserver<Long> observer = Mockito.mock(ServerCallStreamObserver.class);
+    Mockito.when(observer.isReady()).thenReturn(true);
+    WatchStream<Long> stream = stream(observer, 8, WatchStream.OverflowPolicy.DROP_OLDEST);
+    stream.holdForReplay(new WatchStream.Replay(storage, 1, 3, (userId, op) -> op.getKey().equals("name")));
+    //the commit 4 is offered live too, it should not be sent twice
+    stream.offer("esa", Collections.singletonList(put("name")), 4, 3);
+    stream.offer("esa", Collections.singletonList(put("name")), 5, 4);
+    Mockito.verify(observer, Mockito.never()).onNext(Mockito.any());
+
+    stream.startReplay();
+    ArgumentCaptor<Long> sent = ArgumentCaptor.forClass(Long.class);
+    Mockito.verify(observer, Mockito.times(3)).onNext(sent.capture());
+    assertThat(sent.getAllValues()).containsExactly(2L, 4L, 5L);
+  }
+
+  @Test
+  public void sharedPendingIsBuiltOnce() {
+    AtomicInteger built = new AtomicInteger();
+    WatchStream.MessageFactory<Long> factory = (userId, ops, seq, token) -> {
+      built.incrementAndGet();
+      return seq;
+    };
+    List<ServerCallStreamObserver<Long>> observers = new ArrayList<>();
+    WatchStream.Pending pending = new WatchStream.Pending("esa", Collections.singletonList(put("name")), 3, 3);
+    pending.share();
+    for (int i = 0; i < 3; i++) {
+      @SuppressWarnings("unchecked")
+      ServerCallStreamObserver<Long> observer = Mockito.mock(ServerCallStreamObserver.class);
+      Mockito.when(observer.isReady()).thenReturn(true);
+      observers.add(observer);
+      new WatchStream<>(observer, factory, Runnable::run, 4, WatchStream.OverflowPolicy.DROP_OLDEST,
+          new WatchMetrics(), s -> {
+      }).offer(pending);
+    }
+    for (ServerCallStreamObserver<Long> observer : observers)
+      Mockito.verify(observer).onNext(3L);
+    assertThat(built.get()).isEqualTo(1);
+  }
+
+  private static Common.Change change(long sequence, String key) {
+    return Common.Change.newBuilder()
+        .setSequence(sequence)
+        .setUserId("esa")
+        .addOps(put(key))
+        .build();
+  }
+
+  private static WatchStream<Long> stream(ServerCallStreamObserver<Long> observer, int capacity,
+                                          WatchStream.OverflowPolicy policy) {
+    return new WatchStream<>(observer, (String userId, List<Common.Operation> ops, long seq, long token) -> seq,
+        Runnable::run, capacity, policy, new WatchMetrics(), s -> {
+    });
+  }
+
+  private static Common.Operation put(String key) {
+    return Common.Operation.newBuilder()
+        .setType(Common.OpType.PUT)
+        .setKey(key)
+        .build();
+  }
+}